@@ -0,0 +1,54 @@
+package com.fastkeycloak.otp;
+
+import com.fastkeycloak.otp.benchmark.Stubs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of resolving the shared delivery provider for a channel from the registry, including its span when no tracer
+ * is registered.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProviderSelectionBenchmark {
+
+    @Param({"email", "sms"})
+    public String channel;
+
+    private MultiChannelOTPAuthenticatorFactory factory;
+    private MultiChannelOTPAuthenticator authenticator;
+
+    @Setup
+    public void setUp() {
+        factory = new MultiChannelOTPAuthenticatorFactory();
+        factory.init(Stubs.defaultScope());
+        factory.postInit(null);
+        authenticator = new MultiChannelOTPAuthenticator(factory);
+    }
+
+    @TearDown
+    public void tearDown() {
+        factory.close();
+    }
+
+    @Benchmark
+    public OTPDeliveryProvider getProvider() throws Exception {
+        return authenticator.getProvider(null, channel);
+    }
+}
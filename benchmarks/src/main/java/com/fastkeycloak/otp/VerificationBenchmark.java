@@ -0,0 +1,102 @@
+package com.fastkeycloak.otp;
+
+import com.fastkeycloak.otp.benchmark.Stubs;
+import com.fastkeycloak.otp.state.OTPState;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.KeyManager;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code action} for a submitted code, from reading the form and parsing the OTP state note to reporting the
+ * outcome. The note is restored before every call so each invocation verifies a fresh code.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VerificationBenchmark {
+    private static final String CODE = "482913";
+
+    @Param({"true", "false"})
+    public boolean metricsEnabled;
+
+    private final Map<String, String> notes = new HashMap<>();
+    private final String[] outcome = new String[1];
+    private MultiChannelOTPAuthenticatorFactory factory;
+    private MultiChannelOTPAuthenticator authenticator;
+    private AuthenticationFlowContext validContext;
+    private AuthenticationFlowContext invalidContext;
+    private String issuedState;
+
+    @Setup
+    public void setUp() {
+        if (metricsEnabled) {
+            Metrics.addRegistry(new SimpleMeterRegistry());
+        }
+        factory = new MultiChannelOTPAuthenticatorFactory();
+        factory.init(Stubs.defaultScope());
+        factory.postInit(null);
+        authenticator = new MultiChannelOTPAuthenticator(factory);
+        AuthenticatorConfigModel config = Stubs.config("benchmark", Map.of(
+            "logVerbosity", "off",
+            "verifyRateLimit", "0",
+            "ipVerifyRateLimit", "0"));
+        KeyManager keys = Stubs.keys();
+        KeycloakSession session = Stubs.proxy(KeycloakSession.class, Map.of("keys", args -> keys));
+        RealmModel realm = Stubs.realm("realm-id", "benchmark");
+        UserModel user = Stubs.user("user-id", "user@example.com", null);
+        long now = System.currentTimeMillis();
+        issuedState = OTPState.issue(session, realm, "email", CODE, now, now + TimeUnit.HOURS.toMillis(1), 3).encode();
+
+        validContext = Stubs.flowContext(session, realm, user, config, Stubs.authSession(notes),
+            Stubs.httpRequest(Stubs.form("code", CODE)), "127.0.0.1", outcome);
+        invalidContext = Stubs.flowContext(session, realm, user, config, Stubs.authSession(notes),
+            Stubs.httpRequest(Stubs.form("code", "000000")), "127.0.0.1", outcome);
+    }
+
+    @TearDown
+    public void tearDown() {
+        factory.close();
+    }
+
+    private void issueCode() {
+        notes.put(OTPState.AUTH_NOTE, issuedState);
+    }
+
+    @Benchmark
+    public String verifyValid() {
+        issueCode();
+        authenticator.action(validContext);
+        return outcome[0];
+    }
+
+    @Benchmark
+    public String verifyInvalid() {
+        issueCode();
+        authenticator.action(invalidContext);
+        return outcome[0];
+    }
+}
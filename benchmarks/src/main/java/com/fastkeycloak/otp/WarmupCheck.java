@@ -0,0 +1,223 @@
+package com.fastkeycloak.otp;
+
+import com.fastkeycloak.otp.benchmark.Stubs;
+import com.fastkeycloak.otp.loadtest.TwilioStub;
+import com.fastkeycloak.otp.providers.EmailOTPProviderFactory;
+import com.fastkeycloak.otp.providers.TwilioSMSProviderFactory;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.keycloak.Config;
+import org.keycloak.models.AuthenticationExecutionModel;
+import org.keycloak.models.AuthenticationFlowModel;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.ThemeManager;
+import org.keycloak.models.utils.PostMigrationEvent;
+import org.keycloak.provider.ProviderEventListener;
+import org.keycloak.theme.FreeMarkerException;
+import org.keycloak.theme.Theme;
+import org.keycloak.theme.freemarker.FreeMarkerProvider;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Runs the startup warm-up offline against stubbed realms and a local Twilio stub and checks what it did: every
+ * configuration was warmed, the Twilio origin was connected to once, templates were loaded, an unreachable sender
+ * was counted as a failure without holding up readiness, and readiness and duration were reported. Exits with
+ * status 1 if any check fails.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.fastkeycloak.otp.WarmupCheck
+ * </pre>
+ */
+public final class WarmupCheck {
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final MultiChannelOTPAuthenticatorFactory factory = new MultiChannelOTPAuthenticatorFactory();
+    private final EmailOTPProviderFactory emailFactory = new EmailOTPProviderFactory();
+    private final TwilioSMSProviderFactory twilioFactory = new TwilioSMSProviderFactory();
+    private final Map<String, RealmModel> realms = new LinkedHashMap<>();
+    private final List<ProviderEventListener> listeners = new ArrayList<>();
+    private final List<String> templatesLoaded = new ArrayList<>();
+    private boolean passed = true;
+
+    private WarmupCheck(TwilioStub twilio, String unreachableUrl) {
+        Metrics.addRegistry(registry);
+        realm("alpha", Map.of("twilioBaseUrl", twilio.getBaseUrl()));
+        realm("beta", Map.of("twilioBaseUrl", twilio.getBaseUrl(), "forcedChannel", "sms"));
+        realm("gamma", Map.of("twilioBaseUrl", unreachableUrl, "forcedChannel", "sms"));
+
+        emailFactory.init(Stubs.defaultScope());
+        emailFactory.postInit(null);
+        twilioFactory.init(Stubs.defaultScope());
+        twilioFactory.postInit(null);
+        factory.init(warmupScope());
+        factory.postInit(sessionFactory());
+    }
+
+    public static void main(String[] args) throws Exception {
+        int unreachablePort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            unreachablePort = socket.getLocalPort();
+        }
+        WarmupCheck check;
+        try (TwilioStub twilio = new TwilioStub(0, 0L, 0.0, 500)) {
+            check = new WarmupCheck(twilio, "http://127.0.0.1:" + unreachablePort);
+            try {
+                check.run(twilio);
+            } finally {
+                check.close();
+            }
+        }
+        System.out.println(check.passed ? "PASSED" : "FAILED");
+        if (!check.passed) {
+            System.exit(1);
+        }
+    }
+
+    private void run(TwilioStub twilio) throws InterruptedException {
+        OTPWarmup warmup = factory.getWarmup();
+        expect("the warm-up is set up when enabled", warmup != null);
+        if (warmup == null) {
+            return;
+        }
+        expect("the warm-up waits for the server to finish migrating", !warmup.isReady() && twilio.getProbes() == 0);
+        listeners.forEach(listener -> listener.onEvent(new PostMigrationEvent(null)));
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (!warmup.isReady() && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        System.out.printf("  warm-up took %d ms for %d configurations, %d failed steps%n", warmup.getDurationMillis(),
+            warmup.getConfigurations(), warmup.getFailures());
+        System.out.printf("  templates loaded: %s%n", templatesLoaded);
+
+        expect("the warm-up reports readiness", warmup.isReady());
+        expect("every configuration was warmed up", warmup.getConfigurations() == realms.size());
+        expect("the Twilio stub was connected to once for the two configurations using it", twilio.getProbes() == 1);
+        expect("the unreachable sender is the only failure", warmup.getFailures() == 1);
+        expect("the OTP form was loaded for every realm",
+            templatesLoaded.stream().filter("otp-form.ftl"::equals).count() == realms.size());
+        expect("the email templates were compiled only where email can be used",
+            templatesLoaded.stream().filter(name -> name.endsWith("otp-email.ftl")).count() == 2);
+
+        Gauge ready = registry.find("otp.warmup.ready").gauge();
+        Timer duration = registry.find("otp.warmup.duration").timer();
+        expect("otp.warmup.ready is 1", ready != null && ready.value() == 1.0);
+        expect("otp.warmup.duration recorded the warm-up", duration != null && duration.count() == 1
+            && duration.totalTime(TimeUnit.MILLISECONDS) >= warmup.getDurationMillis());
+    }
+
+    private void realm(String name, Map<String, String> settings) {
+        Map<String, String> config = new HashMap<>(settings);
+        config.put("twilioAccountSid", "AC00000000000000000000000000000000");
+        config.put("twilioAuthToken", "warmup");
+        config.put("twilioFromNumber", "+15005550006");
+        config.put("precompileEmailTemplates", "true");
+        AuthenticatorConfigModel configModel = Stubs.config(name + "-otp", config);
+
+        AuthenticationFlowModel flow = new AuthenticationFlowModel();
+        flow.setId(name + "-browser");
+        AuthenticationExecutionModel password = new AuthenticationExecutionModel();
+        password.setAuthenticator("auth-username-password-form");
+        AuthenticationExecutionModel otp = new AuthenticationExecutionModel();
+        otp.setAuthenticator(MultiChannelOTPAuthenticatorFactory.ID);
+        otp.setAuthenticatorConfig(configModel.getId());
+
+        Map<String, Stubs.Answer> answers = new HashMap<>();
+        answers.put("getId", args -> name);
+        answers.put("getName", args -> name);
+        answers.put("getAuthenticationFlowsStream", args -> Stream.of(flow));
+        answers.put("getAuthenticationExecutionsStream", args -> flow.getId().equals(args[0])
+            ? Stream.of(password, otp) : Stream.empty());
+        answers.put("getAuthenticatorConfigById", args -> configModel.getId().equals(args[0]) ? configModel : null);
+        realms.put(name, Stubs.proxy(RealmModel.class, answers));
+    }
+
+    private Config.Scope warmupScope() {
+        Map<String, Stubs.Answer> answers = new HashMap<>();
+        answers.put("get", args -> args.length > 1 ? args[1] : null);
+        answers.put("getInt", args -> args[1]);
+        answers.put("getLong", args -> args[1]);
+        answers.put("getBoolean", args -> "warmup".equals(args[0]) ? Boolean.TRUE : args[1]);
+        return Stubs.proxy(Config.Scope.class, answers);
+    }
+
+    private KeycloakSessionFactory sessionFactory() {
+        Map<String, Stubs.Answer> answers = new HashMap<>();
+        answers.put("create", args -> session());
+        answers.put("register", args -> listeners.add((ProviderEventListener) args[0]));
+        answers.put("getProviderFactoriesStream", args -> Stream.of(emailFactory, twilioFactory));
+        return Stubs.proxy(KeycloakSessionFactory.class, answers);
+    }
+
+    private KeycloakSession session() {
+        Map<String, Stubs.Answer> realmAnswers = new HashMap<>();
+        realmAnswers.put("getRealmsStream", args -> realms.values().stream());
+        realmAnswers.put("getRealm", args -> realms.get((String) args[0]));
+        RealmProvider realmProvider = Stubs.proxy(RealmProvider.class, realmAnswers);
+        Map<String, Stubs.Answer> contextAnswers = new HashMap<>();
+        contextAnswers.put("resolveLocale", args -> Locale.ENGLISH);
+        KeycloakContext context = Stubs.proxy(KeycloakContext.class, contextAnswers);
+
+        Map<String, Stubs.Answer> themeAnswers = new HashMap<>();
+        themeAnswers.put("getName", args -> "keycloak");
+        themeAnswers.put("getEnhancedMessages", args -> new Properties());
+        themeAnswers.put("getProperties", args -> new Properties());
+        Theme theme = Stubs.proxy(Theme.class, themeAnswers);
+        Map<String, Stubs.Answer> themeManagerAnswers = new HashMap<>();
+        themeManagerAnswers.put("isCacheEnabled", args -> true);
+        themeManagerAnswers.put("getTheme", args -> theme);
+        ThemeManager themes = Stubs.proxy(ThemeManager.class, themeManagerAnswers);
+        // Like Keycloak's, rendering the login form without the beans of a login request fails after loading it
+        Map<String, Stubs.Answer> freeMarkerAnswers = new HashMap<>();
+        freeMarkerAnswers.put("processTemplate", args -> {
+            String name = (String) args[1];
+            synchronized (templatesLoaded) {
+                templatesLoaded.add(name);
+            }
+            if (name.equals("otp-form.ftl")) {
+                throw new FreeMarkerException("The following has evaluated to null or missing: ==> msg");
+            }
+            return "Your code is " + ((Map<?, ?>) args[0]).get("code");
+        });
+        FreeMarkerProvider freeMarker = Stubs.proxy(FreeMarkerProvider.class, freeMarkerAnswers);
+
+        Map<String, Stubs.Answer> answers = new HashMap<>();
+        Map<String, Object> attributes = new HashMap<>();
+        answers.put("getAttribute", args -> attributes.get((String) args[0]));
+        answers.put("setAttribute", args -> attributes.put((String) args[0], args[1]));
+        answers.put("getTransactionManager", args -> Stubs.proxy(KeycloakTransactionManager.class, new HashMap<>()));
+        answers.put("realms", args -> realmProvider);
+        answers.put("getContext", args -> context);
+        answers.put("theme", args -> themes);
+        answers.put("getProvider", args -> args[0] == FreeMarkerProvider.class ? freeMarker : null);
+        return Stubs.proxy(KeycloakSession.class, answers);
+    }
+
+    private void expect(String description, boolean condition) {
+        System.out.printf("  %-6s %s%n", condition ? "ok" : "FAILED", description);
+        passed &= condition;
+    }
+
+    private void close() {
+        factory.close();
+        emailFactory.close();
+        twilioFactory.close();
+        Metrics.removeRegistry(registry);
+    }
+}
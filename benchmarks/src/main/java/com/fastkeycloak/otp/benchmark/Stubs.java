@@ -0,0 +1,192 @@
+package com.fastkeycloak.otp.benchmark;
+
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import jakarta.ws.rs.core.MultivaluedMap;
+import org.keycloak.Config;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.common.ClientConnection;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.http.HttpRequest;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.KeyManager;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.sessions.RootAuthenticationSessionModel;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.lang.reflect.Proxy;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * In-process stand-ins for the Keycloak interfaces the authenticator touches. Each stub is a dynamic proxy that
+ * answers the methods given to it, returns itself from fluent builder methods and a zero value from everything else.
+ */
+public final class Stubs {
+    private static final AtomicLong ROOT_SESSIONS = new AtomicLong();
+
+    @FunctionalInterface
+    public interface Answer {
+        Object answer(Object[] args) throws Exception;
+    }
+
+    private Stubs() {
+    }
+
+    public static <T> T proxy(Class<T> type, Map<String, Answer> answers) {
+        Object stub = Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[] {type}, (self, method, args) -> {
+            Answer answer = answers.get(method.getName());
+            if (answer != null) {
+                return answer.answer(args);
+            }
+            switch (method.getName()) {
+                case "hashCode":
+                    return System.identityHashCode(self);
+                case "equals":
+                    return self == args[0];
+                case "toString":
+                    return type.getSimpleName() + "Stub";
+                default:
+                    break;
+            }
+            Class<?> returnType = method.getReturnType();
+            if (returnType.isInstance(self)) {
+                return self;
+            }
+            if (returnType == boolean.class) {
+                return false;
+            }
+            if (returnType == int.class) {
+                return 0;
+            }
+            if (returnType == long.class) {
+                return 0L;
+            }
+            return null;
+        });
+        return type.cast(stub);
+    }
+
+    // A realm key manager with a single random AES key, as every realm gets one by default
+    public static KeyManager keys() {
+        byte[] secret = new byte[16];
+        new SecureRandom().nextBytes(secret);
+        KeyWrapper key = new KeyWrapper();
+        key.setKid("aes");
+        key.setSecretKey(new SecretKeySpec(secret, "AES"));
+        Map<String, Answer> answers = new HashMap<>();
+        answers.put("getActiveKey", args -> key);
+        answers.put("getKeysStream", args -> Stream.of(key));
+        return proxy(KeyManager.class, answers);
+    }
+
+    // A server configuration scope that answers every option with its default
+    public static Config.Scope defaultScope() {
+        Answer defaultValue = args -> args.length > 1 ? args[1] : null;
+        Map<String, Answer> answers = new HashMap<>();
+        answers.put("get", defaultValue);
+        answers.put("getInt", defaultValue);
+        answers.put("getLong", defaultValue);
+        answers.put("getBoolean", defaultValue);
+        return proxy(Config.Scope.class, answers);
+    }
+
+    public static AuthenticatorConfigModel config(String id, Map<String, String> values) {
+        AuthenticatorConfigModel config = new AuthenticatorConfigModel();
+        config.setId(id);
+        config.setAlias(id);
+        config.setConfig(new HashMap<>(values));
+        return config;
+    }
+
+    public static RealmModel realm(String id, String name) {
+        Map<String, Answer> answers = new HashMap<>();
+        answers.put("getId", args -> id);
+        answers.put("getName", args -> name);
+        return proxy(RealmModel.class, answers);
+    }
+
+    public static UserModel user(String id, String email, String phoneNumber) {
+        Map<String, String> attributes = new HashMap<>();
+        if (phoneNumber != null) {
+            attributes.put("phoneNumber", phoneNumber);
+        }
+        Map<String, Answer> answers = new HashMap<>();
+        answers.put("getId", args -> id);
+        answers.put("getEmail", args -> email);
+        answers.put("getFirstAttribute", args -> attributes.get((String) args[0]));
+        answers.put("setSingleAttribute", args -> attributes.put((String) args[0], (String) args[1]));
+        answers.put("removeAttribute", args -> attributes.remove((String) args[0]));
+        return proxy(UserModel.class, answers);
+    }
+
+    public static AuthenticationSessionModel authSession(Map<String, String> notes) {
+        return authSession("root-" + ROOT_SESSIONS.incrementAndGet(), notes);
+    }
+
+    // Copies of one authentication session, as seen by concurrent requests, share the root session id
+    public static AuthenticationSessionModel authSession(String rootSessionId, Map<String, String> notes) {
+        Map<String, Answer> rootAnswers = new HashMap<>();
+        rootAnswers.put("getId", args -> rootSessionId);
+        RootAuthenticationSessionModel rootSession = proxy(RootAuthenticationSessionModel.class, rootAnswers);
+        Map<String, Answer> answers = new HashMap<>();
+        answers.put("getParentSession", args -> rootSession);
+        answers.put("getAuthNote", args -> notes.get((String) args[0]));
+        answers.put("setAuthNote", args -> notes.put((String) args[0], (String) args[1]));
+        answers.put("removeAuthNote", args -> notes.remove((String) args[0]));
+        answers.put("getTabId", args -> "tab");
+        return proxy(AuthenticationSessionModel.class, answers);
+    }
+
+    public static HttpRequest httpRequest(MultivaluedMap<String, String> formParameters) {
+        Map<String, Answer> answers = new HashMap<>();
+        answers.put("getDecodedFormParameters", args -> formParameters);
+        answers.put("getHttpMethod", args -> "POST");
+        return proxy(HttpRequest.class, answers);
+    }
+
+    public static MultivaluedMap<String, String> form(String... keysAndValues) {
+        MultivaluedMap<String, String> form = new MultivaluedHashMap<>();
+        for (int i = 0; i + 1 < keysAndValues.length; i += 2) {
+            form.put(keysAndValues[i], List.of(keysAndValues[i + 1]));
+        }
+        return form;
+    }
+
+    /**
+     * A flow context over the given stubs. The outcome the authenticator reports is written to {@code outcome} so a
+     * benchmark can consume it.
+     */
+    public static AuthenticationFlowContext flowContext(KeycloakSession session, RealmModel realm, UserModel user,
+                                                        AuthenticatorConfigModel config,
+                                                        AuthenticationSessionModel authSession,
+                                                        HttpRequest httpRequest, String remoteAddr,
+                                                        String[] outcome) {
+        LoginFormsProvider form = proxy(LoginFormsProvider.class, new HashMap<>());
+        Map<String, Answer> connectionAnswers = new HashMap<>();
+        connectionAnswers.put("getRemoteAddr", args -> remoteAddr);
+        ClientConnection connection = proxy(ClientConnection.class, connectionAnswers);
+
+        Map<String, Answer> answers = new HashMap<>();
+        answers.put("getSession", args -> session);
+        answers.put("getRealm", args -> realm);
+        answers.put("getUser", args -> user);
+        answers.put("getAuthenticatorConfig", args -> config);
+        answers.put("getAuthenticationSession", args -> authSession);
+        answers.put("getHttpRequest", args -> httpRequest);
+        answers.put("getConnection", args -> connection);
+        answers.put("form", args -> form);
+        answers.put("success", args -> outcome[0] = "success");
+        answers.put("challenge", args -> outcome[0] = "challenge");
+        answers.put("failureChallenge", args -> outcome[0] = "failureChallenge:" + args[0]);
+        answers.put("failure", args -> outcome[0] = "failure:" + args[0]);
+        return proxy(AuthenticationFlowContext.class, answers);
+    }
+}
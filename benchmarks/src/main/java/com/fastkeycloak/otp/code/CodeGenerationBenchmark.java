@@ -0,0 +1,100 @@
+package com.fastkeycloak.otp.code;
+
+import com.fastkeycloak.otp.code.CodeGenerator.Alphabet;
+import org.keycloak.common.util.SecretGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link CodeGenerator} against Keycloak's {@code SecretGenerator}, the previous code path, from 1 to 64 threads.
+ * The shared SecureRandom behind {@code SecretGenerator} shows up as rising time per code as threads are added.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodeGenerationBenchmark {
+    private static final int LENGTH = 6;
+
+    @Param({"true", "false"})
+    public boolean allowNumbers;
+
+    private Alphabet alphabet;
+    private char[] chars;
+
+    @Setup
+    public void setUp() {
+        alphabet = allowNumbers ? Alphabet.DIGITS : Alphabet.LETTERS;
+        chars = (allowNumbers ? "0123456789" : "ABCDEFGHIJKLMNOPQRSTUVWXYZ").toCharArray();
+    }
+
+    private String secretGenerator() {
+        return SecretGenerator.getInstance().randomString(LENGTH, chars);
+    }
+
+    private String codeGenerator() {
+        return CodeGenerator.generate(LENGTH, alphabet);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String secretGenerator01() {
+        return secretGenerator();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String secretGenerator04() {
+        return secretGenerator();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public String secretGenerator16() {
+        return secretGenerator();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public String secretGenerator64() {
+        return secretGenerator();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String codeGenerator01() {
+        return codeGenerator();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String codeGenerator04() {
+        return codeGenerator();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public String codeGenerator16() {
+        return codeGenerator();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public String codeGenerator64() {
+        return codeGenerator();
+    }
+}
@@ -0,0 +1,122 @@
+package com.fastkeycloak.otp.code;
+
+import com.fastkeycloak.otp.code.CodeGenerator.Alphabet;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Chi-squared tests on {@link CodeGenerator} output: the character distribution at every position, and pairs of
+ * adjacent characters to catch dependence between positions. Exits with status 1 if any test rejects uniformity
+ * at the 0.1% level.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.fastkeycloak.otp.code.UniformityCheck --codes=1000000 --alphabet=letters
+ * </pre>
+ */
+public final class UniformityCheck {
+    private static final double SIGNIFICANCE = 0.001;
+
+    private UniformityCheck() {
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        int count = Integer.parseInt(options.getOrDefault("codes", "1000000"));
+        int length = Integer.parseInt(options.getOrDefault("length", "6"));
+        boolean batch = Boolean.parseBoolean(options.getOrDefault("batch", "false"));
+        boolean passed = true;
+        for (Alphabet alphabet : alphabets(options.getOrDefault("alphabet", "both"))) {
+            passed &= check(alphabet, length, count, batch);
+        }
+        System.out.println(passed ? "PASSED" : "FAILED");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    private static Alphabet[] alphabets(String name) {
+        switch (name) {
+            case "digits":
+                return new Alphabet[] {Alphabet.DIGITS};
+            case "letters":
+                return new Alphabet[] {Alphabet.LETTERS};
+            default:
+                return Alphabet.values();
+        }
+    }
+
+    private static boolean check(Alphabet alphabet, int length, int count, boolean batch) {
+        int size = alphabet.size();
+        long[][] positions = new long[length][size];
+        long[] pairs = new long[size * size];
+        String[] codes = batch ? CodeGenerator.generate(length, alphabet, count) : null;
+        for (int n = 0; n < count; n++) {
+            String code = batch ? codes[n] : CodeGenerator.generate(length, alphabet);
+            int previous = -1;
+            for (int i = 0; i < length; i++) {
+                int index = indexOf(alphabet, code.charAt(i));
+                positions[i][index]++;
+                if (previous >= 0) {
+                    pairs[previous * size + index]++;
+                }
+                previous = index;
+            }
+        }
+
+        System.out.printf("%s, %d codes of length %d%s%n", alphabet, count, length, batch ? " (batch)" : "");
+        System.out.printf("%-12s %12s %6s %10s%n", "test", "chi2", "df", "p");
+        boolean passed = true;
+        for (int i = 0; i < length; i++) {
+            passed &= report("position " + (i + 1), positions[i]);
+        }
+        if (length > 1) {
+            passed &= report("pairs", pairs);
+        }
+        return passed;
+    }
+
+    private static int indexOf(Alphabet alphabet, char c) {
+        return alphabet == Alphabet.DIGITS ? c - '0' : c - 'A';
+    }
+
+    private static boolean report(String test, long[] observed) {
+        long total = 0;
+        for (long value : observed) {
+            total += value;
+        }
+        double expected = (double) total / observed.length;
+        double chi2 = 0;
+        for (long value : observed) {
+            double delta = value - expected;
+            chi2 += delta * delta / expected;
+        }
+        int df = observed.length - 1;
+        double p = upperTail(chi2, df);
+        System.out.printf("%-12s %12.2f %6d %10.4f%s%n", test, chi2, df, p, p < SIGNIFICANCE ? "  REJECTED" : "");
+        return p >= SIGNIFICANCE;
+    }
+
+    // Wilson-Hilferty approximation of the chi-squared upper tail, accurate enough for df >= 9
+    private static double upperTail(double chi2, int df) {
+        double variance = 2.0 / (9.0 * df);
+        double z = (Math.cbrt(chi2 / df) - (1.0 - variance)) / Math.sqrt(variance);
+        return 0.5 * erfc(z / Math.sqrt(2.0));
+    }
+
+    // Numerical Recipes erfc, fractional error below 1.2e-7
+    private static double erfc(double x) {
+        double z = Math.abs(x);
+        double t = 1.0 / (1.0 + 0.5 * z);
+        double r = t * Math.exp(-z * z - 1.26551223 + t * (1.00002368 + t * (0.37409196 + t * (0.09678418
+            + t * (-0.18628806 + t * (0.27886807 + t * (-1.13520398 + t * (1.48851587
+            + t * (-0.82215223 + t * 0.17087277)))))))));
+        return x >= 0 ? r : 2.0 - r;
+    }
+}
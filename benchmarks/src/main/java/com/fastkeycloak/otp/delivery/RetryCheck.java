@@ -0,0 +1,220 @@
+package com.fastkeycloak.otp.delivery;
+
+import com.fastkeycloak.otp.config.OTPSettings;
+import com.fastkeycloak.otp.enums.OTPChannel;
+import com.fastkeycloak.otp.loadtest.TwilioStub;
+import com.fastkeycloak.otp.metrics.OTPMetrics;
+import com.fastkeycloak.otp.metrics.ProviderMetrics;
+import com.fastkeycloak.otp.sms.SmsRouter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.trace.Tracer;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends SMS through the outbox to a Twilio stub answering with scripted statuses and checks the retries it sees: how
+ * many attempts arrive, that the gaps between them stay within the jittered backoff, that a Retry-After is honored
+ * up to the maximum delay, and that sending stops at the attempt limit, on a permanent failure, when the sync retry
+ * budget is spent and when the code expires. Exits with status 1 if any check fails.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.fastkeycloak.otp.delivery.RetryCheck
+ * </pre>
+ */
+public final class RetryCheck {
+    private static final String PHONE_NUMBER = "+4915000000001";
+    // Allowed for the HTTP round trip and scheduling on top of a computed delay
+    private static final long SLACK_MILLIS = 150L;
+    // Arrival times are truncated to milliseconds
+    private static final long TRUNCATION_MILLIS = 2L;
+
+    private final TwilioStub twilio;
+    private final OTPDispatcher dispatcher = new OTPDispatcher(4, 16);
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+    private final ProviderMetrics metrics = new OTPMetrics(new SimpleMeterRegistry()).realm("retry")
+        .provider("twilio", OTPChannel.SMS);
+    private final Tracer tracer = OpenTelemetry.noop().getTracer("retry-check");
+    private boolean passed = true;
+
+    private RetryCheck(TwilioStub twilio) {
+        this.twilio = twilio;
+    }
+
+    public static void main(String[] args) throws Exception {
+        RetryCheck check;
+        try (TwilioStub twilio = new TwilioStub(0, 0L, 0.0, 500)) {
+            check = new RetryCheck(twilio);
+            try {
+                check.backoff();
+                check.retryAfter();
+                check.retryAfterCap();
+                check.maxAttempts();
+                check.permanentFailure();
+                check.syncBudget();
+                check.queued();
+                check.expiry();
+            } finally {
+                check.dispatcher.close();
+            }
+        }
+        System.out.println(check.passed ? "PASSED" : "FAILED");
+        if (!check.passed) {
+            System.exit(1);
+        }
+    }
+
+    private void backoff() {
+        System.out.println("503, 503, 201 with 200 ms base delay");
+        Outcome outcome = sync("503,503,201", 4, 200L, 2000L, 30000L);
+        expect("the send succeeds", outcome.failure == null);
+        expectGaps(outcome.gaps(), 3, new long[]{100L, 200L}, new long[]{200L, 400L});
+    }
+
+    private void retryAfter() {
+        System.out.println("429 with Retry-After: 1 and 100 ms base delay");
+        Outcome outcome = sync("429:1,201", 3, 100L, 5000L, 30000L);
+        expect("the send succeeds", outcome.failure == null);
+        expectGaps(outcome.gaps(), 2, new long[]{1000L, 1000L});
+    }
+
+    private void retryAfterCap() {
+        System.out.println("429 with Retry-After: 30 and 600 ms max delay");
+        Outcome outcome = sync("429:30,201", 3, 100L, 600L, 30000L);
+        expect("the send succeeds", outcome.failure == null);
+        expectGaps(outcome.gaps(), 2, new long[]{600L, 600L});
+    }
+
+    private void maxAttempts() {
+        System.out.println("503, 503, 503, 201 with 3 attempts");
+        Outcome outcome = sync("503,503,503,201", 3, 50L, 100L, 30000L);
+        expect("the send fails", outcome.failure != null);
+        expectGaps(outcome.gaps(), 3, new long[]{25L, 50L}, new long[]{50L, 100L});
+    }
+
+    private void permanentFailure() {
+        System.out.println("400, 201");
+        Outcome outcome = sync("400,201", 3, 50L, 100L, 30000L);
+        expect("the send fails", outcome.failure != null);
+        expectGaps(outcome.gaps(), 1);
+    }
+
+    private void syncBudget() {
+        System.out.println("503 six times with a 500 ms sync retry budget and 300 ms delays");
+        long start = System.nanoTime();
+        Outcome outcome = sync("503,503,503,503,503,503,201", 10, 300L, 300L, 500L);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        expect("the send fails", outcome.failure != null);
+        int attempts = outcome.times.size();
+        expect("2 to 4 attempts are made, got " + attempts, attempts >= 2 && attempts <= 4);
+        expect("the send gives up within the budget, took " + elapsed + " ms", elapsed < 500L + SLACK_MILLIS);
+    }
+
+    private void queued() throws Exception {
+        System.out.println("503, 429, 201 queued with 100 ms base delay");
+        Outcome outcome = queued("503,429:0,201", 4, 100L, 1000L, 30000L);
+        expect("the delivery completes without a failure", outcome.failure == null);
+        expectGaps(outcome.gaps(), 3, new long[]{50L, 100L}, new long[]{100L, 200L});
+    }
+
+    private void expiry() throws Exception {
+        System.out.println("503 five times queued for a code expiring in 500 ms, 300 ms delays");
+        Outcome outcome = queued("503,503,503,503,503,201", 10, 300L, 300L, 500L);
+        expect("the delivery completes with a failure", outcome.failure != null);
+        int attempts = outcome.times.size();
+        expect("2 to 3 attempts are made, got " + attempts, attempts >= 2 && attempts <= 3);
+    }
+
+    private Outcome sync(String script, int maxAttempts, long baseDelay, long maxDelay, long budgetMillis) {
+        OTPSettings settings = settings(maxAttempts, baseDelay, maxDelay);
+        SmsRouter router = new SmsRouter();
+        OTPOutbox outbox = new OTPOutbox(dispatcher, budgetMillis);
+        twilio.script(script);
+        twilio.takeRequestTimes();
+        Exception failure = null;
+        try {
+            outbox.send(() -> send(router, settings), settings.getRetryPolicy(), System.currentTimeMillis() + 60000L);
+        } catch (Exception e) {
+            failure = e;
+        } finally {
+            outbox.close();
+        }
+        return new Outcome(twilio.takeRequestTimes(), failure);
+    }
+
+    private Outcome queued(String script, int maxAttempts, long baseDelay, long maxDelay, long expiresInMillis)
+        throws Exception {
+        OTPSettings settings = settings(maxAttempts, baseDelay, maxDelay);
+        SmsRouter router = new SmsRouter();
+        OTPOutbox outbox = new OTPOutbox(dispatcher, 0L);
+        twilio.script(script);
+        twilio.takeRequestTimes();
+        CompletableFuture<Exception> completed = new CompletableFuture<>();
+        try {
+            boolean accepted = outbox.enqueue(() -> send(router, settings), settings.getRetryPolicy(),
+                System.currentTimeMillis() + expiresInMillis, completed::complete);
+            expect("the delivery is queued", accepted);
+            Exception failure = completed.get(10, TimeUnit.SECONDS);
+            return new Outcome(twilio.takeRequestTimes(), failure);
+        } finally {
+            outbox.close();
+        }
+    }
+
+    private void send(SmsRouter router, OTPSettings settings) throws Exception {
+        router.send(settings.getSmsRouting(), httpClient, PHONE_NUMBER, "Your code is 123456", null,
+            Duration.ofSeconds(5), metrics, tracer);
+    }
+
+    private OTPSettings settings(int maxAttempts, long baseDelay, long maxDelay) {
+        Map<String, String> config = new HashMap<>();
+        config.put("twilioAccountSid", "AC00000000000000000000000000000000");
+        config.put("twilioAuthToken", "retry");
+        config.put("twilioFromNumber", "+15005550006");
+        config.put("twilioBaseUrl", twilio.getBaseUrl());
+        config.put("deliveryMaxAttempts", Integer.toString(maxAttempts));
+        config.put("deliveryRetryBaseDelay", Long.toString(baseDelay));
+        config.put("deliveryRetryMaxDelay", Long.toString(maxDelay));
+        return OTPSettings.fromConfig(config, "retry");
+    }
+
+    // Expects the given number of attempts, each gap within its [min, max] backoff plus slack
+    private void expectGaps(long[] gaps, int attempts, long[]... bounds) {
+        expect("attempts arriving: " + (gaps.length + 1) + ", expected " + attempts, gaps.length + 1 == attempts);
+        for (int i = 0; i < Math.min(gaps.length, bounds.length); i++) {
+            long min = bounds[i][0];
+            long max = bounds[i][1];
+            expect(String.format("gap %d of %d ms is within %d..%d ms", i + 1, gaps[i], min, max),
+                gaps[i] >= min - TRUNCATION_MILLIS && gaps[i] <= max + SLACK_MILLIS);
+        }
+    }
+
+    private void expect(String description, boolean condition) {
+        System.out.printf("  %-6s %s%n", condition ? "ok" : "FAILED", description);
+        passed &= condition;
+    }
+
+    private static final class Outcome {
+        private final List<Long> times;
+        private final Exception failure;
+
+        Outcome(List<Long> times, Exception failure) {
+            this.times = times;
+            this.failure = failure;
+        }
+
+        long[] gaps() {
+            long[] gaps = new long[Math.max(0, times.size() - 1)];
+            for (int i = 0; i < gaps.length; i++) {
+                gaps[i] = times.get(i + 1) - times.get(i);
+            }
+            return gaps;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.fastkeycloak.otp.email;
+
+import freemarker.cache.ClassTemplateLoader;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import org.keycloak.theme.beans.MessageFormatterMethod;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.StringWriter;
+import java.text.MessageFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering the subject and both bodies of an OTP email: FreeMarker with cached templates, as
+ * {@code EmailTemplateProvider} does, against splicing the values into a {@link PrecompiledEmail}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EmailRenderingBenchmark {
+    private static final String SUBJECT = "Your Authentication Code";
+
+    public String code = "482913";
+    public String realmName = "Example & Co";
+
+    private final Locale locale = Locale.ENGLISH;
+    private Properties messages;
+    private Template textTemplate;
+    private Template htmlTemplate;
+    private PrecompiledEmail precompiled;
+
+    @Setup
+    public void setUp() throws Exception {
+        Configuration freeMarker = new Configuration(Configuration.VERSION_2_3_32);
+        freeMarker.setTemplateLoader(new ClassTemplateLoader(EmailRenderingBenchmark.class, "/theme-resources/templates"));
+        textTemplate = freeMarker.getTemplate("text/otp-email.ftl");
+        htmlTemplate = freeMarker.getTemplate("html/otp-email.ftl");
+        messages = new Properties();
+
+        Map<String, Object> slots = PrecompiledEmail.slotAttributes();
+        slots.putAll(commonAttributes());
+        precompiled = new PrecompiledEmail(subject(), process(textTemplate, slots), process(htmlTemplate, slots));
+    }
+
+    private Map<String, Object> commonAttributes() {
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put("locale", locale);
+        attributes.put("msg", new MessageFormatterMethod(locale, messages));
+        attributes.put("properties", new Properties());
+        return attributes;
+    }
+
+    private String subject() {
+        return new MessageFormat(messages.getProperty(SUBJECT, SUBJECT), locale).format(new Object[0]);
+    }
+
+    private static String process(Template template, Map<String, Object> attributes) throws Exception {
+        StringWriter out = new StringWriter();
+        template.process(attributes, out);
+        return out.toString();
+    }
+
+    @Benchmark
+    public void freeMarker(Blackhole blackhole) throws Exception {
+        Map<String, Object> attributes = commonAttributes();
+        attributes.put("code", code);
+        attributes.put("ttl", 5);
+        attributes.put("realmName", realmName);
+        blackhole.consume(subject());
+        blackhole.consume(process(textTemplate, attributes));
+        blackhole.consume(process(htmlTemplate, attributes));
+    }
+
+    @Benchmark
+    public void precompiled(Blackhole blackhole) {
+        blackhole.consume(precompiled.getSubject());
+        blackhole.consume(precompiled.renderText(code, "5", realmName));
+        blackhole.consume(precompiled.renderHtml(code, "5", realmName));
+    }
+}
@@ -0,0 +1,389 @@
+package com.fastkeycloak.otp.loadtest;
+
+import com.fastkeycloak.otp.MultiChannelOTPAuthenticator;
+import com.fastkeycloak.otp.MultiChannelOTPAuthenticatorFactory;
+import com.fastkeycloak.otp.benchmark.Stubs;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.keycloak.email.DefaultEmailAuthenticator;
+import org.keycloak.email.DefaultEmailSenderProvider;
+import org.keycloak.email.EmailAuthenticator;
+import org.keycloak.email.EmailSenderProvider;
+import org.keycloak.email.EmailTemplateProvider;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.KeyManager;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.ThemeManager;
+import org.keycloak.models.UserModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.theme.Theme;
+import org.keycloak.theme.freemarker.FreeMarkerProvider;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives complete OTP logins ({@code authenticate} followed by {@code action} with the delivered code) from many
+ * threads against local Twilio stubs and an SMTP sink, and reports throughput and latency per channel.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.fastkeycloak.otp.loadtest.LoadTest --channel=both --concurrency=64 --duration=60
+ * </pre>
+ *
+ * With more than one stub ({@code --twilio-stubs}, {@code --http-stubs}) every stub becomes a sender of the SMS
+ * router; latency and error options then take comma-separated values per stub. {@code --duplicates=N} submits the
+ * first step of every login N times concurrently on copies of the same authentication session, like a double-click,
+ * and keeps one copy at random as the last writer. {@code --config.precompileEmailTemplates=true} sends emails through
+ * Keycloak's sender, one SMTP connection each, and {@code --config.pooledSmtp=true} through the pooled connections;
+ * the SMTP sink reports messages against connections.
+ */
+public final class LoadTest {
+    private static final String FROM_NUMBER = "+15005550006";
+
+    private static final class ChannelStats {
+        final String channel;
+        final Histogram latencyMicros = new ConcurrentHistogram(TimeUnit.MINUTES.toMicros(5), 3);
+        final AtomicLong succeeded = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+
+        ChannelStats(String channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final Map<String, String> options;
+    private final MultiChannelOTPAuthenticatorFactory factory = new MultiChannelOTPAuthenticatorFactory();
+    private final MultiChannelOTPAuthenticator authenticator;
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final Map<String, AuthenticatorConfigModel> configs = new HashMap<>();
+    private final Map<String, ChannelStats> stats = new LinkedHashMap<>();
+    private final List<TwilioStub> twilioStubs = new ArrayList<>();
+    private final int httpStubs;
+    private final SmtpSink smtp;
+    private final int duplicates;
+    private final AtomicLong logins = new AtomicLong();
+    private final ExecutorService duplicateRequests = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "loadtest-duplicate");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean recording;
+
+    private LoadTest(Map<String, String> options) throws Exception {
+        this.options = options;
+        httpStubs = intOption("http-stubs", 0);
+        duplicates = Math.max(1, intOption("duplicates", 1));
+        int stubs = intOption("twilio-stubs", 1) + httpStubs;
+        for (int i = 0; i < stubs; i++) {
+            twilioStubs.add(new TwilioStub(i == 0 ? intOption("twilio-port", 0) : 0,
+                Long.parseLong(perStub("twilio-latency", i, "50")),
+                Double.parseDouble(perStub("twilio-error-rate", i, "0")),
+                Integer.parseInt(perStub("twilio-error-status", i, "500"))));
+        }
+        smtp = new SmtpSink(intOption("smtp-port", 0));
+
+        Map<String, String> smtpConfig = new HashMap<>();
+        smtpConfig.put("host", "127.0.0.1");
+        smtpConfig.put("port", Integer.toString(smtp.getPort()));
+        smtpConfig.put("from", "otp@loadtest.local");
+        Map<String, Stubs.Answer> realmAnswers = new HashMap<>();
+        realmAnswers.put("getId", args -> "loadtest");
+        realmAnswers.put("getName", args -> "loadtest");
+        realmAnswers.put("getSmtpConfig", args -> smtpConfig);
+        realm = Stubs.proxy(RealmModel.class, realmAnswers);
+        session = emailSession(smtpConfig);
+
+        factory.init(Stubs.defaultScope());
+        factory.postInit(null);
+        authenticator = new MultiChannelOTPAuthenticator(factory);
+
+        String channel = options.getOrDefault("channel", "both");
+        for (String name : "both".equals(channel) ? List.of("sms", "email") : List.of(channel)) {
+            configs.put(name, Stubs.config("loadtest-" + name, authenticatorConfig(name)));
+            stats.put(name, new ChannelStats(name));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        new LoadTest(options).run();
+    }
+
+    private void run() throws Exception {
+        int concurrency = intOption("concurrency", 32);
+        long warmupMillis = TimeUnit.SECONDS.toMillis(intOption("warmup", 5));
+        long durationMillis = TimeUnit.SECONDS.toMillis(intOption("duration", 30));
+        List<ChannelStats> channels = new ArrayList<>(stats.values());
+
+        long start = System.currentTimeMillis();
+        long measureFrom = start + warmupMillis;
+        long deadline = measureFrom + durationMillis;
+        CountDownLatch done = new CountDownLatch(concurrency);
+        for (int worker = 0; worker < concurrency; worker++) {
+            int id = worker;
+            Thread thread = new Thread(() -> {
+                try {
+                    UserModel user = Stubs.user("user-" + id, "user" + id + "@loadtest.local",
+                        String.format("+4915%09d", id));
+                    for (long flow = 0; System.currentTimeMillis() < deadline; flow++) {
+                        ChannelStats channel = channels.get((int) ((id + flow) % channels.size()));
+                        login(user, channel);
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }, "loadtest-" + worker);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        System.out.printf("Warming up for %d s with %d concurrent logins%n", warmupMillis / 1000, concurrency);
+        TimeUnit.MILLISECONDS.sleep(Math.max(0L, measureFrom - System.currentTimeMillis()));
+        recording = true;
+        System.out.printf("Measuring for %d s%n", durationMillis / 1000);
+        done.await();
+        recording = false;
+        report(durationMillis);
+
+        factory.close();
+        duplicateRequests.shutdownNow();
+        twilioStubs.forEach(TwilioStub::close);
+        smtp.close();
+    }
+
+    private void login(UserModel user, ChannelStats channel) {
+        String rootSessionId = "login-" + logins.incrementAndGet();
+        Map<String, String> notes = new HashMap<>();
+        AuthenticationSessionModel authSession = Stubs.authSession(rootSessionId, notes);
+        AuthenticatorConfigModel config = configs.get(channel.channel);
+        String[] outcome = new String[1];
+
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            if (duplicates == 1) {
+                authenticator.authenticate(Stubs.flowContext(session, realm, user, config, authSession,
+                    Stubs.httpRequest(Stubs.form()), "127.0.0.1", outcome));
+            } else {
+                authenticateConcurrently(user, config, rootSessionId, notes, outcome);
+            }
+            String code = "sms".equals(channel.channel)
+                ? takeSmsCode(user.getFirstAttribute("phoneNumberE164")) : smtp.takeCode(user.getEmail());
+            if ("challenge".equals(outcome[0]) && code != null) {
+                authenticator.action(Stubs.flowContext(session, realm, user, config, authSession,
+                    Stubs.httpRequest(Stubs.form("code", code)), "127.0.0.1", outcome));
+                succeeded = "success".equals(outcome[0]);
+            }
+        } catch (RuntimeException e) {
+            // counted as a failed login
+        }
+        if (recording) {
+            channel.latencyMicros.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start),
+                channel.latencyMicros.getHighestTrackableValue()));
+            (succeeded ? channel.succeeded : channel.failed).incrementAndGet();
+        }
+    }
+
+    private void authenticateConcurrently(UserModel user, AuthenticatorConfigModel config, String rootSessionId,
+                                          Map<String, String> notes, String[] outcome) {
+        List<Map<String, String>> copies = new ArrayList<>();
+        List<String[]> outcomes = new ArrayList<>();
+        List<Future<?>> requests = new ArrayList<>();
+        for (int i = 0; i < duplicates; i++) {
+            Map<String, String> copy = new HashMap<>(notes);
+            String[] copyOutcome = new String[1];
+            copies.add(copy);
+            outcomes.add(copyOutcome);
+            requests.add(duplicateRequests.submit(() -> authenticator.authenticate(Stubs.flowContext(session, realm,
+                user, config, Stubs.authSession(rootSessionId, copy), Stubs.httpRequest(Stubs.form()), "127.0.0.1",
+                copyOutcome))));
+        }
+        for (Future<?> request : requests) {
+            try {
+                request.get();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        int lastWriter = ThreadLocalRandom.current().nextInt(duplicates);
+        notes.clear();
+        notes.putAll(copies.get(lastWriter));
+        outcome[0] = outcomes.get(lastWriter)[0];
+    }
+
+    private void report(long durationMillis) {
+        System.out.printf("%-8s %10s %10s %12s %10s %10s %10s %10s%n",
+            "channel", "logins", "failed", "logins/s", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        for (ChannelStats channel : stats.values()) {
+            Histogram latency = channel.latencyMicros;
+            System.out.printf("%-8s %10d %10d %12.1f %10.2f %10.2f %10.2f %10.2f%n",
+                channel.channel, channel.succeeded.get(), channel.failed.get(),
+                channel.succeeded.get() * 1000.0 / durationMillis,
+                latency.getValueAtPercentile(50.0) / 1000.0,
+                latency.getValueAtPercentile(99.0) / 1000.0,
+                latency.getValueAtPercentile(99.9) / 1000.0,
+                latency.getMaxValue() / 1000.0);
+        }
+        for (int i = 0; i < twilioStubs.size(); i++) {
+            TwilioStub stub = twilioStubs.get(i);
+            System.out.printf("SMS stub %s: %d accepted, %d rejected%n", stubName(i), stub.getAccepted(), stub.getRejected());
+        }
+        System.out.printf("SMTP sink: %d messages over %d connections%n", smtp.getReceived(), smtp.getConnections());
+    }
+
+    private String takeSmsCode(String phoneNumber) {
+        for (TwilioStub stub : twilioStubs) {
+            String code = stub.takeCode(phoneNumber);
+            if (code != null) {
+                return code;
+            }
+        }
+        return null;
+    }
+
+    // Twilio stubs come first, the stubs addressed as generic HTTP gateways last
+    private String stubName(int index) {
+        int twilioCount = twilioStubs.size() - httpStubs;
+        return index < twilioCount ? "twilio-" + (index + 1) : "http-" + (index - twilioCount + 1);
+    }
+
+    // Senders for the SMS router, one per stub
+    private String smsSenders() {
+        StringBuilder json = new StringBuilder("[");
+        String rate = options.getOrDefault("sms-rate", "0");
+        for (int i = 0; i < twilioStubs.size(); i++) {
+            String name = stubName(i);
+            String baseUrl = twilioStubs.get(i).getBaseUrl();
+            json.append(i == 0 ? "" : ",").append("{\"id\":\"").append(name).append("\",\"messagesPerSecond\":").append(rate);
+            if (name.startsWith("twilio")) {
+                json.append(",\"type\":\"twilio\",\"from\":\"").append(FROM_NUMBER)
+                    .append("\",\"baseUrl\":\"").append(baseUrl).append("\"}");
+            } else {
+                json.append(",\"type\":\"http\",\"url\":\"").append(baseUrl)
+                    .append("/2010-04-01/Accounts/gateway/Messages.json\",\"messageIdField\":\"sid\"")
+                    .append(",\"body\":\"To=${to}&From=${from}&Body=${message}\",\"from\":\"").append(FROM_NUMBER)
+                    .append("\"}");
+            }
+        }
+        return json.append(']').toString();
+    }
+
+    private String perStub(String name, int index, String defaultValue) {
+        String[] values = options.getOrDefault(name, defaultValue).split(",");
+        return values[Math.min(index, values.length - 1)].trim();
+    }
+
+    private Map<String, String> authenticatorConfig(String channel) {
+        Map<String, String> config = new HashMap<>();
+        config.put("forcedChannel", channel);
+        config.put("allowUserChoice", "false");
+        config.put("logVerbosity", "off");
+        config.put("sendRateLimit", "0");
+        config.put("ipSendRateLimit", "0");
+        config.put("verifyRateLimit", "0");
+        config.put("ipVerifyRateLimit", "0");
+        config.put("countryCode", "+49");
+        config.put("twilioAccountSid", "AC00000000000000000000000000000000");
+        config.put("twilioAuthToken", "loadtest");
+        config.put("twilioFromNumber", FROM_NUMBER);
+        config.put("twilioBaseUrl", twilioStubs.get(0).getBaseUrl());
+        if (twilioStubs.size() > 1) {
+            config.put("smsSenders", smsSenders());
+        }
+        // --config.<name>=<value> overrides any authenticator setting, e.g. --config.asyncDelivery=true
+        options.forEach((key, value) -> {
+            if (key.startsWith("config.")) {
+                config.put(key.substring("config.".length()), value);
+            }
+        });
+        return config;
+    }
+
+    // Renders precompiled templates from a stand-in theme whose bodies carry the code the way the sink expects it
+    private KeycloakSession emailSession(Map<String, String> smtpConfig) {
+        Map<String, Stubs.Answer> themeAnswers = new HashMap<>();
+        themeAnswers.put("getName", args -> "loadtest");
+        themeAnswers.put("getEnhancedMessages", args -> new Properties());
+        themeAnswers.put("getProperties", args -> new Properties());
+        Theme theme = Stubs.proxy(Theme.class, themeAnswers);
+        Map<String, Stubs.Answer> themeManagerAnswers = new HashMap<>();
+        themeManagerAnswers.put("isCacheEnabled", args -> true);
+        themeManagerAnswers.put("getTheme", args -> theme);
+        ThemeManager themes = Stubs.proxy(ThemeManager.class, themeManagerAnswers);
+        Map<String, Stubs.Answer> contextAnswers = new HashMap<>();
+        contextAnswers.put("resolveLocale", args -> Locale.ENGLISH);
+        KeycloakContext context = Stubs.proxy(KeycloakContext.class, contextAnswers);
+        Map<String, Stubs.Answer> freeMarkerAnswers = new HashMap<>();
+        freeMarkerAnswers.put("processTemplate", args -> {
+            String text = "Your code is OTP-CODE:" + ((Map<?, ?>) args[0]).get("code");
+            return ((String) args[1]).startsWith("html/") ? "<p>" + text + "</p>" : text;
+        });
+        FreeMarkerProvider freeMarker = Stubs.proxy(FreeMarkerProvider.class, freeMarkerAnswers);
+
+        KeyManager keys = Stubs.keys();
+        Map<String, Stubs.Answer> answers = new HashMap<>();
+        answers.put("keys", args -> keys);
+        answers.put("theme", args -> themes);
+        answers.put("getContext", args -> context);
+        answers.put("getProvider", args -> {
+            if (args[0] == EmailTemplateProvider.class) {
+                return emailTemplateProvider(smtpConfig);
+            }
+            if (args[0] == EmailSenderProvider.class) {
+                return emailSender();
+            }
+            return args[0] == FreeMarkerProvider.class ? freeMarker : null;
+        });
+        return Stubs.proxy(KeycloakSession.class, answers);
+    }
+
+    private EmailSenderProvider emailSender() {
+        return new DefaultEmailSenderProvider(session,
+            Map.of(EmailAuthenticator.AuthenticatorType.NONE, new DefaultEmailAuthenticator()));
+    }
+
+    private EmailTemplateProvider emailTemplateProvider(Map<String, String> smtpConfig) {
+        UserModel[] recipient = new UserModel[1];
+        EmailTemplateProvider[] self = new EmailTemplateProvider[1];
+        Map<String, Stubs.Answer> answers = new HashMap<>();
+        answers.put("setUser", args -> {
+            recipient[0] = (UserModel) args[0];
+            return self[0];
+        });
+        answers.put("send", args -> {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> attributes = (Map<String, Object>) args[args.length - 1];
+            String text = "Your code is OTP-CODE:" + attributes.get("code");
+            emailSender().send(smtpConfig, recipient[0], (String) args[0], text, "<p>" + text + "</p>");
+            return null;
+        });
+        self[0] = Stubs.proxy(EmailTemplateProvider.class, answers);
+        return self[0];
+    }
+
+    private int intOption(String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+}
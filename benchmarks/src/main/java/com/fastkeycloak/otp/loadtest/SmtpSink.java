@@ -0,0 +1,140 @@
+package com.fastkeycloak.otp.loadtest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal SMTP server that accepts every message and keeps the last OTP code sent to each recipient. It speaks
+ * just enough of RFC 5321 for Jakarta Mail without authentication or TLS, and counts connections apart from messages
+ * so connection reuse shows up in the numbers.
+ */
+public class SmtpSink implements AutoCloseable {
+    private static final Pattern ADDRESS = Pattern.compile("<([^>]*)>");
+    private static final Pattern CODE = Pattern.compile("OTP-CODE:([0-9A-Z]+)");
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor;
+    private final Map<String, String> lastCodes = new ConcurrentHashMap<>();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong connections = new AtomicLong();
+
+    public SmtpSink(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "smtp-sink");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.execute(this::acceptLoop);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public String takeCode(String recipient) {
+        return lastCodes.remove(recipient.toLowerCase(Locale.ROOT));
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    public long getConnections() {
+        return connections.get();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.incrementAndGet();
+                executor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+            reply(out, "220 localhost SMTP sink");
+            String recipient = null;
+            String line;
+            while ((line = in.readLine()) != null) {
+                String command = line.length() >= 4 ? line.substring(0, 4).toUpperCase(Locale.ROOT) : line.toUpperCase(Locale.ROOT);
+                switch (command) {
+                    case "EHLO":
+                        reply(out, "250-localhost\r\n250 8BITMIME");
+                        break;
+                    case "HELO":
+                    case "MAIL":
+                    case "NOOP":
+                        reply(out, "250 OK");
+                        break;
+                    case "RSET":
+                        recipient = null;
+                        reply(out, "250 OK");
+                        break;
+                    case "RCPT":
+                        Matcher address = ADDRESS.matcher(line);
+                        recipient = address.find() ? address.group(1).toLowerCase(Locale.ROOT) : null;
+                        reply(out, "250 OK");
+                        break;
+                    case "DATA":
+                        reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                        String code = null;
+                        while ((line = in.readLine()) != null && !line.equals(".")) {
+                            Matcher matcher = CODE.matcher(line);
+                            if (code == null && matcher.find()) {
+                                code = matcher.group(1);
+                            }
+                        }
+                        if (recipient != null && code != null) {
+                            lastCodes.put(recipient, code);
+                        }
+                        received.incrementAndGet();
+                        reply(out, "250 OK queued");
+                        break;
+                    case "QUIT":
+                        reply(out, "221 Bye");
+                        return;
+                    default:
+                        reply(out, "502 Command not implemented");
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            // client went away
+        }
+    }
+
+    private static void reply(Writer out, String line) throws IOException {
+        out.write(line);
+        out.write("\r\n");
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+}
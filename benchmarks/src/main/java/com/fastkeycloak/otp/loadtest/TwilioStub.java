@@ -0,0 +1,195 @@
+package com.fastkeycloak.otp.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local stand-in for Twilio's {@code /2010-04-01/Accounts/{sid}/Messages.json}. Each request waits for the
+ * configured latency and then either fails with the configured status or answers like Twilio does. A scripted
+ * status sequence, such as {@code 429,503,201}, takes precedence over the error rate until it is used up. The last
+ * code sent to every number is kept so a driver can complete the login.
+ */
+public class TwilioStub implements AutoCloseable {
+    private static final Pattern MESSAGES_PATH = Pattern.compile("/2010-04-01/Accounts/([^/]+)/Messages\\.json");
+    private static final Pattern CODE = Pattern.compile("([0-9A-Z]{4,})\\s*$");
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long latencyMillis;
+    private final double errorRate;
+    private final int errorStatus;
+    private final Map<String, String> lastCodes = new ConcurrentHashMap<>();
+    private final Queue<String> script = new ConcurrentLinkedQueue<>();
+    private final Queue<Long> requestTimes = new ConcurrentLinkedQueue<>();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong probes = new AtomicLong();
+    private volatile String lastTraceParent;
+
+    public TwilioStub(int port, long latencyMillis, double errorRate, int errorStatus) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.errorRate = errorRate;
+        this.errorStatus = errorStatus;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "twilio-stub");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/2010-04-01/Accounts/", this::handle);
+        server.createContext("/", this::probe);
+        server.start();
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public String takeCode(String phoneNumber) {
+        return lastCodes.remove(phoneNumber);
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Answers the next requests with the given comma-separated statuses, one per request, before falling back to the
+     * error rate. A 429 or 503 may carry its Retry-After in seconds, as in {@code 429:2}; without one a 429 gets
+     * {@code Retry-After: 1} and a 503 none.
+     */
+    public void script(String statuses) {
+        script.clear();
+        for (String status : statuses.split(",")) {
+            if (!status.isBlank()) {
+                script.add(status.trim());
+            }
+        }
+    }
+
+    // Arrival times of the Messages API requests since the last call, in System.nanoTime() milliseconds
+    public List<Long> takeRequestTimes() {
+        List<Long> times = new ArrayList<>();
+        for (Long time; (time = requestTimes.poll()) != null; ) {
+            times.add(time);
+        }
+        return times;
+    }
+
+    // Requests outside the Messages API, such as a client connecting ahead of its first message
+    public long getProbes() {
+        return probes.get();
+    }
+
+    // W3C trace context of the last request, null if it carried none
+    public String getLastTraceParent() {
+        return lastTraceParent;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            Matcher path = MESSAGES_PATH.matcher(exchange.getRequestURI().getPath());
+            if (!"POST".equals(exchange.getRequestMethod()) || !path.matches()) {
+                respond(exchange, 404, "{\"code\":20404,\"message\":\"The requested resource was not found\"}");
+                return;
+            }
+            requestTimes.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime()));
+            lastTraceParent = exchange.getRequestHeaders().getFirst("traceparent");
+            Map<String, String> form = parseForm(exchange.getRequestBody());
+            if (latencyMillis > 0) {
+                TimeUnit.MILLISECONDS.sleep(latencyMillis);
+            }
+            String scripted = script.poll();
+            int status = 201;
+            String retryAfter = null;
+            if (scripted != null) {
+                int separator = scripted.indexOf(':');
+                status = Integer.parseInt(separator < 0 ? scripted : scripted.substring(0, separator));
+                retryAfter = separator < 0 ? null : scripted.substring(separator + 1);
+            } else if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                status = errorStatus;
+            }
+            if (status >= 300) {
+                rejected.incrementAndGet();
+                if (retryAfter == null && status == 429) {
+                    retryAfter = "1";
+                }
+                if (retryAfter != null) {
+                    exchange.getResponseHeaders().set("Retry-After", retryAfter);
+                }
+                respond(exchange, status, "{\"code\":20500,\"message\":\"Injected failure\",\"status\":" + status + "}");
+                return;
+            }
+            String to = form.get("To");
+            Matcher code = CODE.matcher(form.getOrDefault("Body", ""));
+            if (to != null && code.find()) {
+                lastCodes.put(to, code.group(1));
+            }
+            accepted.incrementAndGet();
+            respond(exchange, 201, "{\"sid\":\"SM" + Long.toHexString(accepted.get()) + "\",\"account_sid\":\""
+                + path.group(1) + "\",\"status\":\"queued\"}");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void probe(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            probes.incrementAndGet();
+            exchange.sendResponseHeaders(404, -1);
+        }
+    }
+
+    private static Map<String, String> parseForm(InputStream body) throws IOException {
+        Map<String, String> form = new ConcurrentHashMap<>();
+        String encoded = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+        for (String pair : encoded.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                form.put(URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return form;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
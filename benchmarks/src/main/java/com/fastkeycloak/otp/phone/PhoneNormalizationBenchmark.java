@@ -0,0 +1,47 @@
+package com.fastkeycloak.otp.phone;
+
+import com.fastkeycloak.otp.benchmark.Stubs;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PhoneNormalizationBenchmark {
+
+    @Param({"+49 176 1234567", "0176 1234567", "0049 (176) 123-4567", "not a number"})
+    public String phoneNumber;
+
+    private UserModel cachedUser;
+
+    @Setup
+    public void setUp() {
+        cachedUser = Stubs.user("user", null, phoneNumber);
+        PhoneNumberNormalizer.resolve(cachedUser, "+49");
+    }
+
+    @Benchmark
+    public String normalize() {
+        return PhoneNumberNormalizer.normalize(phoneNumber, "+49");
+    }
+
+    @Benchmark
+    public String resolveCached() {
+        return PhoneNumberNormalizer.resolve(cachedUser, "+49");
+    }
+}
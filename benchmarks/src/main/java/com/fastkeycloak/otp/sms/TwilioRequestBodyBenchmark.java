@@ -0,0 +1,32 @@
+package com.fastkeycloak.otp.sms;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TwilioRequestBodyBenchmark {
+
+    public String template = "Your verification code is: %s";
+    public String code = "482913";
+    public String to = "+491761234567";
+    public String from = "+15005550006";
+
+    @Benchmark
+    public String buildRequestBody() {
+        return TwilioSender.buildRequestBody(to, from, String.format(template, code));
+    }
+}
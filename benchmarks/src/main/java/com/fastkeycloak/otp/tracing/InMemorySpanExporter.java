@@ -0,0 +1,46 @@
+package com.fastkeycloak.otp.tracing;
+
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Keeps finished spans in memory, in the order they ended, so their structure can be checked without a collector.
+ */
+public class InMemorySpanExporter implements SpanExporter {
+    private final List<SpanData> spans = new ArrayList<>();
+    private boolean stopped;
+
+    @Override
+    public synchronized CompletableResultCode export(Collection<SpanData> batch) {
+        if (stopped) {
+            return CompletableResultCode.ofFailure();
+        }
+        spans.addAll(batch);
+        return CompletableResultCode.ofSuccess();
+    }
+
+    public synchronized List<SpanData> getFinishedSpans() {
+        return new ArrayList<>(spans);
+    }
+
+    public synchronized void reset() {
+        spans.clear();
+    }
+
+    @Override
+    public CompletableResultCode flush() {
+        return CompletableResultCode.ofSuccess();
+    }
+
+    @Override
+    public synchronized CompletableResultCode shutdown() {
+        stopped = true;
+        spans.clear();
+        return CompletableResultCode.ofSuccess();
+    }
+}
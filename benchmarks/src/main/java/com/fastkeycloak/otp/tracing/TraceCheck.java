@@ -0,0 +1,264 @@
+package com.fastkeycloak.otp.tracing;
+
+import com.fastkeycloak.otp.MultiChannelOTPAuthenticator;
+import com.fastkeycloak.otp.MultiChannelOTPAuthenticatorFactory;
+import com.fastkeycloak.otp.benchmark.Stubs;
+import com.fastkeycloak.otp.logging.PiiMasker;
+import com.fastkeycloak.otp.loadtest.TwilioStub;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Scope;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+import jakarta.ws.rs.core.MultivaluedMap;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.email.EmailTemplateProvider;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.KeyManager;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.tracing.TracingAttributes;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs logins through the authenticator with an in-memory span exporter and checks the spans they leave: the flow
+ * steps join the span of the request, every send has its provider and client spans with masked recipients, and the
+ * W3C trace context reaches the SMS vendor. Exits with status 1 if any check fails.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.fastkeycloak.otp.tracing.TraceCheck
+ * </pre>
+ */
+public final class TraceCheck {
+    private static final String PHONE_NUMBER = "+4915000000001";
+    private static final String EMAIL = "trace@check.local";
+
+    private final InMemorySpanExporter exporter = new InMemorySpanExporter();
+    private final SdkTracerProvider tracerProvider = SdkTracerProvider.builder()
+        .addSpanProcessor(SimpleSpanProcessor.create(exporter))
+        .build();
+    // Plays the part of Keycloak's HTTP server instrumentation
+    private final Tracer requestTracer;
+    private final MultiChannelOTPAuthenticatorFactory factory = new MultiChannelOTPAuthenticatorFactory();
+    private final MultiChannelOTPAuthenticator authenticator;
+    private final RealmModel realm = Stubs.realm("trace", "trace");
+    private final Map<String, String> emailCodes = new HashMap<>();
+    private final KeycloakSession session;
+    private int logins;
+    private boolean passed = true;
+
+    private TraceCheck() {
+        OpenTelemetrySdk.builder().setTracerProvider(tracerProvider).buildAndRegisterGlobal();
+        requestTracer = tracerProvider.get("keycloak");
+
+        Map<String, Stubs.Answer> templateAnswers = new HashMap<>();
+        templateAnswers.put("send", args -> {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> attributes = (Map<String, Object>) args[args.length - 1];
+            emailCodes.put(EMAIL, (String) attributes.get("code"));
+            return null;
+        });
+        EmailTemplateProvider templates = Stubs.proxy(EmailTemplateProvider.class, templateAnswers);
+        KeyManager keys = Stubs.keys();
+        Map<String, Stubs.Answer> sessionAnswers = new HashMap<>();
+        sessionAnswers.put("keys", args -> keys);
+        sessionAnswers.put("getProvider", args -> args[0] == EmailTemplateProvider.class ? templates : null);
+        session = Stubs.proxy(KeycloakSession.class, sessionAnswers);
+
+        factory.init(Stubs.defaultScope());
+        factory.postInit(null);
+        authenticator = new MultiChannelOTPAuthenticator(factory);
+    }
+
+    public static void main(String[] args) throws Exception {
+        TraceCheck check = new TraceCheck();
+        try (TwilioStub twilio = new TwilioStub(0, 0L, 0.0, 500);
+             TwilioStub rejecting = new TwilioStub(0, 0L, 1.0, 400)) {
+            check.sms(twilio);
+            check.email();
+            check.rejectedSms(rejecting);
+        } finally {
+            check.close();
+        }
+        System.out.println(check.passed ? "PASSED" : "FAILED");
+        if (!check.passed) {
+            System.exit(1);
+        }
+    }
+
+    private void sms(TwilioStub twilio) {
+        System.out.println("SMS login");
+        UserModel user = Stubs.user("user-sms", null, PHONE_NUMBER);
+        Login login = new Login(user, config("sms", twilio.getBaseUrl()));
+        SpanData authenticateRequest = login.request(authenticator::authenticate, Stubs.form());
+        SpanData actionRequest = login.request(authenticator::action, Stubs.form("code", twilio.takeCode(PHONE_NUMBER)));
+        List<SpanData> spans = exporter.getFinishedSpans();
+        print(spans);
+
+        SpanData authenticate = expectChild(spans, authenticateRequest, "MultiChannelOTPAuthenticator.authenticate");
+        expectAttribute(authenticate, TracingAttributes.REALM_NAME, "trace");
+        expectAttribute(authenticate, OTPTracing.CHANNEL, "sms");
+        expectAttribute(authenticate, OTPTracing.OUTCOME, "sent");
+        expectAttribute(expectChild(spans, authenticate, "MultiChannelOTPAuthenticator.getProvider"),
+            OTPTracing.PROVIDER, "twilio");
+        SpanData send = expectChild(spans, authenticate, "OTPDeliveryProvider.sendOTP");
+        expectAttribute(send, OTPTracing.RECIPIENT, PiiMasker.maskPhone(PHONE_NUMBER));
+        SpanData http = expectChild(spans, send, "SmsSender.send");
+        expect("the Twilio call is a client span", http != null && http.getKind() == SpanKind.CLIENT);
+        expectAttribute(http, OTPTracing.HTTP_STATUS, 201L);
+        expect("Twilio received the trace context of the call", http != null
+            && ("00-" + http.getTraceId() + "-" + http.getSpanId() + "-01").equals(twilio.getLastTraceParent()));
+
+        SpanData action = expectChild(spans, actionRequest, "MultiChannelOTPAuthenticator.action");
+        expectAttribute(action, OTPTracing.OUTCOME, "success");
+        expect("no span carries the phone number", spans.stream()
+            .noneMatch(span -> span.getAttributes().asMap().values().stream()
+                .anyMatch(value -> value.toString().contains(PHONE_NUMBER))));
+    }
+
+    private void email() {
+        System.out.println("Email login");
+        UserModel user = Stubs.user("user-email", EMAIL, null);
+        Login login = new Login(user, config("email", null));
+        SpanData authenticateRequest = login.request(authenticator::authenticate, Stubs.form());
+        SpanData actionRequest = login.request(authenticator::action, Stubs.form("code", emailCodes.remove(EMAIL)));
+        List<SpanData> spans = exporter.getFinishedSpans();
+        print(spans);
+
+        SpanData authenticate = expectChild(spans, authenticateRequest, "MultiChannelOTPAuthenticator.authenticate");
+        expectAttribute(authenticate, OTPTracing.CHANNEL, "email");
+        expectAttribute(authenticate, OTPTracing.OUTCOME, "sent");
+        SpanData send = expectChild(spans, authenticate, "OTPDeliveryProvider.sendOTP");
+        expectAttribute(send, OTPTracing.PROVIDER, "email");
+        expectAttribute(send, OTPTracing.RECIPIENT, PiiMasker.maskEmail(EMAIL));
+        expectChild(spans, send, "EmailTemplateProvider.send");
+        expectAttribute(expectChild(spans, actionRequest, "MultiChannelOTPAuthenticator.action"),
+            OTPTracing.OUTCOME, "success");
+    }
+
+    private void rejectedSms(TwilioStub rejecting) {
+        System.out.println("SMS rejected by the vendor");
+        UserModel user = Stubs.user("user-rejected", null, PHONE_NUMBER);
+        Login login = new Login(user, config("sms", rejecting.getBaseUrl()));
+        SpanData request = login.request(authenticator::authenticate, Stubs.form());
+        List<SpanData> spans = exporter.getFinishedSpans();
+        print(spans);
+
+        SpanData authenticate = expectChild(spans, request, "MultiChannelOTPAuthenticator.authenticate");
+        expectAttribute(authenticate, OTPTracing.OUTCOME, "failed");
+        SpanData send = expectChild(spans, authenticate, "OTPDeliveryProvider.sendOTP");
+        expect("the failed send is marked as an error", send != null && send.getStatus().getStatusCode() == StatusCode.ERROR
+            && !send.getEvents().isEmpty());
+        SpanData http = expectChild(spans, send, "SmsSender.send");
+        expectAttribute(http, OTPTracing.HTTP_STATUS, 400L);
+        expect("the failed call is marked as an error", http != null && http.getStatus().getStatusCode() == StatusCode.ERROR);
+    }
+
+    private final class Login {
+        private final UserModel user;
+        private final AuthenticatorConfigModel config;
+        private final AuthenticationSessionModel authSession = Stubs.authSession(new HashMap<>());
+
+        Login(UserModel user, AuthenticatorConfigModel config) {
+            this.user = user;
+            this.config = config;
+            exporter.reset();
+        }
+
+        // Runs one step in its own request span and returns that span
+        SpanData request(Consumer<AuthenticationFlowContext> step,
+                         MultivaluedMap<String, String> form) {
+            Span span = requestTracer.spanBuilder("POST /realms/trace/login-actions/authenticate")
+                .setSpanKind(SpanKind.SERVER)
+                .startSpan();
+            Scope scope = span.makeCurrent();
+            try {
+                step.accept(Stubs.flowContext(session, realm, user, config, authSession, Stubs.httpRequest(form),
+                    "127.0.0.1", new String[1]));
+            } finally {
+                scope.close();
+                span.end();
+            }
+            return exporter.getFinishedSpans().stream()
+                .filter(data -> data.getSpanId().equals(span.getSpanContext().getSpanId()))
+                .findFirst()
+                .orElseThrow();
+        }
+    }
+
+    // A configuration of its own per login, so settings cached for an earlier one do not apply
+    private AuthenticatorConfigModel config(String channel, String twilioBaseUrl) {
+        Map<String, String> config = new HashMap<>();
+        config.put("forcedChannel", channel);
+        config.put("allowUserChoice", "false");
+        config.put("logVerbosity", "off");
+        config.put("sendRateLimit", "0");
+        config.put("ipSendRateLimit", "0");
+        config.put("verifyRateLimit", "0");
+        config.put("ipVerifyRateLimit", "0");
+        config.put("deliveryMaxAttempts", "1");
+        config.put("countryCode", "+49");
+        config.put("twilioAccountSid", "AC00000000000000000000000000000000");
+        config.put("twilioAuthToken", "trace");
+        config.put("twilioFromNumber", "+15005550006");
+        if (twilioBaseUrl != null) {
+            config.put("twilioBaseUrl", twilioBaseUrl);
+        }
+        return Stubs.config("trace-" + (++logins), config);
+    }
+
+    private SpanData expectChild(List<SpanData> spans, SpanData parent, String name) {
+        SpanData child = parent == null ? null : spans.stream()
+            .filter(span -> span.getParentSpanId().equals(parent.getSpanId()) && span.getName().equals(name))
+            .findFirst()
+            .orElse(null);
+        expect(name + " is a child of " + (parent == null ? "a missing span" : parent.getName()), child != null);
+        return child;
+    }
+
+    private <T> void expectAttribute(SpanData span, AttributeKey<T> key, T value) {
+        T actual = span == null ? null : span.getAttributes().get(key);
+        expect((span == null ? "missing span" : span.getName()) + " has " + key.getKey() + "=" + value
+            + (Objects.equals(actual, value) ? "" : " but was " + actual), Objects.equals(actual, value));
+    }
+
+    private void expect(String description, boolean condition) {
+        System.out.printf("  %-6s %s%n", condition ? "ok" : "FAILED", description);
+        passed &= condition;
+    }
+
+    private static void print(List<SpanData> spans) {
+        spans.stream()
+            .filter(span -> !span.getParentSpanContext().isValid())
+            .forEach(root -> print(spans, root, 1));
+    }
+
+    private static void print(List<SpanData> spans, SpanData span, int depth) {
+        StringBuilder attributes = new StringBuilder();
+        span.getAttributes().forEach((key, value) -> attributes.append(' ').append(key.getKey()).append('=').append(value));
+        System.out.printf("    %s%s %.2f ms%s%s%n", "  ".repeat(depth - 1), span.getName(),
+            TimeUnit.NANOSECONDS.toMicros(span.getEndEpochNanos() - span.getStartEpochNanos()) / 1000.0, attributes,
+            span.getStatus().getStatusCode() == StatusCode.ERROR ? " ERROR" : "");
+        spans.stream()
+            .filter(child -> child.getParentSpanId().equals(span.getSpanId()))
+            .forEach(child -> print(spans, child, depth + 1));
+    }
+
+    private void close() {
+        factory.close();
+        tracerProvider.shutdown();
+    }
+}
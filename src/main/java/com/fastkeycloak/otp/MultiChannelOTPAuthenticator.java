@@ -1,186 +1,461 @@
 package com.fastkeycloak.otp;
 
+import com.fastkeycloak.otp.code.CodeGenerator;
+import com.fastkeycloak.otp.code.CodeGenerator.Alphabet;
+import com.fastkeycloak.otp.config.OTPSettings;
+import com.fastkeycloak.otp.dedup.SendDeduplicator;
+import com.fastkeycloak.otp.dedup.SendResult;
+import com.fastkeycloak.otp.delivery.CircuitBreaker;
+import com.fastkeycloak.otp.delivery.OTPDeliveryException;
+import com.fastkeycloak.otp.delivery.OTPOutbox;
 import com.fastkeycloak.otp.enums.OTPChannel;
-import com.fastkeycloak.otp.providers.EmailOTPProvider;
-import com.fastkeycloak.otp.providers.TwilioSMSProvider;
+import com.fastkeycloak.otp.logging.OTPEventLogger;
+import com.fastkeycloak.otp.logging.OTPEventLogger.Verbosity;
+import com.fastkeycloak.otp.ratelimit.RateLimiter;
+import com.fastkeycloak.otp.metrics.ProviderMetrics;
+import com.fastkeycloak.otp.metrics.ProviderMetrics.SendOutcome;
+import com.fastkeycloak.otp.metrics.RealmMetrics;
+import com.fastkeycloak.otp.metrics.RealmMetrics.SelectionReason;
+import com.fastkeycloak.otp.metrics.RealmMetrics.VerifyOutcome;
+import com.fastkeycloak.otp.phone.PhoneNumberNormalizer;
+import com.fastkeycloak.otp.state.ChannelPreference;
+import com.fastkeycloak.otp.state.OTPState;
+import com.fastkeycloak.otp.status.DeliveryStatusResourceProviderFactory;
+import com.fastkeycloak.otp.status.TrackedMessage;
+import com.fastkeycloak.otp.tracing.OTPTracing;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
 import jakarta.ws.rs.core.Response;
 import org.jboss.logging.Logger;
 import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.authentication.AuthenticationFlowError;
 import org.keycloak.authentication.Authenticator;
-import org.keycloak.common.util.SecretGenerator;
+import org.keycloak.common.util.KeycloakUriBuilder;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
 import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.ClientModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.sessions.RootAuthenticationSessionModel;
+import org.keycloak.tracing.TracingAttributes;
 
-import java.util.Map;
+import java.util.function.Consumer;
 
 public class MultiChannelOTPAuthenticator implements Authenticator {
 
     private static final String CHANNEL_SELECTION_FORM = "channel-selection.ftl";
     private static final String OTP_FORM = "otp-form.ftl";
-    private static final String AUTH_NOTE_CODE = "code";
-    private static final String AUTH_NOTE_TTL = "ttl";
-    private static final String AUTH_NOTE_CHANNEL = "channel";
-    private static final String AUTH_NOTE_REMAINING_RETRIES = "remainingRetries";
+    private static final String AUTH_NOTE_DELIVERY_STATUS = "deliveryStatus";
+    private static final String DELIVERY_PENDING = "pending";
+    private static final String DELIVERY_SENT = "sent";
+    private static final String DELIVERY_FAILED = "failed";
+    // How long a duplicate request waits for the leading one to issue its code
+    private static final long JOIN_WAIT_MILLIS = 2000L;
     private static final Logger logger = Logger.getLogger(MultiChannelOTPAuthenticator.class);
 
+    private final MultiChannelOTPAuthenticatorFactory factory;
+
+    public MultiChannelOTPAuthenticator(MultiChannelOTPAuthenticatorFactory factory) {
+        this.factory = factory;
+    }
+
     @Override
     public void authenticate(AuthenticationFlowContext context) {
-        logger.info("=== Multi-Channel OTP Authentication Started ===");
-        
+        traced(context, "MultiChannelOTPAuthenticator.authenticate", () -> sendCode(context, false, null));
+    }
+
+    // Without resend, a refresh or back navigation shows the form again for a code that is still valid. A channel
+    // override sends a new code on that channel instead of the session's.
+    private void sendCode(AuthenticationFlowContext context, boolean resend, String channelOverride) {
         AuthenticatorConfigModel config = context.getAuthenticatorConfig();
         UserModel user = context.getUser();
         AuthenticationSessionModel authSession = context.getAuthenticationSession();
-        
-        logger.infof("User: %s, Realm: %s", user.getUsername(), context.getRealm().getName());
-        logger.infof("Config available: %s", config != null);
+        OTPSettings settings = factory.getSettings(context.getRealm(), config);
+        Verbosity verbosity = settings.getLogVerbosity();
+        String realmName = context.getRealm().getName();
+        RealmMetrics metrics = factory.getMetrics().realm(realmName);
 
-        String selectedChannel = authSession.getAuthNote(AUTH_NOTE_CHANNEL);
-        logger.infof("Selected channel from session: %s", selectedChannel);
-        
+        OTPEventLogger.trace(logger, verbosity, "Multi-channel OTP authenticate - realm: %s, user: %s", realmName, user.getId());
+
+        OTPState state = OTPState.read(authSession);
+        if (!resend && state != null && state.isLive(System.currentTimeMillis())) {
+            providerMetrics(metrics, state.getChannel()).send(SendOutcome.REUSED);
+            OTPEventLogger.event(verbosity, "send", realmName, user.getId(), state.getChannel(),
+                SendOutcome.REUSED.getTag(), 0L);
+            if (DELIVERY_FAILED.equals(authSession.getAuthNote(AUTH_NOTE_DELIVERY_STATUS))) {
+                context.challenge(deliveryFailedForm(context, state.getChannel(), settings));
+            } else {
+                context.challenge(otpForm(context, state, settings).createForm(OTP_FORM));
+            }
+            return;
+        }
+
+        String selectedChannel = channelOverride != null ? channelOverride : state == null ? null : state.getChannel();
+        // Stays null when the channel was already chosen earlier in this session
+        SelectionReason selectionReason = channelOverride != null ? SelectionReason.USER_CHOICE : null;
+
+        if (selectedChannel == null && settings.isRememberChannel()) {
+            // A channel that worked for this user last time spares the selection page and its round trip
+            selectedChannel = rememberedChannel(user, settings);
+            selectionReason = selectedChannel == null ? null : SelectionReason.REMEMBERED;
+        }
         if (selectedChannel == null) {
-            boolean allowUserChoice = Boolean.parseBoolean(config.getConfig().getOrDefault("allowUserChoice", "true"));
-            String forcedChannel = config.getConfig().get("forcedChannel");
+            boolean allowUserChoice = settings.isAllowUserChoice();
+            String forcedChannel = settings.getForcedChannel();
             
-            logger.infof("Allow user choice: %s, Forced channel: %s", allowUserChoice, forcedChannel);
-            
-            boolean hasEmail = user.getEmail() != null && !user.getEmail().trim().isEmpty();
-            boolean hasSMS = user.getFirstAttribute("phoneNumber") != null && new TwilioSMSProvider().isConfigured(config.getConfig());
+            boolean hasEmail = hasEmail(user, settings);
+            boolean hasSMS = hasSMS(user, settings);
             boolean hasMultiple = hasEmail && hasSMS;
             
-            logger.infof("Channel availability - Email: %s, SMS: %s, Multiple: %s", hasEmail, hasSMS, hasMultiple);
+            OTPEventLogger.trace(logger, verbosity, "Channel availability - Email: %s, SMS: %s, Forced: %s", hasEmail, hasSMS, forcedChannel);
             
             if (allowUserChoice && forcedChannel == null && hasMultiple) {
-                logger.info("Showing channel selection form to user");
+                OTPEventLogger.event(verbosity, "channel_prompt", realmName, user.getId(), null, "shown", 0L);
                 context.challenge(context.form().createForm(CHANNEL_SELECTION_FORM));
                 return;
             } else {
                 if (forcedChannel != null) {
                     selectedChannel = forcedChannel;
+                    selectionReason = SelectionReason.FORCED;
                 } else if (hasEmail) {
                     selectedChannel = "email";
+                    selectionReason = SelectionReason.AUTO;
                 } else if (hasSMS) {
                     selectedChannel = "sms";
+                    selectionReason = SelectionReason.AUTO;
                 } else {
-                    logger.error("User has no available delivery channels configured");
+                    OTPEventLogger.event(verbosity, "channel_selected", realmName, user.getId(), null, "no_channel", 0L);
                     context.failureChallenge(AuthenticationFlowError.INVALID_USER,
                         context.form().setError("noDeliveryChannels", "Please contact your administrator to configure email or phone number for OTP delivery.")
                             .createErrorPage(Response.Status.BAD_REQUEST));
                     return;
                 }
-                logger.infof("Auto-selected channel: %s", selectedChannel);
-                authSession.setAuthNote(AUTH_NOTE_CHANNEL, selectedChannel);
             }
         }
 
-        String code = generateCode(config);
-        int ttl = Integer.parseInt(config.getConfig().getOrDefault("ttl", "300"));
-        int maxRetries = Integer.parseInt(config.getConfig().getOrDefault("maxRetries", "3"));
-        
-        logger.infof("Generated OTP code length: %d, TTL: %d seconds, Max retries: %d", code.length(), ttl, maxRetries);
+        SendDeduplicator.Claim claim = null;
+        if (settings.getSendDedupWindowMillis() > 0) {
+            // Requests that start from the same state of this auth session are one send, e.g. a double-clicked
+            // channel choice or the login page open in two tabs
+            claim = factory.getSendDeduplicator(settings.isSendDedupClustered()).claim(context.getSession(),
+                dedupKey(authSession, selectedChannel, state), settings.getSendDedupWindowMillis());
+            if (!claim.isLeader()) {
+                join(context, claim, selectedChannel, settings, metrics);
+                return;
+            }
+        }
+        // Stays in place when deliver throws, so joiners are not left waiting
+        SendResult result = SendResult.error(AuthenticationFlowError.INTERNAL_ERROR,
+            Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), "otpSendFailed", null, null);
+        try {
+            result = deliver(context, selectedChannel, selectionReason, state, settings, metrics, claim);
+        } finally {
+            if (claim != null) {
+                claim.complete(result);
+            }
+        }
+        render(context, result, settings);
+    }
 
-        authSession.setAuthNote(AUTH_NOTE_CODE, code);
-        authSession.setAuthNote(AUTH_NOTE_TTL, Long.toString(System.currentTimeMillis() + (ttl * 1000L)));
-        authSession.setAuthNote(AUTH_NOTE_REMAINING_RETRIES, Integer.toString(maxRetries));
-        
-        logger.info("Stored OTP data in authentication session");
+    private SendResult deliver(AuthenticationFlowContext context, String selectedChannel,
+                               SelectionReason selectionReason, OTPState state, OTPSettings settings,
+                               RealmMetrics metrics, SendDeduplicator.Claim claim) {
+        AuthenticatorConfigModel config = context.getAuthenticatorConfig();
+        UserModel user = context.getUser();
+        AuthenticationSessionModel authSession = context.getAuthenticationSession();
+        Verbosity verbosity = settings.getLogVerbosity();
+        String realmName = context.getRealm().getName();
+
+        if (!allowSend(context, selectedChannel, settings)) {
+            providerMetrics(metrics, selectedChannel).send(SendOutcome.RATE_LIMITED);
+            OTPEventLogger.event(verbosity, "send", realmName, user.getId(), selectedChannel,
+                SendOutcome.RATE_LIMITED.getTag(), 0L);
+            return SendResult.error(AuthenticationFlowError.ACCESS_DENIED,
+                Response.Status.TOO_MANY_REQUESTS.getStatusCode(), "otpRateLimited", null, null);
+        }
+
+        boolean isSimulation = settings.isSimulation();
+        String configId = config == null ? null : config.getId();
+        CircuitBreaker breaker = null;
+        if (!isSimulation) {
+            breaker = acquireCircuitBreaker(selectedChannel, configId, settings);
+            if (breaker == null) {
+                String fallbackChannel = OTPChannel.SMS.getValue().equals(selectedChannel)
+                    ? OTPChannel.EMAIL.getValue() : OTPChannel.SMS.getValue();
+                boolean fallbackAvailable = OTPChannel.EMAIL.getValue().equals(fallbackChannel)
+                    ? hasEmail(user, settings) : hasSMS(user, settings);
+                if (fallbackAvailable) {
+                    breaker = acquireCircuitBreaker(fallbackChannel, configId, settings);
+                }
+                if (breaker == null) {
+                    providerMetrics(metrics, selectedChannel).send(SendOutcome.CIRCUIT_OPEN);
+                    OTPEventLogger.event(verbosity, "send", realmName, user.getId(), selectedChannel,
+                        SendOutcome.CIRCUIT_OPEN.getTag(), 0L);
+                    return SendResult.error(AuthenticationFlowError.INTERNAL_ERROR,
+                        Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), "otpChannelUnavailable", null, null);
+                }
+                logger.warnf("Circuit breaker for %s is open, failing over to %s", selectedChannel, fallbackChannel);
+                selectedChannel = fallbackChannel;
+                selectionReason = SelectionReason.FAILOVER;
+            }
+        }
+        if (selectionReason != null) {
+            metrics.channelSelected(OTPChannel.fromValue(selectedChannel), selectionReason);
+        }
+        OTPEventLogger.event(verbosity, "channel_selected", realmName, user.getId(), selectedChannel,
+            selectionReason == null ? "session" : selectionReason.getTag(), 0L);
+
+        ProviderMetrics sendMetrics = providerMetrics(metrics, selectedChannel);
+        int ttl = settings.getTtlSeconds();
+        int maxRetries = settings.getMaxRetries();
+        KeycloakSession session = context.getSession();
+        RealmModel realm = context.getRealm();
+
+        long now = System.currentTimeMillis();
+        // A resend delivers the code the user may already have, as long as it stays valid and goes the same way
+        String code = state != null && state.isLive(now) && selectedChannel.equals(state.getChannel())
+            ? state.recoverCode(session, realm) : null;
+        OTPState issued;
+        if (code != null) {
+            issued = state.withSentAt(now);
+            OTPEventLogger.trace(logger, verbosity, "Resending the issued OTP, valid for %d more seconds",
+                (state.getExpiresAt() - now) / 1000L);
+        } else {
+            code = generateCode(settings);
+            metrics.codeGenerated();
+            // Keep the remaining attempts of this session so that re-sending a code does not reset them
+            int remainingAttempts = state != null && state.hasCode() ? state.getRemainingAttempts() : maxRetries;
+            issued = OTPState.issue(session, realm, selectedChannel, code, now, now + (ttl * 1000L), remainingAttempts);
+            OTPEventLogger.trace(logger, verbosity, "Stored OTP in session - TTL: %d seconds, Max retries: %d", ttl, maxRetries);
+        }
+        String stateNote = issued.encode();
+        authSession.setAuthNote(OTPState.AUTH_NOTE, stateNote);
+        clearUndelivered(authSession);
+        if (claim != null) {
+            claim.publishState(stateNote);
+        }
+        long expiresAt = issued.getExpiresAt();
+        String sentCode = code;
 
+        long sendStart = System.nanoTime();
         try {
-            OTPDeliveryProvider provider = getProvider(selectedChannel, context);
-            logger.infof("Got provider for channel %s: %s", selectedChannel, provider.getClass().getSimpleName());
-            
-            boolean isSimulation = Boolean.parseBoolean(config.getConfig().getOrDefault("simulation", "false"));
-            logger.infof("Simulation mode: %s", isSimulation);
-            
             if (isSimulation) {
-                logger.warn(String.format("***** SIMULATION MODE ***** Would send OTP via %s to user %s with code: %s", 
-                    selectedChannel, user.getUsername(), code));
+                clearDeliveryStatus(authSession);
+                logger.warnf("***** SIMULATION MODE ***** Would send OTP via %s to user %s", selectedChannel,
+                    user.getId());
+                // Only here, for testing without a provider; the code never reaches a log at a higher level
+                logger.debugf("Simulated OTP for user %s: %s", user.getId(), code);
+                sendMetrics.send(SendOutcome.SIMULATED);
+                OTPEventLogger.event(verbosity, "send", realmName, user.getId(), selectedChannel,
+                    SendOutcome.SIMULATED.getTag(), 0L);
+                return SendResult.form(stateNote, null);
+            } else if (settings.isAsyncDelivery()) {
+                authSession.setAuthNote(AUTH_NOTE_DELIVERY_STATUS, DELIVERY_PENDING);
+                dispatchAsync(context, selectedChannel, code, settings, expiresAt, breaker, metrics);
+                return SendResult.form(stateNote, DELIVERY_PENDING);
             } else {
-                logger.infof("Sending OTP via %s provider", selectedChannel);
-                provider.sendOTP(code, user, config.getConfig());
-                logger.info("OTP sent successfully");
+                clearDeliveryStatus(authSession);
+                OTPDeliveryProvider provider = getProvider(session, selectedChannel);
+                OTPDeliveryRequest delivery = new OTPDeliveryRequest(session, realm, authSession, user, sentCode,
+                    settings, sendMetrics, configId, statusCallbackUrl(context, settings));
+                factory.getOutbox().send(breaker.guard(() -> sendOTP(provider, delivery)),
+                    settings.getRetryPolicy(), expiresAt);
+                sendMetrics.send(SendOutcome.SENT);
+                OTPEventLogger.event(verbosity, "send", realmName, user.getId(), selectedChannel,
+                    SendOutcome.SENT.getTag(), elapsedMillis(sendStart));
+                return SendResult.form(stateNote, null);
             }
-
-            logger.info("Showing OTP entry form to user");
-            context.challenge(context.form()
-                .setAttribute("channel", selectedChannel)
-                .createForm(OTP_FORM));
         } catch (Exception e) {
+            SendOutcome outcome = OTPOutbox.isRetryable(e) ? SendOutcome.RETRIES_EXHAUSTED : SendOutcome.FAILED;
+            sendMetrics.send(outcome);
+            OTPEventLogger.event(verbosity, "send", realmName, user.getId(), selectedChannel, outcome.getTag(),
+                elapsedMillis(sendStart));
             logger.errorf(e, "Failed to send OTP via %s: %s", selectedChannel, e.getMessage());
-            context.failureChallenge(AuthenticationFlowError.INTERNAL_ERROR,
-                context.form().setError("otpSendFailed", e.getMessage())
-                    .createErrorPage(Response.Status.INTERNAL_SERVER_ERROR));
+            // Provider errors are for the log only, the user gets the same message whatever failed
+            return SendResult.error(AuthenticationFlowError.INTERNAL_ERROR,
+                Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), "otpSendFailed", null, stateNote);
         }
     }
 
+    // Takes over what the leading request wrote, so whichever copy of the auth session is stored last holds the same code
+    private void join(AuthenticationFlowContext context, SendDeduplicator.Claim claim, String channel,
+                      OTPSettings settings, RealmMetrics metrics) {
+        long joinStart = System.nanoTime();
+        SendResult result = claim.join(Math.min(JOIN_WAIT_MILLIS, settings.getSendDedupWindowMillis()));
+        providerMetrics(metrics, channel).send(SendOutcome.DEDUPLICATED);
+        OTPEventLogger.event(settings.getLogVerbosity(), "send", context.getRealm().getName(), context.getUser().getId(),
+            channel, SendOutcome.DEDUPLICATED.getTag(), elapsedMillis(joinStart));
+        if (result.isInFlight()) {
+            if (result.getStateNote() == null) {
+                context.failureChallenge(AuthenticationFlowError.INTERNAL_ERROR,
+                    context.form().setError("otpSendInProgress").createErrorPage(Response.Status.CONFLICT));
+                return;
+            }
+            result = SendResult.form(result.getStateNote(), DELIVERY_PENDING);
+        }
+        AuthenticationSessionModel authSession = context.getAuthenticationSession();
+        if (result.getStateNote() != null) {
+            authSession.setAuthNote(OTPState.AUTH_NOTE, result.getStateNote());
+            clearUndelivered(authSession);
+            if (result.getDeliveryStatus() == null) {
+                clearDeliveryStatus(authSession);
+            } else {
+                authSession.setAuthNote(AUTH_NOTE_DELIVERY_STATUS, result.getDeliveryStatus());
+            }
+        }
+        render(context, result, settings);
+    }
+
+    private void render(AuthenticationFlowContext context, SendResult result, OTPSettings settings) {
+        if (result.isError()) {
+            LoginFormsProvider form = result.getErrorParameter() == null
+                ? context.form().setError(result.getError())
+                : context.form().setError(result.getError(), result.getErrorParameter());
+            context.failureChallenge(result.getFlowError(),
+                form.createErrorPage(Response.Status.fromStatusCode(result.getHttpStatus())));
+            return;
+        }
+        OTPState state = OTPState.parse(result.getStateNote());
+        if (DELIVERY_FAILED.equals(result.getDeliveryStatus())) {
+            context.challenge(deliveryFailedForm(context, state.getChannel(), settings));
+        } else {
+            context.challenge(otpForm(context, state, settings).createForm(OTP_FORM));
+        }
+    }
+
+    // The sentAt of the state a request starts from tells duplicates apart from a later, deliberate resend
+    private static String dedupKey(AuthenticationSessionModel authSession, String channel, OTPState state) {
+        return authSession.getParentSession().getId() + ":" + authSession.getTabId() + ":" + channel + ":"
+            + Long.toString(state == null ? 0L : state.getSentAt(), 36);
+    }
+
     @Override
     public void action(AuthenticationFlowContext context) {
-        logger.info("=== Multi-Channel OTP Action Started ===");
-        
+        traced(context, "MultiChannelOTPAuthenticator.action", () -> processAction(context));
+    }
+
+    private void processAction(AuthenticationFlowContext context) {
+        OTPSettings settings = factory.getSettings(context.getRealm(), context.getAuthenticatorConfig());
+        Verbosity verbosity = settings.getLogVerbosity();
+        String realmName = context.getRealm().getName();
+        String userId = context.getUser().getId();
+        RealmMetrics metrics = factory.getMetrics().realm(realmName);
+
         String enteredCode = context.getHttpRequest().getDecodedFormParameters().getFirst("code");
         String selectedChannel = context.getHttpRequest().getDecodedFormParameters().getFirst("channel");
         
-        logger.infof("Entered code: %s, Selected channel: %s", enteredCode != null ? "[PRESENT]" : "[MISSING]", selectedChannel);
+        OTPEventLogger.trace(logger, verbosity, "Multi-channel OTP action - code present: %s, selected channel: %s",
+            enteredCode != null, selectedChannel);
 
         AuthenticationSessionModel authSession = context.getAuthenticationSession();
 
-        if (selectedChannel != null && authSession.getAuthNote(AUTH_NOTE_CHANNEL) == null) {
-            logger.infof("Channel selection received: %s, storing and restarting authentication", selectedChannel);
-            authSession.setAuthNote(AUTH_NOTE_CHANNEL, selectedChannel);
+        OTPState state = OTPState.read(authSession);
+
+        if (selectedChannel != null && state == null) {
+            OTPChannel chosen = OTPChannel.fromValue(selectedChannel);
+            metrics.channelSelected(chosen, SelectionReason.USER_CHOICE);
+            OTPEventLogger.event(verbosity, "channel_choice", realmName, userId, chosen.getValue(),
+                SelectionReason.USER_CHOICE.getTag(), 0L);
+            OTPState.channelOnly(chosen.getValue()).write(authSession);
             authenticate(context);
             return;
         }
 
-        String code = authSession.getAuthNote(AUTH_NOTE_CODE);
-        String ttl = authSession.getAuthNote(AUTH_NOTE_TTL);
-        String remainingAttemptsStr = authSession.getAuthNote(AUTH_NOTE_REMAINING_RETRIES);
-        int remainingAttempts = remainingAttemptsStr == null ? 0 : Integer.parseInt(remainingAttemptsStr);
-        
-        logger.infof("Stored code: %s, TTL: %s, Remaining attempts: %d", 
-            code != null ? "[PRESENT]" : "[MISSING]", ttl, remainingAttempts);
+        String channel = state == null ? null : state.getChannel();
+        // Offered right away, without the resend cooldown, once the SMS is reported undelivered
+        if (context.getHttpRequest().getDecodedFormParameters().getFirst("useEmail") != null
+                && offersEmail(context, state, settings)) {
+            OTPEventLogger.trace(logger, verbosity, "SMS was not delivered, sending a new code by email");
+            sendCode(context, true, OTPChannel.EMAIL.getValue());
+            return;
+        }
+        String switchTo = context.getHttpRequest().getDecodedFormParameters().getFirst("useChannel");
+        if (switchTo != null && switchTo.equals(otherChannel(context, channel, settings))) {
+            OTPEventLogger.trace(logger, verbosity, "Switching to %s on request, sending a new code", switchTo);
+            sendCode(context, true, switchTo);
+            return;
+        }
+        if (context.getHttpRequest().getDecodedFormParameters().getFirst("resend") != null) {
+            long cooldown = resendCooldownSeconds(state, settings, System.currentTimeMillis());
+            // A failed delivery can be retried right away
+            if (cooldown > 0 && !DELIVERY_FAILED.equals(authSession.getAuthNote(AUTH_NOTE_DELIVERY_STATUS))) {
+                providerMetrics(metrics, channel).send(SendOutcome.COOLDOWN);
+                OTPEventLogger.event(verbosity, "resend", realmName, userId, channel, SendOutcome.COOLDOWN.getTag(), 0L);
+                context.challenge(otpForm(context, state, settings)
+                    .setError("otpResendCooldown", Long.toString(cooldown))
+                    .createForm(OTP_FORM));
+                return;
+            }
+            OTPEventLogger.trace(logger, verbosity, "Resend requested, sending the code again");
+            sendCode(context, true, null);
+            return;
+        }
+
+        OTPChannel otpChannel = OTPChannel.fromValue(channel);
+        if (!allowVerify(context, settings)) {
+            recordVerify(metrics, otpChannel, VerifyOutcome.RATE_LIMITED, verbosity, realmName, userId);
+            context.failureChallenge(AuthenticationFlowError.ACCESS_DENIED,
+                otpForm(context, state, settings)
+                    .setError("otpRateLimited")
+                    .createForm(OTP_FORM));
+            return;
+        }
 
-        if (code == null || ttl == null) {
-            logger.error("Missing OTP data in session - code or TTL is null");
+        if (state == null || !state.hasCode()) {
+            logger.error("Missing OTP data in session - no code was issued");
+            OTPEventLogger.event(verbosity, "verify", realmName, userId, channel, "missing_code", 0L);
             context.failureChallenge(AuthenticationFlowError.INTERNAL_ERROR,
                 context.form().createErrorPage(Response.Status.INTERNAL_SERVER_ERROR));
             return;
         }
 
-        boolean isValid = enteredCode.equals(code);
-        logger.infof("Code validation result: %s", isValid ? "VALID" : "INVALID");
+        int remainingAttempts = state.getRemainingAttempts();
+        boolean isValid = state.matches(context.getSession(), context.getRealm(), enteredCode);
         
         if (isValid) {
             long currentTime = System.currentTimeMillis();
-            long expiryTime = Long.parseLong(ttl);
+            long expiryTime = state.getExpiresAt();
             boolean isExpired = expiryTime < currentTime;
             
-            logger.infof("Code expiry check - Current: %d, Expiry: %d, Expired: %s", currentTime, expiryTime, isExpired);
+            OTPEventLogger.trace(logger, verbosity, "Code expiry check - Current: %d, Expiry: %d", currentTime, expiryTime);
             
             if (isExpired) {
-                logger.warn("Valid code but expired");
+                recordVerify(metrics, otpChannel, VerifyOutcome.EXPIRED, verbosity, realmName, userId);
                 context.failureChallenge(AuthenticationFlowError.EXPIRED_CODE,
                     context.form().setError("otpCodeExpired").createErrorPage(Response.Status.BAD_REQUEST));
             } else {
-                logger.info("Code validation successful - authentication complete");
+                metrics.timeToVerify(otpChannel, currentTime - state.getIssuedAt());
+                recordVerify(metrics, otpChannel, VerifyOutcome.SUCCESS, verbosity, realmName, userId);
+                if (settings.isRememberChannel()) {
+                    ChannelPreference.succeeded(context.getUser(), otpChannel.getValue());
+                }
+                authSession.removeAuthNote(OTPState.AUTH_NOTE);
                 context.success();
             }
-        } else {
-            logger.warnf("Invalid code entered. Remaining attempts: %d", remainingAttempts);
-            if (remainingAttempts > 0) {
-                authSession.setAuthNote(AUTH_NOTE_REMAINING_RETRIES, Integer.toString(remainingAttempts - 1));
-                logger.infof("Allowing retry. Attempts left: %d", remainingAttempts - 1);
-                context.failureChallenge(AuthenticationFlowError.INVALID_CREDENTIALS,
-                    context.form()
-                        .setAttribute("channel", authSession.getAuthNote(AUTH_NOTE_CHANNEL))
-                        .setError("otpCodeInvalid", Integer.toString(remainingAttempts))
-                        .createForm(OTP_FORM));
-            } else {
-                logger.warn("No more attempts remaining - authentication failed");
-                context.failure(AuthenticationFlowError.INVALID_CREDENTIALS);
+        } else if (remainingAttempts <= 0) {
+            recordVerify(metrics, otpChannel, VerifyOutcome.ATTEMPTS_EXHAUSTED, verbosity, realmName, userId);
+            context.failure(AuthenticationFlowError.INVALID_CREDENTIALS);
+        } else if (DELIVERY_FAILED.equals(authSession.getAuthNote(AUTH_NOTE_DELIVERY_STATUS))) {
+            // A send reported failed may still have reached the user, so its code costs an attempt like any other
+            state.withRemainingAttempts(remainingAttempts - 1).write(authSession);
+            recordVerify(metrics, otpChannel, VerifyOutcome.NOT_DELIVERED, verbosity, realmName, userId);
+            if (settings.isRememberChannel()) {
+                ChannelPreference.failed(context.getUser(), otpChannel.getValue());
             }
+            context.challenge(deliveryFailedForm(context, channel, settings));
+        } else {
+            state.withRemainingAttempts(remainingAttempts - 1).write(authSession);
+            recordVerify(metrics, otpChannel, VerifyOutcome.INVALID, verbosity, realmName, userId);
+            context.failureChallenge(AuthenticationFlowError.INVALID_CREDENTIALS,
+                otpForm(context, state, settings)
+                    .setError("otpCodeInvalid", Integer.toString(remainingAttempts))
+                    .createForm(OTP_FORM));
         }
     }
 
@@ -204,29 +479,322 @@ public class MultiChannelOTPAuthenticator implements Authenticator {
 
 
 
-    private OTPDeliveryProvider getProvider(String channel, AuthenticationFlowContext context) {
+    private void recordVerify(RealmMetrics metrics, OTPChannel channel, VerifyOutcome outcome, Verbosity verbosity,
+                              String realmName, String userId) {
+        metrics.verified(channel, outcome);
+        OTPEventLogger.event(verbosity, "verify", realmName, userId, channel.getValue(), outcome.getTag(), 0L);
+    }
+
+    private ProviderMetrics providerMetrics(RealmMetrics metrics, String channel) {
         OTPChannel otpChannel = OTPChannel.fromValue(channel);
-        logger.infof("Getting provider for channel: %s -> %s", channel, otpChannel);
-        
-        switch (otpChannel) {
-            case SMS:
-                logger.info("Creating TwilioSMSProvider");
-                return new TwilioSMSProvider();
-            case EMAIL:
-            default:
-                logger.info("Creating EmailOTPProvider");
-                return new EmailOTPProvider(context.getSession(), context.getRealm(), context.getAuthenticationSession());
+        OTPDeliveryProvider provider = factory.getDeliveryProviders().get(otpChannel);
+        return metrics.provider(provider == null ? "none" : provider.getId(), otpChannel);
+    }
+
+    // Queued only once the request's transaction completed: the auth session is stored by then, so the worker and the
+    // status update read this request's copy, and nothing the request writes back later can undo theirs
+    private void dispatchAsync(AuthenticationFlowContext context, String channel, String code,
+                               OTPSettings settings, long expiresAt, CircuitBreaker breaker, RealmMetrics metrics) {
+        KeycloakSessionFactory sessionFactory = context.getSession().getKeycloakSessionFactory();
+        AuthenticationSessionModel authSession = context.getAuthenticationSession();
+        String realmId = context.getRealm().getId();
+        String userId = context.getUser().getId();
+        String rootSessionId = authSession.getParentSession().getId();
+        String clientId = authSession.getClient().getId();
+        String tabId = authSession.getTabId();
+        String realmName = context.getRealm().getName();
+        Verbosity verbosity = settings.getLogVerbosity();
+        long queuedAt = System.nanoTime();
+        ProviderMetrics sendMetrics = providerMetrics(metrics, channel);
+        AuthenticatorConfigModel config = context.getAuthenticatorConfig();
+        String configId = config == null ? null : config.getId();
+        String statusCallbackUrl = statusCallbackUrl(context, settings);
+        // Attempts run on the outbox threads, where the span of this request would otherwise be lost
+        Context traceContext = Context.current();
+
+        OTPOutbox.DeliveryAttempt attempt = breaker.guard(() -> {
+            Exception[] failure = new Exception[1];
+            Scope scope = traceContext.makeCurrent();
+            try {
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                    RealmModel realm = session.realms().getRealm(realmId);
+                    session.getContext().setRealm(realm);
+                    UserModel user = session.users().getUserById(realm, userId);
+                    AuthenticationSessionModel asyncAuthSession = findAuthSession(session, realm, rootSessionId, clientId, tabId);
+                    if (user == null || asyncAuthSession == null) {
+                        failure[0] = new OTPDeliveryException("Authentication session or user no longer exists", false,
+                            0L, true);
+                        return;
+                    }
+                    try {
+                        sendOTP(getProvider(session, channel), new OTPDeliveryRequest(session, realm, asyncAuthSession,
+                            user, code, settings, sendMetrics, configId, statusCallbackUrl));
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                });
+            } finally {
+                scope.close();
+            }
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        });
+
+        Consumer<Exception> onComplete = failure -> {
+            SendOutcome outcome = failure == null ? SendOutcome.SENT
+                : OTPOutbox.isRetryable(failure) ? SendOutcome.RETRIES_EXHAUSTED : SendOutcome.FAILED;
+            sendMetrics.send(outcome);
+            OTPEventLogger.event(verbosity, "async_send", realmName, userId, channel, outcome.getTag(),
+                elapsedMillis(queuedAt));
+            if (failure != null) {
+                logger.errorf(failure, "Asynchronous OTP delivery via %s failed: %s", channel, failure.getMessage());
+            }
+            setDeliveryStatus(sessionFactory, realmId, rootSessionId, clientId, tabId,
+                failure == null ? DELIVERY_SENT : DELIVERY_FAILED);
+        };
+
+        context.getSession().getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                if (factory.getOutbox().enqueue(attempt, settings.getRetryPolicy(), expiresAt, onComplete)) {
+                    sendMetrics.send(SendOutcome.QUEUED);
+                    OTPEventLogger.event(verbosity, "send", realmName, userId, channel, SendOutcome.QUEUED.getTag(),
+                        elapsedMillis(queuedAt));
+                    return;
+                }
+                breaker.releasePermission();
+                sendMetrics.send(SendOutcome.QUEUE_FULL);
+                OTPEventLogger.event(verbosity, "send", realmName, userId, channel, SendOutcome.QUEUE_FULL.getTag(),
+                    0L);
+                setDeliveryStatus(sessionFactory, realmId, rootSessionId, clientId, tabId, DELIVERY_FAILED);
+            }
+
+            // The code was never stored, so there is nothing to deliver
+            @Override
+            protected void rollbackImpl() {
+                breaker.releasePermission();
+            }
+        });
+    }
+
+    private void setDeliveryStatus(KeycloakSessionFactory sessionFactory, String realmId, String rootSessionId,
+                                   String clientId, String tabId, String status) {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            AuthenticationSessionModel asyncAuthSession = findAuthSession(session, realm, rootSessionId, clientId, tabId);
+            if (asyncAuthSession != null) {
+                asyncAuthSession.setAuthNote(AUTH_NOTE_DELIVERY_STATUS, status);
+            }
+        });
+    }
+
+    private AuthenticationSessionModel findAuthSession(KeycloakSession session, RealmModel realm,
+                                                       String rootSessionId, String clientId, String tabId) {
+        RootAuthenticationSessionModel rootSession = session.authenticationSessions().getRootAuthenticationSession(realm, rootSessionId);
+        ClientModel client = realm.getClientById(clientId);
+        if (rootSession == null || client == null) {
+            return null;
         }
+        return rootSession.getAuthenticationSession(client, tabId);
     }
 
-    private String generateCode(AuthenticatorConfigModel config) {
-        int length = Integer.parseInt(config.getConfig().getOrDefault("length", "6"));
-        boolean allowNumbers = Boolean.parseBoolean(config.getConfig().getOrDefault("allowNumbers", "true"));
+    // Skips the write, and its replication, when there is nothing to clear
+    private static void clearDeliveryStatus(AuthenticationSessionModel authSession) {
+        if (authSession.getAuthNote(AUTH_NOTE_DELIVERY_STATUS) != null) {
+            authSession.removeAuthNote(AUTH_NOTE_DELIVERY_STATUS);
+        }
+    }
 
-        String chars = allowNumbers ? "0123456789" : "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
-        String code = SecretGenerator.getInstance().randomString(length, chars.toCharArray());
-        
-        logger.infof("Generated code with length %d, using chars: %s", length, allowNumbers ? "numbers" : "letters");
-        return code;
+    private LoginFormsProvider otpForm(AuthenticationFlowContext context, OTPState state, OTPSettings settings) {
+        return context.form()
+            .setAttribute("channel", state == null ? null : state.getChannel())
+            .setAttribute("resendCooldown", resendCooldownSeconds(state, settings, System.currentTimeMillis()))
+            .setAttribute("offerEmail", offersEmail(context, state, settings))
+            .setAttribute("otherChannel", otherChannel(context, state == null ? null : state.getChannel(), settings));
+    }
+
+    // The channel the form offers to switch to; null when users may not choose or have no other channel
+    private String otherChannel(AuthenticationFlowContext context, String channel, OTPSettings settings) {
+        if (channel == null || !settings.isAllowUserChoice() || settings.getForcedChannel() != null) {
+            return null;
+        }
+        UserModel user = context.getUser();
+        if (OTPChannel.SMS.getValue().equals(channel)) {
+            return hasEmail(user, settings) ? OTPChannel.EMAIL.getValue() : null;
+        }
+        return hasSMS(user, settings) ? OTPChannel.SMS.getValue() : null;
+    }
+
+    // Null unless the remembered channel worked last time and can still reach the user
+    private String rememberedChannel(UserModel user, OTPSettings settings) {
+        ChannelPreference preference = ChannelPreference.read(user);
+        if (preference == null || !preference.isUsable()) {
+            return null;
+        }
+        boolean available = OTPChannel.SMS.getValue().equals(preference.getChannel())
+            ? hasSMS(user, settings) : hasEmail(user, settings);
+        return available ? preference.getChannel() : null;
+    }
+
+    // True once the SMS with the current code was reported undelivered and the user can get codes by email
+    private boolean offersEmail(AuthenticationFlowContext context, OTPState state, OTPSettings settings) {
+        return state != null && OTPChannel.SMS.getValue().equals(state.getChannel())
+            && context.getAuthenticationSession().getAuthNote(TrackedMessage.AUTH_NOTE_UNDELIVERED) != null
+            && settings.getForcedChannel() == null && hasEmail(context.getUser(), settings);
+    }
+
+    private static void clearUndelivered(AuthenticationSessionModel authSession) {
+        if (authSession.getAuthNote(TrackedMessage.AUTH_NOTE_UNDELIVERED) != null) {
+            authSession.removeAuthNote(TrackedMessage.AUTH_NOTE_UNDELIVERED);
+        }
+    }
+
+    // Null when delivery reports are off; resolved here because background sends have no request URL
+    private static String statusCallbackUrl(AuthenticationFlowContext context, OTPSettings settings) {
+        if (!settings.isDeliveryReports()) {
+            return null;
+        }
+        String baseUrl = settings.getDeliveryReportBaseUrl() != null
+            ? settings.getDeliveryReportBaseUrl() : context.getUriInfo().getBaseUri().toString();
+        return KeycloakUriBuilder.fromUri(baseUrl).path("realms").path(context.getRealm().getName())
+            .path(DeliveryStatusResourceProviderFactory.ID).buildAsString();
+    }
+
+    // Whole seconds until the code may be sent again, rounded up so the form never offers a resend too early
+    private static long resendCooldownSeconds(OTPState state, OTPSettings settings, long now) {
+        if (state == null || !state.hasCode()) {
+            return 0L;
+        }
+        long remainingMillis = state.getSentAt() + settings.getResendCooldownSeconds() * 1000L - now;
+        return remainingMillis <= 0 ? 0L : (remainingMillis + 999L) / 1000L;
+    }
+
+    private Response deliveryFailedForm(AuthenticationFlowContext context, String channel, OTPSettings settings) {
+        return context.form()
+            .setAttribute("channel", channel)
+            .setAttribute("otherChannel", otherChannel(context, channel, settings))
+            .setAttribute("deliveryFailed", true)
+            .setError("otpDeliveryFailed")
+            .createForm(OTP_FORM);
+    }
+
+    OTPDeliveryProvider getProvider(KeycloakSession session, String channel) throws OTPDeliveryException {
+        Span span = OTPTracing.tracer(session).spanBuilder("MultiChannelOTPAuthenticator.getProvider")
+            .setAttribute(OTPTracing.CHANNEL, channel)
+            .startSpan();
+        try {
+            OTPDeliveryProvider provider = factory.getDeliveryProviders().get(OTPChannel.fromValue(channel));
+            if (provider == null) {
+                OTPDeliveryException failure = new OTPDeliveryException("No delivery provider is installed for " + channel, false);
+                OTPTracing.failed(span, failure);
+                throw failure;
+            }
+            span.setAttribute(OTPTracing.PROVIDER, provider.getId());
+            return provider;
+        } finally {
+            span.end();
+        }
+    }
+
+    // One span per attempt, so retries show up in the trace
+    private static void sendOTP(OTPDeliveryProvider provider, OTPDeliveryRequest delivery) throws Exception {
+        Span span = OTPTracing.tracer(delivery.getSession()).spanBuilder("OTPDeliveryProvider.sendOTP")
+            .setAttribute(TracingAttributes.REALM_NAME, delivery.getRealm().getName())
+            .setAttribute(OTPTracing.CHANNEL, provider.getChannel().getValue())
+            .setAttribute(OTPTracing.PROVIDER, provider.getId())
+            .startSpan();
+        Scope scope = span.makeCurrent();
+        try {
+            provider.sendOTP(delivery);
+        } catch (Exception e) {
+            OTPTracing.failed(span, e);
+            throw e;
+        } finally {
+            scope.close();
+            span.end();
+        }
+    }
+
+    // Keycloak's span of the request is current here, so the step becomes its child
+    private static void traced(AuthenticationFlowContext context, String name, Runnable step) {
+        Span span = OTPTracing.tracer(context.getSession()).spanBuilder(name)
+            .setAttribute(TracingAttributes.REALM_NAME, context.getRealm().getName())
+            .setAttribute(TracingAttributes.USER_ID, context.getUser().getId())
+            .startSpan();
+        Scope scope = span.makeCurrent();
+        try {
+            step.run();
+        } catch (RuntimeException e) {
+            OTPTracing.failed(span, e);
+            throw e;
+        } finally {
+            scope.close();
+            span.end();
+        }
+    }
+
+    private boolean isAvailable(OTPChannel channel, OTPSettings settings) {
+        OTPDeliveryProvider provider = factory.getDeliveryProviders().get(channel);
+        return provider != null && provider.isConfigured(settings);
+    }
+
+    private boolean hasEmail(UserModel user, OTPSettings settings) {
+        return user.getEmail() != null && !user.getEmail().trim().isEmpty() && isAvailable(OTPChannel.EMAIL, settings);
+    }
+
+    private boolean hasSMS(UserModel user, OTPSettings settings) {
+        return isAvailable(OTPChannel.SMS, settings)
+            && PhoneNumberNormalizer.resolve(user, settings.getCountryCode()) != null;
+    }
+
+    private boolean allowSend(AuthenticationFlowContext context, String channel, OTPSettings settings) {
+        RateLimiter limiter = factory.getRateLimiter(settings.isRateLimitClustered());
+        KeycloakSession session = context.getSession();
+        String realmId = context.getRealm().getId();
+        int limit = settings.getSendRateLimit();
+        int ipLimit = settings.getIpSendRateLimit();
+        long window = settings.getRateLimitWindowMillis();
+
+        if (!limiter.tryAcquire(session, "send:user:" + context.getUser().getId(), limit, window)) {
+            return false;
+        }
+        String phoneNumber = OTPChannel.SMS.getValue().equals(channel)
+            ? PhoneNumberNormalizer.resolveAndCache(context.getUser(), settings.getCountryCode()) : null;
+        if (phoneNumber != null
+                && !limiter.tryAcquire(session, "send:phone:" + realmId + ":" + phoneNumber, limit, window)) {
+            return false;
+        }
+        String remoteAddr = context.getConnection().getRemoteAddr();
+        return remoteAddr == null || limiter.tryAcquire(session, "send:ip:" + realmId + ":" + remoteAddr, ipLimit, window);
+    }
+
+    private boolean allowVerify(AuthenticationFlowContext context, OTPSettings settings) {
+        RateLimiter limiter = factory.getRateLimiter(settings.isRateLimitClustered());
+        KeycloakSession session = context.getSession();
+        int limit = settings.getVerifyRateLimit();
+        int ipLimit = settings.getIpVerifyRateLimit();
+        long window = settings.getRateLimitWindowMillis();
+
+        if (!limiter.tryAcquire(session, "verify:user:" + context.getUser().getId(), limit, window)) {
+            return false;
+        }
+        String remoteAddr = context.getConnection().getRemoteAddr();
+        return remoteAddr == null
+            || limiter.tryAcquire(session, "verify:ip:" + context.getRealm().getId() + ":" + remoteAddr, ipLimit, window);
+    }
+
+    private CircuitBreaker acquireCircuitBreaker(String channel, String configId, OTPSettings settings) {
+        CircuitBreaker breaker = factory.getCircuitBreaker(configId, OTPChannel.fromValue(channel),
+            settings.getBreakerSettings());
+        return breaker.tryAcquirePermission() ? breaker : null;
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000L;
+    }
+
+    static String generateCode(OTPSettings settings) {
+        return CodeGenerator.generate(settings.getCodeLength(), settings.isAllowNumbers() ? Alphabet.DIGITS : Alphabet.LETTERS);
     }
 }
\ No newline at end of file
@@ -1,21 +1,61 @@
 package com.fastkeycloak.otp;
 
+import com.fastkeycloak.otp.config.OTPSettings;
+import com.fastkeycloak.otp.config.OTPSettingsCache;
+import com.fastkeycloak.otp.dedup.ClusterSendDeduplicator;
+import com.fastkeycloak.otp.dedup.LocalSendDeduplicator;
+import com.fastkeycloak.otp.dedup.SendDeduplicator;
+import com.fastkeycloak.otp.delivery.CircuitBreaker;
+import com.fastkeycloak.otp.delivery.OTPDispatcher;
+import com.fastkeycloak.otp.delivery.OTPOutbox;
+import com.fastkeycloak.otp.enums.OTPChannel;
+import com.fastkeycloak.otp.metrics.OTPMetrics;
+import com.fastkeycloak.otp.ratelimit.ClusterRateLimiter;
+import com.fastkeycloak.otp.ratelimit.LocalRateLimiter;
+import com.fastkeycloak.otp.ratelimit.RateLimiter;
 import org.keycloak.Config;
 import org.keycloak.authentication.Authenticator;
 import org.keycloak.authentication.AuthenticatorFactory;
 import org.keycloak.models.AuthenticationExecutionModel;
+import org.keycloak.models.AuthenticatorConfigModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.cache.CachedRealmModel;
+import org.keycloak.models.utils.PostMigrationEvent;
+import org.keycloak.provider.Provider;
 import org.keycloak.provider.ProviderConfigProperty;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class MultiChannelOTPAuthenticatorFactory implements AuthenticatorFactory {
+    public static final String ID = "multi-channel-otp";
+
+    private Config.Scope config;
+    private int asyncMaxInFlight;
+    private int asyncQueueDepth;
+    private long syncRetryBudgetMillis;
+    private OTPDispatcher dispatcher;
+    private OTPOutbox outbox;
+    private OTPDeliveryRegistry deliveryProviders;
+    private boolean warmUpEnabled;
+    private OTPWarmup warmup;
+    // Keyed by authenticator config id and channel so every session of a realm shares the provider's health
+    private final Map<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+    private final OTPSettingsCache settingsCache = new OTPSettingsCache();
+    private final OTPMetrics metrics = new OTPMetrics();
+    private final RateLimiter localRateLimiter = new LocalRateLimiter();
+    private final RateLimiter clusterRateLimiter = new ClusterRateLimiter();
+    private final SendDeduplicator localSendDeduplicator = new LocalSendDeduplicator();
+    private final SendDeduplicator clusterSendDeduplicator = new ClusterSendDeduplicator();
 
     @Override
     public String getId() {
-        return "multi-channel-otp";
+        return ID;
     }
 
     @Override
@@ -57,26 +97,98 @@ public class MultiChannelOTPAuthenticatorFactory implements AuthenticatorFactory
         return Arrays.asList(
             new ProviderConfigProperty("simulation", "Simulation Mode",
                 "Test mode - logs OTP instead of sending", ProviderConfigProperty.BOOLEAN_TYPE, false),
+            new ProviderConfigProperty("logVerbosity", "Log Verbosity",
+                "events: one structured line per flow step, trace: also log each step at INFO, off: no OTP event logging",
+                ProviderConfigProperty.LIST_TYPE, "events", "events", "trace", "off"),
             new ProviderConfigProperty("allowUserChoice", "Allow User Choice",
                 "Let users choose between email and SMS", ProviderConfigProperty.BOOLEAN_TYPE, true),
             new ProviderConfigProperty("forcedChannel", "Forced Channel",
                 "Force specific channel (email/sms)", ProviderConfigProperty.LIST_TYPE, null, "", "email", "sms"),
+            new ProviderConfigProperty("rememberChannel", "Remember Channel",
+                "Send codes straight to the channel a user last verified with instead of asking again; the code form offers the other channel",
+                ProviderConfigProperty.BOOLEAN_TYPE, false),
+            new ProviderConfigProperty("asyncDelivery", "Asynchronous Delivery",
+                "Show the code form immediately and send the OTP in the background", ProviderConfigProperty.BOOLEAN_TYPE, false),
+            new ProviderConfigProperty("deliveryMaxAttempts", "Delivery Attempts",
+                "Maximum send attempts per OTP for transient provider errors", ProviderConfigProperty.STRING_TYPE, "3"),
+            new ProviderConfigProperty("deliveryRetryBaseDelay", "Retry Base Delay (ms)",
+                "Initial backoff before retrying a failed send, doubled on each attempt", ProviderConfigProperty.STRING_TYPE, "500"),
+            new ProviderConfigProperty("deliveryRetryMaxDelay", "Retry Max Delay (ms)",
+                "Upper bound for the backoff between send attempts", ProviderConfigProperty.STRING_TYPE, "10000"),
+            new ProviderConfigProperty("breakerFailureRate", "Circuit Breaker Failure Rate (%)",
+                "Failure or slow-call percentage that opens a provider's circuit breaker", ProviderConfigProperty.STRING_TYPE, "50"),
+            new ProviderConfigProperty("breakerSlowCallMillis", "Circuit Breaker Slow Call (ms)",
+                "Sends slower than this count as failures", ProviderConfigProperty.STRING_TYPE, "5000"),
+            new ProviderConfigProperty("breakerWindowSize", "Circuit Breaker Window",
+                "Number of recent sends the failure rate is computed over", ProviderConfigProperty.STRING_TYPE, "20"),
+            new ProviderConfigProperty("breakerMinimumCalls", "Circuit Breaker Minimum Calls",
+                "Sends required in the window before the breaker can open", ProviderConfigProperty.STRING_TYPE, "10"),
+            new ProviderConfigProperty("breakerOpenDuration", "Circuit Breaker Open Duration (ms)",
+                "How long an open breaker skips the provider before probing it again", ProviderConfigProperty.STRING_TYPE, "30000"),
+            new ProviderConfigProperty("breakerHalfOpenProbes", "Circuit Breaker Probes",
+                "Successful probe sends needed to close the breaker again", ProviderConfigProperty.STRING_TYPE, "3"),
+            new ProviderConfigProperty("sendRateLimit", "Send Rate Limit",
+                "Codes that may be sent per user and per phone number within the rate limit window (0 disables)", ProviderConfigProperty.STRING_TYPE, "5"),
+            new ProviderConfigProperty("ipSendRateLimit", "Send Rate Limit per IP",
+                "Codes that may be sent per client IP within the rate limit window (0 disables)", ProviderConfigProperty.STRING_TYPE, "20"),
+            new ProviderConfigProperty("verifyRateLimit", "Verify Rate Limit",
+                "Code submissions allowed per user within the rate limit window (0 disables)", ProviderConfigProperty.STRING_TYPE, "10"),
+            new ProviderConfigProperty("ipVerifyRateLimit", "Verify Rate Limit per IP",
+                "Code submissions allowed per client IP within the rate limit window (0 disables)", ProviderConfigProperty.STRING_TYPE, "50"),
+            new ProviderConfigProperty("rateLimitWindow", "Rate Limit Window (seconds)",
+                "Period over which the send and verify limits apply", ProviderConfigProperty.STRING_TYPE, "900"),
+            new ProviderConfigProperty("rateLimitClustered", "Cluster-wide Rate Limits",
+                "Share rate limit counters across the cluster instead of counting per node", ProviderConfigProperty.BOOLEAN_TYPE, false),
+            new ProviderConfigProperty("sendDedupWindow", "Send De-duplication Window (seconds)",
+                "Concurrent and double-submitted requests of an authentication session within this time share one send (0 disables)",
+                ProviderConfigProperty.STRING_TYPE, "10"),
+            new ProviderConfigProperty("sendDedupClustered", "Cluster-wide Send De-duplication",
+                "De-duplicate sends across the cluster instead of per node", ProviderConfigProperty.BOOLEAN_TYPE, false),
             new ProviderConfigProperty("length", "Code Length",
                 "Number of digits in OTP code", ProviderConfigProperty.STRING_TYPE, "6"),
             new ProviderConfigProperty("ttl", "Time-to-live (seconds)",
                 "Code validity duration", ProviderConfigProperty.STRING_TYPE, "300"),
             new ProviderConfigProperty("maxRetries", "Max Retries",
                 "Maximum retry attempts", ProviderConfigProperty.STRING_TYPE, "3"),
+            new ProviderConfigProperty("resendCooldown", "Resend Cooldown (seconds)",
+                "Minimum time between two sends of a code; resends reuse the code while it is valid", ProviderConfigProperty.STRING_TYPE, "30"),
             new ProviderConfigProperty("allowNumbers", "Allow Numbers",
                 "Include digits in OTP", ProviderConfigProperty.BOOLEAN_TYPE, true),
             new ProviderConfigProperty("emailSubject", "Email Subject",
                 "Subject for OTP emails", ProviderConfigProperty.STRING_TYPE, "Your Authentication Code"),
+            new ProviderConfigProperty("precompileEmailTemplates", "Precompile Email Templates",
+                "Render the OTP email templates once per realm, theme and locale and only insert the code per message",
+                ProviderConfigProperty.BOOLEAN_TYPE, false),
+            new ProviderConfigProperty("pooledSmtp", "Pooled SMTP Connections",
+                "Send OTP emails over long-lived SMTP connections kept open between messages instead of one connection per email",
+                ProviderConfigProperty.BOOLEAN_TYPE, false),
             new ProviderConfigProperty("twilioAccountSid", "Twilio Account SID",
                 "Twilio Account SID for SMS", ProviderConfigProperty.STRING_TYPE, null),
             new ProviderConfigProperty("twilioAuthToken", "Twilio Auth Token",
                 "Twilio Auth Token for SMS", ProviderConfigProperty.PASSWORD, null),
             new ProviderConfigProperty("twilioFromNumber", "Twilio From Number",
-                "SMS sender number (e.g., +1234567890)", ProviderConfigProperty.STRING_TYPE, null),
+                "SMS sender number (e.g., +1234567890); separate several numbers with commas to spread sends across them",
+                ProviderConfigProperty.STRING_TYPE, null),
+            new ProviderConfigProperty("twilioMessagesPerSecond", "Messages per Second per Sender",
+                "Rate cap of each sender number on this node (0 disables)", ProviderConfigProperty.STRING_TYPE, "0"),
+            new ProviderConfigProperty("twilioConnectTimeout", "Twilio Connect Timeout (ms)",
+                "Maximum time to establish a connection to the Twilio API", ProviderConfigProperty.STRING_TYPE, "5000"),
+            new ProviderConfigProperty("twilioRequestTimeout", "Twilio Request Timeout (ms)",
+                "Maximum time to wait for a Twilio API response", ProviderConfigProperty.STRING_TYPE, "10000"),
+            new ProviderConfigProperty("twilioBaseUrl", "Twilio API Base URL",
+                "Base URL of the Twilio API, e.g. to point at a regional edge or a test stub", ProviderConfigProperty.STRING_TYPE,
+                OTPSettings.DEFAULT_TWILIO_BASE_URL),
+            new ProviderConfigProperty("smsSenders", "SMS Senders (JSON)",
+                "JSON array of Twilio accounts and HTTP SMS gateways to route between; replaces the single Twilio sender",
+                ProviderConfigProperty.TEXT_TYPE, null),
+            new ProviderConfigProperty("smsRoutes", "SMS Routes",
+                "Country prefix rules, one per line, e.g. +49=eu-1,eu-2 or *=fallback", ProviderConfigProperty.TEXT_TYPE, null),
+            new ProviderConfigProperty("deliveryReports", "SMS Delivery Reports",
+                "Ask Twilio to report delivery status back, to measure time to handset and offer email when an SMS is undelivered",
+                ProviderConfigProperty.BOOLEAN_TYPE, false),
+            new ProviderConfigProperty("deliveryReportBaseUrl", "Delivery Report Base URL",
+                "Public Keycloak URL Twilio posts delivery reports to; defaults to the URL of the login request",
+                ProviderConfigProperty.STRING_TYPE, null),
             new ProviderConfigProperty("countryCode", "Default Country Code",
                 "Default country code for phone number normalization (e.g., +1)", ProviderConfigProperty.STRING_TYPE, "+1"),
             new ProviderConfigProperty("smsTemplate", "SMS Message Template",
@@ -86,18 +198,106 @@ public class MultiChannelOTPAuthenticatorFactory implements AuthenticatorFactory
 
     @Override
     public Authenticator create(KeycloakSession session) {
-        return new MultiChannelOTPAuthenticator();
+        return new MultiChannelOTPAuthenticator(this);
     }
 
     @Override
     public void init(Config.Scope config) {
+        this.config = config;
+        asyncMaxInFlight = config.getInt("asyncMaxInFlight", 64);
+        asyncQueueDepth = config.getInt("asyncQueueDepth", 256);
+        syncRetryBudgetMillis = config.getLong("syncRetryBudget", 3000L);
+        warmUpEnabled = config.getBoolean("warmup", false);
     }
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
+        dispatcher = new OTPDispatcher(asyncMaxInFlight, asyncQueueDepth);
+        outbox = new OTPOutbox(dispatcher, syncRetryBudgetMillis);
+        deliveryProviders = OTPDeliveryRegistry.load(factory, config);
+        if (factory != null) {
+            factory.register(event -> {
+                if (event instanceof RealmModel.RealmRemovedEvent) {
+                    settingsCache.evictRealm(((RealmModel.RealmRemovedEvent) event).getRealm().getId());
+                } else if (event instanceof CachedRealmModel.RealmCachedEvent) {
+                    // The realm is cached again after every change to it, including an edited or deleted config
+                    settingsCache.evictRealm(((CachedRealmModel.RealmCachedEvent) event).getRealm().getId());
+                }
+            });
+        }
+        // Realms are only complete once the server has migrated and imported them
+        if (warmUpEnabled && factory != null) {
+            OTPWarmup startupWarmup = new OTPWarmup(this, factory);
+            warmup = startupWarmup;
+            factory.register(event -> {
+                if (event instanceof PostMigrationEvent) {
+                    startupWarmup.start();
+                }
+            });
+        }
+    }
+
+    // Delivery providers are post-initialised first so that their shared instances exist when the registry is built
+    @Override
+    public Set<Class<? extends Provider>> dependsOn() {
+        return Set.of(OTPDeliveryProvider.class);
     }
 
     @Override
     public void close() {
+        if (warmup != null) {
+            warmup.stop();
+            warmup = null;
+        }
+        if (outbox != null) {
+            outbox.close();
+            outbox = null;
+        }
+        if (dispatcher != null) {
+            dispatcher.close();
+            dispatcher = null;
+        }
+        if (deliveryProviders != null) {
+            deliveryProviders.close();
+            deliveryProviders = null;
+        }
+        circuitBreakers.clear();
+        settingsCache.clear();
+    }
+
+    public OTPMetrics getMetrics() {
+        return metrics;
+    }
+
+    public OTPSettings getSettings(RealmModel realm, AuthenticatorConfigModel config) {
+        return settingsCache.get(realm.getId(), config);
+    }
+
+    CircuitBreaker getCircuitBreaker(String configId, OTPChannel channel, CircuitBreaker.Settings settings) {
+        String name = configId + ":" + channel.getValue();
+        CircuitBreaker breaker = circuitBreakers.computeIfAbsent(name, key -> new CircuitBreaker(key, settings));
+        breaker.updateSettings(settings);
+        return breaker;
+    }
+
+    RateLimiter getRateLimiter(boolean clustered) {
+        return clustered ? clusterRateLimiter : localRateLimiter;
+    }
+
+    SendDeduplicator getSendDeduplicator(boolean clustered) {
+        return clustered ? clusterSendDeduplicator : localSendDeduplicator;
+    }
+
+    OTPOutbox getOutbox() {
+        return outbox;
+    }
+
+    OTPDeliveryRegistry getDeliveryProviders() {
+        return deliveryProviders;
+    }
+
+    // Null unless the warm-up is enabled
+    OTPWarmup getWarmup() {
+        return warmup;
     }
 }
\ No newline at end of file
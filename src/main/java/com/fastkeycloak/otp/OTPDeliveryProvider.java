@@ -1,11 +1,29 @@
 package com.fastkeycloak.otp;
 
+import com.fastkeycloak.otp.config.OTPSettings;
 import com.fastkeycloak.otp.enums.OTPChannel;
-import org.keycloak.models.UserModel;
-import java.util.Map;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.provider.Provider;
 
-public interface OTPDeliveryProvider {
-    void sendOTP(String code, UserModel user, Map<String, String> config) throws Exception;
+/**
+ * Delivers codes over one channel. Providers are created once per node by their {@link OTPDeliveryProviderFactory}
+ * and shared by all sessions, so everything request scoped arrives with the {@link OTPDeliveryRequest}.
+ */
+public interface OTPDeliveryProvider extends Provider {
+    String getId();
+    void sendOTP(OTPDeliveryRequest request) throws Exception;
     OTPChannel getChannel();
-    boolean isConfigured(Map<String, String> config);
-}
\ No newline at end of file
+    boolean isConfigured(OTPSettings settings);
+
+    /**
+     * Sets up what the first send for the realm would otherwise pay for, such as connections to the provider or
+     * compiled templates. Called by the startup warm-up for every configuration the provider is configured for.
+     */
+    default void warmUp(KeycloakSession session, RealmModel realm, OTPSettings settings) throws Exception {
+    }
+
+    @Override
+    default void close() {
+    }
+}
@@ -0,0 +1,16 @@
+package com.fastkeycloak.otp;
+
+import com.fastkeycloak.otp.enums.OTPChannel;
+import org.keycloak.provider.ProviderFactory;
+
+/**
+ * Factory of the {@code otp-delivery} SPI. Register implementations in
+ * {@code META-INF/services/com.fastkeycloak.otp.OTPDeliveryProviderFactory}; each factory builds its provider once in
+ * {@link #postInit} and {@link #create} returns that same instance.
+ */
+public interface OTPDeliveryProviderFactory extends ProviderFactory<OTPDeliveryProvider> {
+    OTPChannel getChannel();
+
+    // The shared provider, or null before postInit
+    OTPDeliveryProvider getProvider();
+}
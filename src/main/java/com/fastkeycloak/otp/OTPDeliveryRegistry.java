@@ -0,0 +1,92 @@
+package com.fastkeycloak.otp;
+
+import com.fastkeycloak.otp.enums.OTPChannel;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+/**
+ * The delivery providers of this node, resolved once after startup. Per channel the provider named by the
+ * {@code <channel>Provider} server option is used, otherwise the one with the highest {@code order()}.
+ */
+public class OTPDeliveryRegistry {
+    private static final Logger logger = Logger.getLogger(OTPDeliveryRegistry.class);
+
+    private final Map<OTPChannel, OTPDeliveryProvider> byChannel = new EnumMap<>(OTPChannel.class);
+    private final Map<String, OTPDeliveryProvider> byId = new HashMap<>();
+    // Factories this registry initialised itself and therefore has to close
+    private final List<OTPDeliveryProviderFactory> owned;
+
+    private OTPDeliveryRegistry(List<OTPDeliveryProviderFactory> factories, Config.Scope config,
+                                List<OTPDeliveryProviderFactory> owned) {
+        this.owned = owned;
+        factories.sort(Comparator.comparingInt(OTPDeliveryProviderFactory::order).reversed()
+            .thenComparing(OTPDeliveryProviderFactory::getId));
+        for (OTPDeliveryProviderFactory factory : factories) {
+            OTPDeliveryProvider provider = factory.getProvider();
+            if (provider == null) {
+                logger.warnf("OTP delivery provider %s was not initialised and is ignored", factory.getId());
+                continue;
+            }
+            byId.put(provider.getId(), provider);
+            byChannel.putIfAbsent(provider.getChannel(), provider);
+        }
+        for (OTPChannel channel : OTPChannel.values()) {
+            String preferred = config.get(channel.getValue() + "Provider");
+            if (preferred != null && !preferred.isBlank()) {
+                OTPDeliveryProvider provider = byId.get(preferred.trim());
+                if (provider != null && provider.getChannel() == channel) {
+                    byChannel.put(channel, provider);
+                } else {
+                    logger.warnf("Configured %s provider %s is not available", channel.getValue(), preferred);
+                }
+            }
+            OTPDeliveryProvider provider = byChannel.get(channel);
+            logger.infof("OTP %s delivery provider: %s", channel.getValue(), provider == null ? "none" : provider.getId());
+        }
+    }
+
+    /**
+     * Uses the factories Keycloak has already initialised, or loads and initialises them through
+     * {@link ServiceLoader} when running without a server (benchmarks, load tests).
+     */
+    static OTPDeliveryRegistry load(KeycloakSessionFactory sessionFactory, Config.Scope config) {
+        List<OTPDeliveryProviderFactory> factories = new ArrayList<>();
+        if (sessionFactory != null) {
+            sessionFactory.getProviderFactoriesStream(OTPDeliveryProvider.class)
+                .map(OTPDeliveryProviderFactory.class::cast)
+                .forEach(factories::add);
+            return new OTPDeliveryRegistry(factories, config, Collections.emptyList());
+        }
+        for (OTPDeliveryProviderFactory factory : ServiceLoader.load(OTPDeliveryProviderFactory.class,
+                OTPDeliveryRegistry.class.getClassLoader())) {
+            factory.init(config.scope(OTPDeliverySpi.NAME, factory.getId()));
+            factory.postInit(null);
+            factories.add(factory);
+        }
+        return new OTPDeliveryRegistry(factories, config, new ArrayList<>(factories));
+    }
+
+    // Null when no provider is installed for the channel
+    public OTPDeliveryProvider get(OTPChannel channel) {
+        return byChannel.get(channel);
+    }
+
+    public OTPDeliveryProvider get(String id) {
+        return byId.get(id);
+    }
+
+    void close() {
+        owned.forEach(ProviderFactory::close);
+    }
+}
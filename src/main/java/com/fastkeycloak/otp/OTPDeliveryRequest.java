@@ -0,0 +1,84 @@
+package com.fastkeycloak.otp;
+
+import com.fastkeycloak.otp.config.OTPSettings;
+import com.fastkeycloak.otp.metrics.ProviderMetrics;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+/**
+ * One code to deliver, with the session it is delivered in. For background sends this is the session of the
+ * delivery job, not the one of the login request.
+ */
+public class OTPDeliveryRequest {
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final AuthenticationSessionModel authSession;
+    private final UserModel user;
+    private final String code;
+    private final OTPSettings settings;
+    private final ProviderMetrics metrics;
+    private final String configId;
+    private final String statusCallbackUrl;
+
+    public OTPDeliveryRequest(KeycloakSession session, RealmModel realm, AuthenticationSessionModel authSession,
+                              UserModel user, String code, OTPSettings settings, ProviderMetrics metrics) {
+        this(session, realm, authSession, user, code, settings, metrics, null, null);
+    }
+
+    public OTPDeliveryRequest(KeycloakSession session, RealmModel realm, AuthenticationSessionModel authSession,
+                              UserModel user, String code, OTPSettings settings, ProviderMetrics metrics,
+                              String configId, String statusCallbackUrl) {
+        this.session = session;
+        this.realm = realm;
+        this.authSession = authSession;
+        this.user = user;
+        this.code = code;
+        this.settings = settings;
+        this.metrics = metrics;
+        this.configId = configId;
+        this.statusCallbackUrl = statusCallbackUrl;
+    }
+
+    public KeycloakSession getSession() {
+        return session;
+    }
+
+    public RealmModel getRealm() {
+        return realm;
+    }
+
+    public AuthenticationSessionModel getAuthSession() {
+        return authSession;
+    }
+
+    public UserModel getUser() {
+        return user;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public OTPSettings getSettings() {
+        return settings;
+    }
+
+    public ProviderMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Id of the authenticator configuration the settings come from, or null for the defaults
+    public String getConfigId() {
+        return configId;
+    }
+
+    /**
+     * The realm's delivery status endpoint, or null when delivery reports are off. Providers append their own id,
+     * e.g. {@code .../otp-delivery-status/twilio}.
+     */
+    public String getStatusCallbackUrl() {
+        return statusCallbackUrl;
+    }
+}
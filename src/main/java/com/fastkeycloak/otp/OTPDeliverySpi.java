@@ -0,0 +1,29 @@
+package com.fastkeycloak.otp;
+
+import org.keycloak.provider.Provider;
+import org.keycloak.provider.ProviderFactory;
+import org.keycloak.provider.Spi;
+
+public class OTPDeliverySpi implements Spi {
+    public static final String NAME = "otp-delivery";
+
+    @Override
+    public boolean isInternal() {
+        return false;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Class<? extends Provider> getProviderClass() {
+        return OTPDeliveryProvider.class;
+    }
+
+    @Override
+    public Class<? extends ProviderFactory<?>> getProviderFactoryClass() {
+        return OTPDeliveryProviderFactory.class;
+    }
+}
@@ -0,0 +1,177 @@
+package com.fastkeycloak.otp;
+
+import com.fastkeycloak.otp.code.CodeGenerator;
+import com.fastkeycloak.otp.config.OTPSettings;
+import com.fastkeycloak.otp.enums.OTPChannel;
+import org.jboss.logging.Logger;
+import org.keycloak.models.AuthenticationExecutionModel;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.theme.FreeMarkerException;
+import org.keycloak.theme.Theme;
+import org.keycloak.theme.freemarker.FreeMarkerProvider;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opt-in warm-up in the background after startup, so the first logins on a freshly started node do not pay for cold
+ * DNS, TLS handshakes, template parsing and random seeding. For every authenticator configuration of every realm the
+ * delivery providers connect to their endpoints and compile their templates and the login theme parses
+ * {@code otp-form.ftl}; the code generator is seeded once. Failures are logged and never affect logins.
+ */
+public class OTPWarmup {
+    private static final Logger logger = Logger.getLogger(OTPWarmup.class);
+    private static final String FORM_TEMPLATE = "otp-form.ftl";
+
+    @FunctionalInterface
+    private interface Step {
+        void run() throws Exception;
+    }
+
+    private final MultiChannelOTPAuthenticatorFactory factory;
+    private final KeycloakSessionFactory sessionFactory;
+    private Thread thread;
+    private volatile boolean ready;
+    private volatile long durationMillis = -1L;
+    private volatile int configurations;
+    private volatile int failures;
+
+    OTPWarmup(MultiChannelOTPAuthenticatorFactory factory, KeycloakSessionFactory sessionFactory) {
+        this.factory = factory;
+        this.sessionFactory = sessionFactory;
+    }
+
+    synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this::run, "otp-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    // -1 until the warm-up finished
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public int getConfigurations() {
+        return configurations;
+    }
+
+    public int getFailures() {
+        return failures;
+    }
+
+    private void run() {
+        long start = System.nanoTime();
+        factory.getMetrics().warmUpStarted();
+        int failed = step(null, "code generator", CodeGenerator::prime);
+
+        // Realm and config ids, the latter null for executions without a configuration
+        List<String[]> targets = new ArrayList<>();
+        failed += step(null, "realm lookup", () -> KeycloakModelUtils.runJobInTransaction(sessionFactory,
+            session -> session.realms().getRealmsStream().forEach(realm -> configIds(realm)
+                .forEach(configId -> targets.add(new String[] {realm.getId(), configId})))));
+        for (String[] target : targets) {
+            if (Thread.currentThread().isInterrupted()) {
+                logger.info("OTP warm-up interrupted");
+                return;
+            }
+            failed += warmUp(target[0], target[1]);
+        }
+
+        long durationNanos = System.nanoTime() - start;
+        configurations = targets.size();
+        failures = failed;
+        durationMillis = TimeUnit.NANOSECONDS.toMillis(durationNanos);
+        factory.getMetrics().warmUpFinished(durationNanos);
+        ready = true;
+        logger.infof("OTP warm-up finished in %d ms: %d authenticator configurations, %d failed steps",
+            durationMillis, configurations, failed);
+    }
+
+    private static List<String> configIds(RealmModel realm) {
+        List<String> configIds = new ArrayList<>();
+        realm.getAuthenticationFlowsStream()
+            .flatMap(flow -> realm.getAuthenticationExecutionsStream(flow.getId()))
+            .filter(execution -> MultiChannelOTPAuthenticatorFactory.ID.equals(execution.getAuthenticator()))
+            .map(AuthenticationExecutionModel::getAuthenticatorConfig)
+            .distinct()
+            .forEach(configIds::add);
+        return configIds;
+    }
+
+    private int warmUp(String realmId, String configId) {
+        // Failed steps within the realm, the failure of the transaction itself is added on return
+        int[] failed = new int[1];
+        int transaction = step(null, "realm " + realmId, () -> KeycloakModelUtils.runJobInTransaction(sessionFactory,
+            session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                if (realm == null) {
+                    return;
+                }
+                session.getContext().setRealm(realm);
+                AuthenticatorConfigModel config = configId == null ? null : realm.getAuthenticatorConfigById(configId);
+                OTPSettings settings = factory.getSettings(realm, config);
+                failed[0] += step(realm, FORM_TEMPLATE, () -> parseLoginForm(session));
+                if (settings.isSimulation()) {
+                    return;
+                }
+                for (OTPChannel channel : OTPChannel.values()) {
+                    OTPDeliveryProvider provider = factory.getDeliveryProviders().get(channel);
+                    boolean usable = settings.getForcedChannel() == null
+                        || settings.getForcedChannel().equals(channel.getValue());
+                    if (provider != null && usable && provider.isConfigured(settings)) {
+                        failed[0] += step(realm, provider.getId(), () -> provider.warmUp(session, realm, settings));
+                    }
+                }
+            }));
+        return failed[0] + transaction;
+    }
+
+    // Keycloak caches a parsed template before it renders it, so rendering without the beans of a login request
+    // fails but still leaves otp-form.ftl and the templates it imports parsed
+    private static void parseLoginForm(KeycloakSession session) throws Exception {
+        Theme theme = session.theme().getTheme(Theme.Type.LOGIN);
+        try {
+            session.getProvider(FreeMarkerProvider.class).processTemplate(new HashMap<String, Object>(), FORM_TEMPLATE,
+                theme);
+        } catch (FreeMarkerException expected) {
+            logger.tracef("Rendering %s outside a login failed as expected: %s", FORM_TEMPLATE, expected.getMessage());
+        }
+    }
+
+    private static int step(RealmModel realm, String name, Step step) {
+        long start = System.nanoTime();
+        try {
+            step.run();
+            logger.debugf("Warmed up %s%s in %d ms", name, realm == null ? "" : " for realm " + realm.getName(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        } catch (Exception e) {
+            logger.warnf("OTP warm-up of %s%s failed: %s", name, realm == null ? "" : " for realm " + realm.getName(),
+                e.getMessage());
+            return 1;
+        }
+    }
+}
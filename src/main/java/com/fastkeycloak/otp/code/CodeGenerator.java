@@ -0,0 +1,153 @@
+package com.fastkeycloak.otp.code;
+
+import org.jboss.logging.Logger;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.security.DrbgParameters;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Generates OTP codes without a shared random source. Every platform thread owns a DRBG seeded from the system
+ * entropy source; virtual threads, which are too short-lived to amortise their own, share a small set of striped
+ * DRBGs instead. Random bytes are drawn in blocks and mapped onto the alphabet by rejection sampling, so every
+ * character is exactly uniform.
+ */
+public final class CodeGenerator {
+    private static final Logger logger = Logger.getLogger(CodeGenerator.class);
+    private static final int BUFFER_BYTES = 64;
+    private static final int STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 4 - 1) << 1;
+    private static final MethodHandle IS_VIRTUAL = isVirtualHandle();
+
+    private static final ThreadLocal<Source> THREAD_SOURCE = ThreadLocal.withInitial(Source::new);
+    private static final AtomicReferenceArray<Source> STRIPED_SOURCES = new AtomicReferenceArray<>(STRIPES);
+
+    public enum Alphabet {
+        DIGITS("0123456789"),
+        LETTERS("ABCDEFGHIJKLMNOPQRSTUVWXYZ");
+
+        private final char[] chars;
+        // Bytes at or above the largest multiple of the alphabet size would favour the first characters
+        private final int limit;
+
+        Alphabet(String chars) {
+            this.chars = chars.toCharArray();
+            this.limit = 256 - 256 % this.chars.length;
+        }
+
+        public int size() {
+            return chars.length;
+        }
+    }
+
+    private CodeGenerator() {
+    }
+
+    public static String generate(int length, Alphabet alphabet) {
+        char[] code = new char[length];
+        source().fill(code, alphabet);
+        return new String(code);
+    }
+
+    /**
+     * Generates {@code count} codes in one pass over the random source, e.g. to prepare codes for a load test.
+     */
+    public static String[] generate(int length, Alphabet alphabet, int count) {
+        String[] codes = new String[count];
+        char[] code = new char[length];
+        Source source = source();
+        synchronized (source) {
+            for (int i = 0; i < count; i++) {
+                source.fill(code, alphabet);
+                codes[i] = new String(code);
+            }
+        }
+        return codes;
+    }
+
+    /**
+     * Seeds the DRBGs shared by virtual threads and the one of the calling thread, so the first codes after startup
+     * do not wait for the system entropy source. Other platform threads still seed their own on first use, from an
+     * entropy source that is warm by then.
+     */
+    public static void prime() {
+        char[] code = new char[1];
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            STRIPED_SOURCES.compareAndSet(stripe, null, new Source());
+            STRIPED_SOURCES.get(stripe).fill(code, Alphabet.DIGITS);
+        }
+        THREAD_SOURCE.get().fill(code, Alphabet.DIGITS);
+    }
+
+    private static Source source() {
+        Thread thread = Thread.currentThread();
+        if (!isVirtual(thread)) {
+            return THREAD_SOURCE.get();
+        }
+        int stripe = (int) (thread.getId() * 0x9E3779B97F4A7C15L >>> 32) & (STRIPES - 1);
+        Source source = STRIPED_SOURCES.get(stripe);
+        if (source == null) {
+            STRIPED_SOURCES.compareAndSet(stripe, null, new Source());
+            source = STRIPED_SOURCES.get(stripe);
+        }
+        return source;
+    }
+
+    private static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    // Thread.isVirtual() only exists on JDK 21+
+    private static MethodHandle isVirtualHandle() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static final class Source {
+        private final SecureRandom random = newRandom();
+        private final byte[] buffer = new byte[BUFFER_BYTES];
+        private int position = BUFFER_BYTES;
+
+        // Uncontended for thread-owned sources; striped sources may be shared by a few virtual threads
+        synchronized void fill(char[] code, Alphabet alphabet) {
+            char[] chars = alphabet.chars;
+            int limit = alphabet.limit;
+            int i = 0;
+            while (i < code.length) {
+                if (position == BUFFER_BYTES) {
+                    random.nextBytes(buffer);
+                    position = 0;
+                }
+                int value = buffer[position] & 0xFF;
+                // Consumed bytes are cleared so the buffer never reveals codes already issued
+                buffer[position++] = 0;
+                if (value < limit) {
+                    code[i++] = chars[value % chars.length];
+                }
+            }
+        }
+
+        private static SecureRandom newRandom() {
+            try {
+                return SecureRandom.getInstance("DRBG",
+                    DrbgParameters.instantiation(256, DrbgParameters.Capability.RESEED_ONLY, null));
+            } catch (NoSuchAlgorithmException e) {
+                logger.warnf("DRBG is not available, generating OTP codes with the default SecureRandom: %s", e.getMessage());
+                return new SecureRandom();
+            }
+        }
+    }
+}
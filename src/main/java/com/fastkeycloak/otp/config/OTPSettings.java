@@ -0,0 +1,391 @@
+package com.fastkeycloak.otp.config;
+
+import com.fastkeycloak.otp.delivery.CircuitBreaker;
+import com.fastkeycloak.otp.delivery.RetryPolicy;
+import com.fastkeycloak.otp.enums.OTPChannel;
+import com.fastkeycloak.otp.logging.OTPEventLogger.Verbosity;
+import com.fastkeycloak.otp.sms.SmsRouting;
+import org.jboss.logging.Logger;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Immutable, validated view of an authenticator configuration. Built once per configuration by
+ * {@link OTPSettingsCache}; malformed values are reported once and replaced by their defaults.
+ */
+public final class OTPSettings {
+    private static final Logger logger = Logger.getLogger(OTPSettings.class);
+    public static final String DEFAULT_TWILIO_BASE_URL = "https://api.twilio.com";
+
+    private final boolean simulation;
+    private final Verbosity logVerbosity;
+    private final boolean allowUserChoice;
+    private final String forcedChannel;
+    private final boolean rememberChannel;
+    private final boolean asyncDelivery;
+    private final int codeLength;
+    private final int ttlSeconds;
+    private final int maxRetries;
+    private final int resendCooldownSeconds;
+    private final boolean allowNumbers;
+    private final RetryPolicy retryPolicy;
+    private final CircuitBreaker.Settings breakerSettings;
+    private final int sendRateLimit;
+    private final int ipSendRateLimit;
+    private final int verifyRateLimit;
+    private final int ipVerifyRateLimit;
+    private final long rateLimitWindowMillis;
+    private final boolean rateLimitClustered;
+    private final long sendDedupWindowMillis;
+    private final boolean sendDedupClustered;
+    private final String emailSubject;
+    private final boolean precompileEmailTemplates;
+    private final boolean pooledSmtp;
+    private final String twilioAccountSid;
+    private final String twilioAuthToken;
+    private final String twilioFromNumber;
+    private final long twilioConnectTimeoutMillis;
+    private final long twilioRequestTimeoutMillis;
+    private final String twilioBaseUrl;
+    private final SmsRouting smsRouting;
+    private final boolean deliveryReports;
+    private final String deliveryReportBaseUrl;
+    private final String countryCode;
+    private final String smsTemplate;
+
+    private OTPSettings(Map<String, String> config, String name) {
+        Parser parser = new Parser(config, name);
+        simulation = parser.bool("simulation", false);
+        String verbosity = config.get("logVerbosity");
+        logVerbosity = "off".equals(verbosity) ? Verbosity.OFF : "trace".equals(verbosity) ? Verbosity.TRACE : Verbosity.EVENTS;
+        allowUserChoice = parser.bool("allowUserChoice", true);
+        rememberChannel = parser.bool("rememberChannel", false);
+        asyncDelivery = parser.bool("asyncDelivery", false);
+        codeLength = parser.integer("length", 6, 1, 64);
+        ttlSeconds = parser.integer("ttl", 300, 1, 86400);
+        maxRetries = parser.integer("maxRetries", 3, 0, 1000);
+        resendCooldownSeconds = parser.integer("resendCooldown", 30, 0, 86400);
+        allowNumbers = parser.bool("allowNumbers", true);
+        retryPolicy = new RetryPolicy(
+            parser.integer("deliveryMaxAttempts", 3, 1, 20),
+            parser.longValue("deliveryRetryBaseDelay", 500L, 1L),
+            parser.longValue("deliveryRetryMaxDelay", 10000L, 1L));
+        breakerSettings = new CircuitBreaker.Settings(
+            parser.integer("breakerFailureRate", 50, 1, 100),
+            parser.longValue("breakerSlowCallMillis", 5000L, 1L),
+            parser.integer("breakerWindowSize", 20, 1, 10000),
+            parser.integer("breakerMinimumCalls", 10, 1, 10000),
+            parser.longValue("breakerOpenDuration", 30000L, 0L),
+            parser.integer("breakerHalfOpenProbes", 3, 1, 1000));
+        sendRateLimit = parser.integer("sendRateLimit", 5, 0, Integer.MAX_VALUE);
+        ipSendRateLimit = parser.integer("ipSendRateLimit", 20, 0, Integer.MAX_VALUE);
+        verifyRateLimit = parser.integer("verifyRateLimit", 10, 0, Integer.MAX_VALUE);
+        ipVerifyRateLimit = parser.integer("ipVerifyRateLimit", 50, 0, Integer.MAX_VALUE);
+        rateLimitWindowMillis = parser.longValue("rateLimitWindow", 900L, 1L) * 1000L;
+        rateLimitClustered = parser.bool("rateLimitClustered", false);
+        sendDedupWindowMillis = parser.integer("sendDedupWindow", 10, 0, 3600) * 1000L;
+        sendDedupClustered = parser.bool("sendDedupClustered", false);
+        emailSubject = config.getOrDefault("emailSubject", "Your Authentication Code");
+        precompileEmailTemplates = parser.bool("precompileEmailTemplates", false);
+        pooledSmtp = parser.bool("pooledSmtp", false);
+        twilioAccountSid = valueOrEnv(config, "twilioAccountSid", "TWILIO_ACCOUNT_SID");
+        twilioAuthToken = valueOrEnv(config, "twilioAuthToken", "TWILIO_AUTH_TOKEN");
+        twilioFromNumber = valueOrEnv(config, "twilioFromNumber", "TWILIO_FROM_NUMBER");
+        twilioConnectTimeoutMillis = parser.longValue("twilioConnectTimeout", 5000L, 1L);
+        twilioRequestTimeoutMillis = parser.longValue("twilioRequestTimeout", 10000L, 1L);
+        twilioBaseUrl = parser.baseUrl("twilioBaseUrl", DEFAULT_TWILIO_BASE_URL);
+        smsRouting = smsRouting(config, parser);
+        forcedChannel = forcedChannel(config.get("forcedChannel"), parser);
+        deliveryReports = parser.bool("deliveryReports", false);
+        deliveryReportBaseUrl = parser.baseUrl("deliveryReportBaseUrl", null);
+        countryCode = config.getOrDefault("countryCode", "+1");
+        String template = config.getOrDefault("smsTemplate", "Your verification code is: %s");
+        if (!template.contains("%s")) {
+            parser.invalid("smsTemplate", template, "Your verification code is: %s");
+            template = "Your verification code is: %s";
+        }
+        smsTemplate = template;
+    }
+
+    // A forced channel the config cannot deliver on would fail every login, so users choose as if none was set
+    private String forcedChannel(String value, Parser parser) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        String channel = value.trim();
+        if (OTPChannel.EMAIL.getValue().equals(channel)) {
+            return channel;
+        }
+        if (OTPChannel.SMS.getValue().equals(channel)) {
+            if (isSmsConfigured()) {
+                return channel;
+            }
+            logger.warnf("Ignoring forced channel 'sms' in OTP authenticator config %s, no SMS sender is configured",
+                parser.name);
+            return null;
+        }
+        parser.invalid("forcedChannel", value, "none");
+        return null;
+    }
+
+    public static OTPSettings fromConfig(Map<String, String> config, String name) {
+        return new OTPSettings(config == null ? Collections.emptyMap() : config, name);
+    }
+
+    public boolean isSimulation() {
+        return simulation;
+    }
+
+    public Verbosity getLogVerbosity() {
+        return logVerbosity;
+    }
+
+    public boolean isAllowUserChoice() {
+        return allowUserChoice;
+    }
+
+    public String getForcedChannel() {
+        return forcedChannel;
+    }
+
+    // Only matters while users get to choose a channel
+    public boolean isRememberChannel() {
+        return rememberChannel && allowUserChoice && forcedChannel == null;
+    }
+
+    public boolean isAsyncDelivery() {
+        return asyncDelivery;
+    }
+
+    public int getCodeLength() {
+        return codeLength;
+    }
+
+    public int getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public int getResendCooldownSeconds() {
+        return resendCooldownSeconds;
+    }
+
+    public boolean isAllowNumbers() {
+        return allowNumbers;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public CircuitBreaker.Settings getBreakerSettings() {
+        return breakerSettings;
+    }
+
+    public int getSendRateLimit() {
+        return sendRateLimit;
+    }
+
+    public int getIpSendRateLimit() {
+        return ipSendRateLimit;
+    }
+
+    public int getVerifyRateLimit() {
+        return verifyRateLimit;
+    }
+
+    public int getIpVerifyRateLimit() {
+        return ipVerifyRateLimit;
+    }
+
+    public long getRateLimitWindowMillis() {
+        return rateLimitWindowMillis;
+    }
+
+    public boolean isRateLimitClustered() {
+        return rateLimitClustered;
+    }
+
+    // 0 when de-duplication is disabled
+    public long getSendDedupWindowMillis() {
+        return sendDedupWindowMillis;
+    }
+
+    public boolean isSendDedupClustered() {
+        return sendDedupClustered;
+    }
+
+    public String getEmailSubject() {
+        return emailSubject;
+    }
+
+    public boolean isPrecompileEmailTemplates() {
+        return precompileEmailTemplates;
+    }
+
+    // Pooled connections carry precompiled messages, so they precompile templates even when that is off
+    public boolean isPooledSmtp() {
+        return pooledSmtp;
+    }
+
+    public String getTwilioAccountSid() {
+        return twilioAccountSid;
+    }
+
+    public String getTwilioAuthToken() {
+        return twilioAuthToken;
+    }
+
+    public String getTwilioFromNumber() {
+        return twilioFromNumber;
+    }
+
+    public boolean isTwilioConfigured() {
+        return twilioAccountSid != null && twilioAuthToken != null && twilioFromNumber != null;
+    }
+
+    public long getTwilioConnectTimeoutMillis() {
+        return twilioConnectTimeoutMillis;
+    }
+
+    public long getTwilioRequestTimeoutMillis() {
+        return twilioRequestTimeoutMillis;
+    }
+
+    public String getTwilioBaseUrl() {
+        return twilioBaseUrl;
+    }
+
+    public SmsRouting getSmsRouting() {
+        return smsRouting;
+    }
+
+    public boolean isSmsConfigured() {
+        return !smsRouting.isEmpty();
+    }
+
+    public boolean isDeliveryReports() {
+        return deliveryReports;
+    }
+
+    // Public Keycloak URL providers post delivery reports to, or null to use the URL of the login request
+    public String getDeliveryReportBaseUrl() {
+        return deliveryReportBaseUrl;
+    }
+
+    public String getCountryCode() {
+        return countryCode;
+    }
+
+    public String getSmsTemplate() {
+        return smsTemplate;
+    }
+
+    // Explicit sender definitions replace the single Twilio account; invalid ones fall back to it
+    private SmsRouting smsRouting(Map<String, String> config, Parser parser) {
+        long messagesPerSecond = parser.longValue("twilioMessagesPerSecond", 0L, 0L);
+        SmsRouting twilio = SmsRouting.twilio(twilioBaseUrl, twilioAccountSid, twilioAuthToken, twilioFromNumber,
+            messagesPerSecond);
+        String senders = config.get("smsSenders");
+        if (senders == null || senders.isBlank()) {
+            return twilio;
+        }
+        try {
+            return SmsRouting.parse(senders, config.get("smsRoutes"), twilioBaseUrl, twilioAccountSid, twilioAuthToken,
+                messagesPerSecond);
+        } catch (IllegalArgumentException e) {
+            parser.invalid("smsSenders", e.getMessage(), "the Twilio account settings");
+            return twilio;
+        }
+    }
+
+    private static String valueOrEnv(Map<String, String> config, String configKey, String envKey) {
+        String value = config.get(configKey);
+        if (value == null || value.trim().isEmpty()) {
+            value = System.getenv(envKey);
+        }
+        return value;
+    }
+
+    private static final class Parser {
+        private final Map<String, String> config;
+        private final String name;
+
+        Parser(Map<String, String> config, String name) {
+            this.config = config;
+            this.name = name;
+        }
+
+        boolean bool(String key, boolean defaultValue) {
+            String value = config.get(key);
+            if (value == null || value.isBlank()) {
+                return defaultValue;
+            }
+            if ("true".equalsIgnoreCase(value.trim())) {
+                return true;
+            }
+            if ("false".equalsIgnoreCase(value.trim())) {
+                return false;
+            }
+            invalid(key, value, defaultValue);
+            return defaultValue;
+        }
+
+        int integer(String key, int defaultValue, int min, int max) {
+            return (int) longValue(key, defaultValue, min, max);
+        }
+
+        long longValue(String key, long defaultValue, long min) {
+            return longValue(key, defaultValue, min, Long.MAX_VALUE);
+        }
+
+        private long longValue(String key, long defaultValue, long min, long max) {
+            String value = config.get(key);
+            if (value == null || value.isBlank()) {
+                return defaultValue;
+            }
+            try {
+                long parsed = Long.parseLong(value.trim());
+                if (parsed >= min && parsed <= max) {
+                    return parsed;
+                }
+            } catch (NumberFormatException ignored) {
+                // reported below
+            }
+            invalid(key, value, defaultValue);
+            return defaultValue;
+        }
+
+        String baseUrl(String key, String defaultValue) {
+            String value = config.get(key);
+            if (value == null || value.isBlank()) {
+                return defaultValue;
+            }
+            String url = value.trim();
+            while (url.endsWith("/")) {
+                url = url.substring(0, url.length() - 1);
+            }
+            try {
+                URI uri = new URI(url);
+                if (("http".equals(uri.getScheme()) || "https".equals(uri.getScheme())) && uri.getHost() != null) {
+                    return url;
+                }
+            } catch (URISyntaxException ignored) {
+                // reported below
+            }
+            invalid(key, value, defaultValue);
+            return defaultValue;
+        }
+
+        void invalid(String key, String value, Object defaultValue) {
+            logger.warnf("Invalid value '%s' for '%s' in OTP authenticator config %s, using default %s",
+                value, key, name, defaultValue);
+        }
+    }
+}
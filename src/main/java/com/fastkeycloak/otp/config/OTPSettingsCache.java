@@ -0,0 +1,57 @@
+package com.fastkeycloak.otp.config;
+
+import org.keycloak.models.AuthenticatorConfigModel;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parsed settings per authenticator config id. Every change to a realm, including an edited or deleted config, has
+ * its entries dropped by {@link #evictRealm} once the realm is cached again. An entry also remembers the hash of the
+ * contents it was parsed from, so a config whose contents change without that event, e.g. while the realm cache is
+ * disabled, is parsed again on its next use.
+ */
+public class OTPSettingsCache {
+    private static final String DEFAULT_KEY = "";
+
+    private static final class Entry {
+        final String realmId;
+        final int hash;
+        final OTPSettings settings;
+
+        Entry(String realmId, int hash, OTPSettings settings) {
+            this.realmId = realmId;
+            this.hash = hash;
+            this.settings = settings;
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // Config ids are unique across realms; the realm id only serves to drop the realm's entries later
+    public OTPSettings get(String realmId, AuthenticatorConfigModel config) {
+        String key = config == null || config.getId() == null ? DEFAULT_KEY : config.getId();
+        Map<String, String> source = config == null || config.getConfig() == null
+            ? Collections.emptyMap() : config.getConfig();
+
+        // Cheap since strings cache their hashes, and no copy of the contents is kept or compared
+        int hash = source.hashCode();
+        Entry entry = entries.get(key);
+        if (entry != null && entry.hash == hash) {
+            return entry.settings;
+        }
+        String name = config == null ? "<none>" : config.getAlias();
+        Entry updated = new Entry(realmId, hash, OTPSettings.fromConfig(source, name));
+        entries.put(key, updated);
+        return updated.settings;
+    }
+
+    public void evictRealm(String realmId) {
+        entries.values().removeIf(entry -> entry.realmId.equals(realmId));
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,104 @@
+package com.fastkeycloak.otp.dedup;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.SingleUseObjectProvider;
+
+import java.util.Map;
+
+/**
+ * Cluster-wide de-duplication on top of Keycloak's single-use object store. Requests are first de-duplicated on
+ * their own node, so only one request per node touches the store; it then claims the send with an atomic
+ * putIfAbsent. The leader stores the issued state and its result next to the claim, and requests from other nodes
+ * poll for either with a backoff, returning as soon as one is there.
+ */
+public class ClusterSendDeduplicator implements SendDeduplicator {
+    private static final String KEY_PREFIX = "otp-send:";
+    private static final String STATE_SUFFIX = ":state";
+    private static final String RESULT_SUFFIX = ":result";
+    private static final String STATE_NOTE = "state";
+    private static final long MIN_POLL_MILLIS = 25L;
+    private static final long MAX_POLL_MILLIS = 400L;
+
+    private final LocalSendDeduplicator local = new LocalSendDeduplicator();
+
+    @Override
+    public Claim claim(KeycloakSession session, String key, long windowMillis) {
+        Claim localClaim = local.claim(session, key, windowMillis);
+        if (!localClaim.isLeader()) {
+            return localClaim;
+        }
+        SingleUseObjectProvider store = session.singleUseObjects();
+        String storeKey = KEY_PREFIX + key;
+        long lifespanSeconds = Math.max(1L, (windowMillis + 999L) / 1000L);
+        boolean leader = store.putIfAbsent(storeKey, lifespanSeconds);
+        return new ClusterClaim(store, storeKey, lifespanSeconds, localClaim, leader);
+    }
+
+    private static final class ClusterClaim implements Claim {
+        private final SingleUseObjectProvider store;
+        private final String storeKey;
+        private final long lifespanSeconds;
+        // Joined by the requests of this node
+        private final Claim localClaim;
+        private final boolean leader;
+
+        ClusterClaim(SingleUseObjectProvider store, String storeKey, long lifespanSeconds, Claim localClaim,
+                     boolean leader) {
+            this.store = store;
+            this.storeKey = storeKey;
+            this.lifespanSeconds = lifespanSeconds;
+            this.localClaim = localClaim;
+            this.leader = leader;
+        }
+
+        @Override
+        public boolean isLeader() {
+            return leader;
+        }
+
+        @Override
+        public void publishState(String stateNote) {
+            localClaim.publishState(stateNote);
+            store.put(storeKey + STATE_SUFFIX, lifespanSeconds, Map.of(STATE_NOTE, stateNote));
+        }
+
+        @Override
+        public void complete(SendResult result) {
+            store.put(storeKey + RESULT_SUFFIX, lifespanSeconds, result.toNotes());
+            if (result.isError()) {
+                store.remove(storeKey);
+            }
+            localClaim.complete(result);
+        }
+
+        @Override
+        public SendResult join(long timeoutMillis) {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            long pollMillis = MIN_POLL_MILLIS;
+            SendResult result = null;
+            try {
+                while (true) {
+                    Map<String, String> notes = store.get(storeKey + RESULT_SUFFIX);
+                    if (notes != null) {
+                        result = SendResult.fromNotes(notes);
+                        break;
+                    }
+                    Map<String, String> state = store.get(storeKey + STATE_SUFFIX);
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (state != null || remaining <= 0) {
+                        result = SendResult.inFlight(state == null ? null : state.get(STATE_NOTE));
+                        break;
+                    }
+                    Thread.sleep(Math.min(pollMillis, remaining));
+                    pollMillis = Math.min(pollMillis * 2, MAX_POLL_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result = SendResult.inFlight(null);
+            }
+            // This request led the send on its node, so the local joiners take the same result
+            localClaim.complete(result);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.fastkeycloak.otp.dedup;
+
+import org.keycloak.models.KeycloakSession;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-node de-duplication: one entry per claimed send, holding the leader's published state and a future of its
+ * result. Entries stay for the claim window so late duplicates still join, except after errors, which a retry must
+ * be able to send again. Expired entries are swept whenever the map has doubled since the last sweep.
+ */
+public class LocalSendDeduplicator implements SendDeduplicator {
+    private static final int MIN_SWEEP_SIZE = 1024;
+
+    private static final class Entry {
+        final long expiresAt;
+        final CompletableFuture<SendResult> result = new CompletableFuture<>();
+        final CompletableFuture<String> stateNote = new CompletableFuture<>();
+
+        Entry(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicInteger sweepSize = new AtomicInteger(MIN_SWEEP_SIZE);
+
+    @Override
+    public Claim claim(KeycloakSession session, String key, long windowMillis) {
+        long now = System.currentTimeMillis();
+        Entry fresh = new Entry(now + windowMillis);
+        Entry entry = entries.compute(key, (k, existing) -> existing != null && existing.expiresAt > now ? existing : fresh);
+        if (entry == fresh && entries.size() >= sweepSize.get()) {
+            sweep(now);
+        }
+        return new LocalClaim(key, entry, entry == fresh);
+    }
+
+    private void sweep(long now) {
+        entries.values().removeIf(entry -> entry.expiresAt <= now);
+        sweepSize.set(Math.max(MIN_SWEEP_SIZE, entries.size() * 2));
+    }
+
+    private final class LocalClaim implements Claim {
+        private final String key;
+        private final Entry entry;
+        private final boolean leader;
+
+        LocalClaim(String key, Entry entry, boolean leader) {
+            this.key = key;
+            this.entry = entry;
+            this.leader = leader;
+        }
+
+        @Override
+        public boolean isLeader() {
+            return leader;
+        }
+
+        @Override
+        public void publishState(String stateNote) {
+            entry.stateNote.complete(stateNote);
+        }
+
+        @Override
+        public void complete(SendResult result) {
+            if (result.isError()) {
+                entries.remove(key, entry);
+            }
+            entry.result.complete(result);
+        }
+
+        @Override
+        public SendResult join(long timeoutMillis) {
+            try {
+                CompletableFuture.anyOf(entry.result, entry.stateNote).get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                // fall through to whatever the leader has published
+            }
+            SendResult result = entry.result.getNow(null);
+            return result != null ? result : SendResult.inFlight(entry.stateNote.getNow(null));
+        }
+    }
+}
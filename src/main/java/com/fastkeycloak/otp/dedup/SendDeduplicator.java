@@ -0,0 +1,27 @@
+package com.fastkeycloak.otp.dedup;
+
+import org.keycloak.models.KeycloakSession;
+
+public interface SendDeduplicator {
+    /**
+     * Claims the send identified by {@code key} for {@code windowMillis}. The first request becomes its leader and
+     * sends; requests claiming the same key while the claim lasts join the leader's result instead.
+     */
+    Claim claim(KeycloakSession session, String key, long windowMillis);
+
+    interface Claim {
+        boolean isLeader();
+
+        // Leader: the issued code, so joiners can show the form even before delivery finishes
+        void publishState(String stateNote);
+
+        // Leader: must be called exactly once, also when sending failed
+        void complete(SendResult result);
+
+        /**
+         * Joiner: the leader's result when it is known, otherwise an in-flight result with the state it published.
+         * Waits up to {@code timeoutMillis} only while the leader has published neither.
+         */
+        SendResult join(long timeoutMillis);
+    }
+}
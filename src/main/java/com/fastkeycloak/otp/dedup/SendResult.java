@@ -0,0 +1,111 @@
+package com.fastkeycloak.otp.dedup;
+
+import org.keycloak.authentication.AuthenticationFlowError;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * What a send left in the authentication session and showed the user, so that requests joining it can do the same.
+ */
+public final class SendResult {
+    private static final String STATE = "state";
+    private static final String DELIVERY_STATUS = "status";
+    private static final String ERROR = "error";
+    private static final String ERROR_PARAMETER = "errorParameter";
+    private static final String FLOW_ERROR = "flowError";
+    private static final String HTTP_STATUS = "httpStatus";
+
+    private final String stateNote;
+    private final String deliveryStatus;
+    private final String error;
+    private final String errorParameter;
+    private final AuthenticationFlowError flowError;
+    private final int httpStatus;
+    private final boolean inFlight;
+
+    private SendResult(String stateNote, String deliveryStatus, String error, String errorParameter,
+                       AuthenticationFlowError flowError, int httpStatus, boolean inFlight) {
+        this.stateNote = stateNote;
+        this.deliveryStatus = deliveryStatus;
+        this.error = error;
+        this.errorParameter = errorParameter;
+        this.flowError = flowError;
+        this.httpStatus = httpStatus;
+        this.inFlight = inFlight;
+    }
+
+    // The OTP form for the code in stateNote; a null delivery status clears the previous one
+    public static SendResult form(String stateNote, String deliveryStatus) {
+        return new SendResult(stateNote, deliveryStatus, null, null, null, 0, false);
+    }
+
+    public static SendResult error(AuthenticationFlowError flowError, int httpStatus, String error,
+                                   String errorParameter, String stateNote) {
+        return new SendResult(stateNote, null, error, errorParameter, flowError, httpStatus, false);
+    }
+
+    // The send has not finished in time; stateNote is the issued code if it is known yet
+    static SendResult inFlight(String stateNote) {
+        return new SendResult(stateNote, null, null, null, null, 0, true);
+    }
+
+    static SendResult fromNotes(Map<String, String> notes) {
+        String flowError = notes.get(FLOW_ERROR);
+        String httpStatus = notes.get(HTTP_STATUS);
+        return new SendResult(notes.get(STATE), notes.get(DELIVERY_STATUS), notes.get(ERROR),
+            notes.get(ERROR_PARAMETER), flowError == null ? null : AuthenticationFlowError.valueOf(flowError),
+            httpStatus == null ? 0 : Integer.parseInt(httpStatus), false);
+    }
+
+    Map<String, String> toNotes() {
+        Map<String, String> notes = new HashMap<>();
+        putIfPresent(notes, STATE, stateNote);
+        putIfPresent(notes, DELIVERY_STATUS, deliveryStatus);
+        putIfPresent(notes, ERROR, error);
+        putIfPresent(notes, ERROR_PARAMETER, errorParameter);
+        if (flowError != null) {
+            notes.put(FLOW_ERROR, flowError.name());
+            notes.put(HTTP_STATUS, Integer.toString(httpStatus));
+        }
+        return notes;
+    }
+
+    private static void putIfPresent(Map<String, String> notes, String key, String value) {
+        if (value != null) {
+            notes.put(key, value);
+        }
+    }
+
+    public String getStateNote() {
+        return stateNote;
+    }
+
+    public String getDeliveryStatus() {
+        return deliveryStatus;
+    }
+
+    public boolean isError() {
+        return error != null;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public String getErrorParameter() {
+        return errorParameter;
+    }
+
+    public AuthenticationFlowError getFlowError() {
+        return flowError;
+    }
+
+    public int getHttpStatus() {
+        return httpStatus;
+    }
+
+    public boolean isInFlight() {
+        return inFlight;
+    }
+}
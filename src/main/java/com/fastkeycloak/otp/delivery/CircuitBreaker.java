@@ -0,0 +1,176 @@
+package com.fastkeycloak.otp.delivery;
+
+import org.jboss.logging.Logger;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Count-based circuit breaker for one delivery provider. A call counts as failed when it throws, unless the request
+ * was at fault such as an invalid recipient, or takes longer than the slow-call threshold; the breaker opens once the
+ * failure rate over the last
+ * {@code windowSize} calls reaches the threshold, and closes again after enough successful half-open probes.
+ */
+public class CircuitBreaker {
+    private static final Logger logger = Logger.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    public static class Settings {
+        final int failureRatePercent;
+        final long slowCallNanos;
+        final int windowSize;
+        final int minimumCalls;
+        final long openDurationMillis;
+        final int halfOpenProbes;
+
+        public Settings(int failureRatePercent, long slowCallMillis, int windowSize, int minimumCalls,
+                        long openDurationMillis, int halfOpenProbes) {
+            this.failureRatePercent = failureRatePercent;
+            this.slowCallNanos = slowCallMillis * 1_000_000L;
+            this.windowSize = Math.max(1, windowSize);
+            this.minimumCalls = Math.max(1, Math.min(minimumCalls, this.windowSize));
+            this.openDurationMillis = openDurationMillis;
+            this.halfOpenProbes = Math.max(1, halfOpenProbes);
+        }
+    }
+
+    private final String name;
+    private volatile Settings settings;
+    private State state = State.CLOSED;
+    private boolean[] outcomes;
+    private int position;
+    private int recorded;
+    private int failures;
+    private long stateChangedAt;
+    private int probesPermitted;
+    private int probesSucceeded;
+
+    public CircuitBreaker(String name, Settings settings) {
+        this.name = name;
+        this.settings = settings;
+        this.outcomes = new boolean[settings.windowSize];
+    }
+
+    public void updateSettings(Settings settings) {
+        this.settings = settings;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized boolean tryAcquirePermission() {
+        long now = System.currentTimeMillis();
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now - stateChangedAt < settings.openDurationMillis) {
+                    return false;
+                }
+                transitionTo(State.HALF_OPEN, now);
+                probesPermitted = 1;
+                return true;
+            case HALF_OPEN:
+            default:
+                // Probes whose outcome never came back must not keep the breaker half-open forever
+                if (now - stateChangedAt >= settings.openDurationMillis) {
+                    stateChangedAt = now;
+                    probesPermitted = 0;
+                    probesSucceeded = 0;
+                }
+                if (probesPermitted < settings.halfOpenProbes) {
+                    probesPermitted++;
+                    return true;
+                }
+                return false;
+        }
+    }
+
+    // Hands back a permission whose call was never made, so a half-open breaker need not wait for the probe to time out
+    public synchronized void releasePermission() {
+        if (state == State.HALF_OPEN && probesPermitted > 0) {
+            probesPermitted--;
+        }
+    }
+
+    /**
+     * Records the outcome of every attempt. The first attempt runs on the permission the caller acquired; retries
+     * ask again, so they stop once the breaker has opened instead of calling a failing provider.
+     */
+    public OTPOutbox.DeliveryAttempt guard(OTPOutbox.DeliveryAttempt attempt) {
+        AtomicBoolean retry = new AtomicBoolean();
+        return () -> {
+            if (retry.getAndSet(true) && !tryAcquirePermission()) {
+                throw new OTPDeliveryException("Circuit breaker " + name + " is open", false);
+            }
+            long start = System.nanoTime();
+            try {
+                attempt.run();
+            } catch (Exception e) {
+                // The provider answered a caller error, so it counts as a call that went through
+                record(System.nanoTime() - start, !OTPOutbox.isCallerError(e));
+                throw e;
+            }
+            record(System.nanoTime() - start, false);
+        };
+    }
+
+    public synchronized void record(long durationNanos, boolean error) {
+        Settings current = settings;
+        boolean failed = error || durationNanos > current.slowCallNanos;
+        long now = System.currentTimeMillis();
+
+        if (state == State.HALF_OPEN) {
+            if (failed) {
+                transitionTo(State.OPEN, now);
+            } else if (++probesSucceeded >= current.halfOpenProbes) {
+                transitionTo(State.CLOSED, now);
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            return;
+        }
+
+        if (outcomes.length != current.windowSize) {
+            resetWindow(current.windowSize);
+        }
+        if (recorded == outcomes.length) {
+            if (outcomes[position]) {
+                failures--;
+            }
+        } else {
+            recorded++;
+        }
+        outcomes[position] = failed;
+        if (failed) {
+            failures++;
+        }
+        position = (position + 1) % outcomes.length;
+
+        if (recorded >= current.minimumCalls && failures * 100 >= current.failureRatePercent * recorded) {
+            transitionTo(State.OPEN, now);
+        }
+    }
+
+    private void transitionTo(State newState, long now) {
+        logger.warnf("Circuit breaker %s: %s -> %s", name, state, newState);
+        state = newState;
+        stateChangedAt = now;
+        probesPermitted = 0;
+        probesSucceeded = 0;
+        if (newState == State.CLOSED) {
+            resetWindow(settings.windowSize);
+        }
+    }
+
+    private void resetWindow(int windowSize) {
+        outcomes = new boolean[windowSize];
+        position = 0;
+        recorded = 0;
+        failures = 0;
+    }
+}
@@ -0,0 +1,37 @@
+package com.fastkeycloak.otp.delivery;
+
+public class OTPDeliveryException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final boolean retryable;
+    private final long retryAfterMillis;
+    private final boolean callerError;
+
+    public OTPDeliveryException(String message, boolean retryable) {
+        this(message, retryable, 0L);
+    }
+
+    public OTPDeliveryException(String message, boolean retryable, long retryAfterMillis) {
+        this(message, retryable, retryAfterMillis, false);
+    }
+
+    public OTPDeliveryException(String message, boolean retryable, long retryAfterMillis, boolean callerError) {
+        super(message);
+        this.retryable = retryable;
+        this.retryAfterMillis = retryAfterMillis;
+        this.callerError = callerError;
+    }
+
+    public boolean isRetryable() {
+        return retryable;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    // The request itself was at fault, e.g. an invalid recipient, rather than the provider
+    public boolean isCallerError() {
+        return callerError;
+    }
+}
@@ -0,0 +1,104 @@
+package com.fastkeycloak.otp.delivery;
+
+import org.jboss.logging.Logger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded executor for background OTP sends. At most {@code maxInFlight} sends run at once and at most
+ * {@code queueDepth} more wait behind them; anything beyond that is rejected instead of queued.
+ */
+public class OTPDispatcher {
+    private static final Logger logger = Logger.getLogger(OTPDispatcher.class);
+
+    private final ExecutorService executor;
+    private final Semaphore admitted;
+    private final Semaphore inFlight;
+    private final boolean virtualThreads;
+
+    public OTPDispatcher(int maxInFlight, int queueDepth) {
+        this.admitted = new Semaphore(maxInFlight + queueDepth);
+        this.inFlight = new Semaphore(maxInFlight);
+        ExecutorService virtual = newVirtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.executor = virtual != null ? virtual : newPlatformExecutor(maxInFlight);
+        logger.infof("OTP dispatcher started - virtual threads: %s, max in flight: %d, queue depth: %d",
+            virtualThreads, maxInFlight, queueDepth);
+    }
+
+    public boolean submit(Runnable task) {
+        if (!admitted.tryAcquire()) {
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    inFlight.acquire();
+                    try {
+                        task.run();
+                    } finally {
+                        inFlight.release();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    logger.error("Unhandled exception in OTP delivery task", e);
+                } finally {
+                    admitted.release();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            admitted.release();
+            return false;
+        }
+    }
+
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        if (Runtime.version().feature() < 21) {
+            return null;
+        }
+        try {
+            // Looked up reflectively so the jar still builds and runs on JDK 17
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.debug("Virtual threads unavailable, using platform thread pool", e);
+            return null;
+        }
+    }
+
+    private static ExecutorService newPlatformExecutor(int maxInFlight) {
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxInFlight, maxInFlight, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "otp-delivery-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
@@ -0,0 +1,189 @@
+package com.fastkeycloak.otp.delivery;
+
+import jakarta.mail.SendFailedException;
+import jakarta.mail.internet.AddressException;
+import org.jboss.logging.Logger;
+import org.keycloak.email.EmailException;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Retry stage in front of the delivery providers. Failed sends are retried with jittered exponential backoff
+ * until they succeed, fail permanently, run out of attempts or the OTP they carry expires. Retries are kept in memory
+ * only: those still waiting when the node shuts down are completed as failed, not resumed after a restart.
+ */
+public class OTPOutbox {
+    private static final Logger logger = Logger.getLogger(OTPOutbox.class);
+
+    @FunctionalInterface
+    public interface DeliveryAttempt {
+        void run() throws Exception;
+    }
+
+    private final OTPDispatcher dispatcher;
+    private final long syncRetryBudgetMillis;
+    private final ScheduledExecutorService scheduler;
+    // Scheduled and not yet resubmitted, so that close() can complete them
+    private final Set<Retry> pending = ConcurrentHashMap.newKeySet();
+
+    public OTPOutbox(OTPDispatcher dispatcher, long syncRetryBudgetMillis) {
+        this.dispatcher = dispatcher;
+        this.syncRetryBudgetMillis = Math.max(0L, syncRetryBudgetMillis);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "otp-outbox");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Runs every attempt on the calling thread and rethrows the last failure. That thread serves the login request,
+     * so no retry is started once the attempts and backoff so far plus the next delay would exceed the sync retry
+     * budget.
+     */
+    public void send(DeliveryAttempt attempt, RetryPolicy policy, long expiresAt) throws Exception {
+        long start = System.currentTimeMillis();
+        for (int attemptNumber = 1; ; attemptNumber++) {
+            checkNotExpired(expiresAt);
+            try {
+                attempt.run();
+                return;
+            } catch (Exception e) {
+                long delay = nextDelay(e, attemptNumber, policy, Math.min(expiresAt, start + syncRetryBudgetMillis));
+                if (delay < 0) {
+                    throw e;
+                }
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    // Runs attempts on the dispatcher and waits out backoff on the scheduler; onComplete gets null on success
+    public boolean enqueue(DeliveryAttempt attempt, RetryPolicy policy, long expiresAt, Consumer<Exception> onComplete) {
+        return submitAttempt(attempt, policy, expiresAt, onComplete, 1);
+    }
+
+    public void close() {
+        scheduler.shutdownNow();
+        for (Retry retry : pending) {
+            if (pending.remove(retry)) {
+                retry.complete(new OTPDeliveryException("OTP delivery outbox closed before the retry ran", false));
+            }
+        }
+    }
+
+    private boolean submitAttempt(DeliveryAttempt attempt, RetryPolicy policy, long expiresAt,
+                                  Consumer<Exception> onComplete, int attemptNumber) {
+        return dispatcher.submit(() -> {
+            try {
+                checkNotExpired(expiresAt);
+                attempt.run();
+                onComplete.accept(null);
+            } catch (Exception e) {
+                long delay = nextDelay(e, attemptNumber, policy, expiresAt);
+                if (delay < 0) {
+                    onComplete.accept(e);
+                    return;
+                }
+                Retry retry = new Retry(attempt, policy, expiresAt, onComplete, attemptNumber + 1);
+                pending.add(retry);
+                try {
+                    scheduler.schedule(retry, delay, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException rejected) {
+                    if (pending.remove(retry)) {
+                        onComplete.accept(e);
+                    }
+                }
+            }
+        });
+    }
+
+    // Whoever removes a retry from pending, the scheduler or close(), completes it
+    private final class Retry implements Runnable {
+        private final DeliveryAttempt attempt;
+        private final RetryPolicy policy;
+        private final long expiresAt;
+        private final Consumer<Exception> onComplete;
+        private final int attemptNumber;
+
+        Retry(DeliveryAttempt attempt, RetryPolicy policy, long expiresAt, Consumer<Exception> onComplete,
+              int attemptNumber) {
+            this.attempt = attempt;
+            this.policy = policy;
+            this.expiresAt = expiresAt;
+            this.onComplete = onComplete;
+            this.attemptNumber = attemptNumber;
+        }
+
+        @Override
+        public void run() {
+            if (pending.remove(this) && !submitAttempt(attempt, policy, expiresAt, onComplete, attemptNumber)) {
+                complete(new OTPDeliveryException("OTP delivery queue is full", false));
+            }
+        }
+
+        void complete(Exception failure) {
+            try {
+                onComplete.accept(failure);
+            } catch (RuntimeException e) {
+                logger.warnf("Could not complete a pending OTP delivery retry: %s", e.getMessage());
+            }
+        }
+    }
+
+    // The deadline is the code's expiry, or earlier when the caller cannot wait that long
+    private long nextDelay(Exception e, int attemptNumber, RetryPolicy policy, long deadline) {
+        if (!isRetryable(e)) {
+            return -1;
+        }
+        if (attemptNumber >= policy.getMaxAttempts()) {
+            logger.warnf("OTP delivery failed after %d attempts: %s", attemptNumber, e.getMessage());
+            return -1;
+        }
+        long retryAfter = e instanceof OTPDeliveryException ? ((OTPDeliveryException) e).getRetryAfterMillis() : 0L;
+        long delay = policy.backoffMillis(attemptNumber, retryAfter);
+        if (System.currentTimeMillis() + delay >= deadline) {
+            logger.warnf("Dropping OTP delivery retry, the next attempt would be too late: %s", e.getMessage());
+            return -1;
+        }
+        logger.infof("OTP delivery attempt %d failed, retrying in %d ms: %s", attemptNumber, delay, e.getMessage());
+        return delay;
+    }
+
+    public static boolean isRetryable(Exception e) {
+        if (e instanceof OTPDeliveryException) {
+            return ((OTPDeliveryException) e).isRetryable();
+        }
+        return e instanceof IOException || e instanceof EmailException;
+    }
+
+    // Failures caused by the recipient rather than the provider, which say nothing about the provider's health
+    public static boolean isCallerError(Exception e) {
+        if (e instanceof OTPDeliveryException) {
+            return ((OTPDeliveryException) e).isCallerError();
+        }
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof AddressException) {
+                return true;
+            }
+            if (cause instanceof SendFailedException) {
+                Object[] invalid = ((SendFailedException) cause).getInvalidAddresses();
+                return invalid != null && invalid.length > 0;
+            }
+        }
+        return false;
+    }
+
+    private static void checkNotExpired(long expiresAt) {
+        if (System.currentTimeMillis() >= expiresAt) {
+            throw new OTPDeliveryException("OTP expired before it could be delivered", false);
+        }
+    }
+}
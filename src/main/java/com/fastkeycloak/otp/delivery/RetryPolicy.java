@@ -0,0 +1,28 @@
+package com.fastkeycloak.otp.delivery;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+public class RetryPolicy {
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMillis = Math.max(1L, baseDelayMillis);
+        this.maxDelayMillis = Math.max(this.baseDelayMillis, maxDelayMillis);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    // Exponential backoff with equal jitter; a provider supplied Retry-After wins if it is longer, up to the max delay
+    public long backoffMillis(int attempt, long retryAfterMillis) {
+        int shift = Math.min(attempt - 1, 30);
+        long exponential = Math.min(maxDelayMillis, baseDelayMillis << shift);
+        long half = exponential / 2;
+        long jittered = half + ThreadLocalRandom.current().nextLong(half + 1);
+        return Math.max(jittered, Math.min(retryAfterMillis, maxDelayMillis));
+    }
+}
@@ -0,0 +1,130 @@
+package com.fastkeycloak.otp.email;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.ThemeManager;
+import org.keycloak.models.UserModel;
+import org.keycloak.theme.FreeMarkerException;
+import org.keycloak.theme.Theme;
+import org.keycloak.theme.beans.MessageFormatterMethod;
+import org.keycloak.theme.freemarker.FreeMarkerProvider;
+
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Precompiled OTP emails keyed by realm, email theme, locale, template and subject. Switching a realm to another
+ * theme or locale selects a different entry; entries also expire so edited theme files are picked up, and nothing is
+ * cached while Keycloak's own theme cache is disabled. The least recently used entry is evicted when the cache is
+ * full.
+ */
+public class EmailTemplateCache {
+    private static final Logger logger = Logger.getLogger(EmailTemplateCache.class);
+
+    private static final class Entry {
+        final String realmId;
+        // Null when the templates cannot be precompiled and every send has to render them
+        final PrecompiledEmail email;
+        final long expiresAt;
+
+        Entry(String realmId, PrecompiledEmail email, long expiresAt) {
+            this.realmId = realmId;
+            this.email = email;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final long ttlMillis;
+    private final Map<String, Entry> entries;
+
+    public EmailTemplateCache(int maxEntries, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the precompiled email for the user's realm, theme and locale, or null when the caller should render
+     * it through {@code EmailTemplateProvider} instead.
+     */
+    public PrecompiledEmail get(KeycloakSession session, RealmModel realm, UserModel user, String subjectKey,
+                                String template) {
+        if (ttlMillis <= 0) {
+            return null;
+        }
+        ThemeManager themes = session.theme();
+        if (!themes.isCacheEnabled()) {
+            return null;
+        }
+        try {
+            Theme theme = themes.getTheme(Theme.Type.EMAIL);
+            Locale locale = session.getContext().resolveLocale(user, Theme.Type.EMAIL);
+            String key = realm.getId() + '|' + theme.getName() + '|' + locale.toLanguageTag() + '|' + template + '|' + subjectKey;
+            long now = System.currentTimeMillis();
+
+            synchronized (entries) {
+                Entry entry = entries.get(key);
+                if (entry != null && entry.expiresAt > now) {
+                    return entry.email;
+                }
+            }
+            PrecompiledEmail email = compile(session, realm, theme, locale, subjectKey, template);
+            synchronized (entries) {
+                entries.put(key, new Entry(realm.getId(), email, now + ttlMillis));
+            }
+            return email;
+        } catch (IOException e) {
+            logger.debugf(e, "Could not load email theme for realm %s", realm.getName());
+            return null;
+        }
+    }
+
+    public void evictRealm(String realmId) {
+        synchronized (entries) {
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().realmId.equals(realmId)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    // Renders the templates the way FreeMarkerEmailTemplateProvider does, minus the per-user beans
+    private PrecompiledEmail compile(KeycloakSession session, RealmModel realm, Theme theme, Locale locale,
+                                     String subjectKey, String template) throws IOException {
+        Properties messages = theme.getEnhancedMessages(realm, locale);
+        Map<String, Object> attributes = PrecompiledEmail.slotAttributes();
+        attributes.put("locale", locale);
+        attributes.put("msg", new MessageFormatterMethod(locale, messages));
+        attributes.put("properties", theme.getProperties());
+
+        FreeMarkerProvider freeMarker = session.getProvider(FreeMarkerProvider.class);
+        try {
+            String subject = new MessageFormat(messages.getProperty(subjectKey, subjectKey), locale).format(new Object[0]);
+            String text = freeMarker.processTemplate(attributes, "text/" + template, theme);
+            String html = freeMarker.processTemplate(attributes, "html/" + template, theme);
+            return new PrecompiledEmail(subject, text, html);
+        } catch (FreeMarkerException | IllegalArgumentException e) {
+            logger.infof("Email template %s of theme %s cannot be precompiled, rendering it per message: %s",
+                template, theme.getName(), e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.fastkeycloak.otp.email;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An OTP email whose templates were rendered once with placeholders for the values that change per message. Sending
+ * a code only splices {@code code}, {@code ttl} and {@code realmName} into the pre-rendered text. Templates that do
+ * more with these values than print them (conditions, built-ins) are rejected with an
+ * {@link IllegalArgumentException}.
+ */
+public final class PrecompiledEmail {
+    public static final String CODE = "code";
+    public static final String TTL = "ttl";
+    public static final String REALM_NAME = "realmName";
+
+    private static final String[] SLOTS = {CODE, TTL, REALM_NAME};
+    // Letters and digits only, so no output format escapes or reflows the marker
+    private static final String MARKER_PREFIX = "OTPSLOT";
+    private static final String MARKER = MARKER_PREFIX + Long.toString(new SecureRandom().nextLong() & Long.MAX_VALUE, 36) + "S";
+
+    private static final class Body {
+        final String[] literals;
+        final int[] slots;
+        final int literalLength;
+        final boolean escapeHtml;
+
+        Body(String rendered, boolean escapeHtml) {
+            List<String> literalList = new ArrayList<>();
+            List<Integer> slotList = new ArrayList<>();
+            int length = 0;
+            int from = 0;
+            int marker;
+            while ((marker = rendered.indexOf(MARKER, from)) >= 0) {
+                int slotIndex = marker + MARKER.length();
+                int slot = slotIndex + 1 < rendered.length() && rendered.charAt(slotIndex + 1) == 'E'
+                    ? rendered.charAt(slotIndex) - '0' : -1;
+                if (slot < 0 || slot >= SLOTS.length) {
+                    throw new IllegalArgumentException("Template transforms a dynamic value");
+                }
+                String literal = rendered.substring(from, marker);
+                literalList.add(literal);
+                length += literal.length();
+                slotList.add(slot);
+                // Skip the slot digit and its terminating 'E'
+                from = slotIndex + 2;
+            }
+            String tail = rendered.substring(from);
+            literalList.add(tail);
+            length += tail.length();
+            for (String literal : literalList) {
+                if (literal.toUpperCase(Locale.ROOT).contains(MARKER_PREFIX)) {
+                    throw new IllegalArgumentException("Template transforms a dynamic value");
+                }
+            }
+
+            this.literals = literalList.toArray(new String[0]);
+            this.slots = slotList.stream().mapToInt(Integer::intValue).toArray();
+            this.literalLength = length;
+            this.escapeHtml = escapeHtml;
+        }
+
+        String render(String[] values) {
+            StringBuilder out = new StringBuilder(literalLength + 32 * slots.length);
+            for (int i = 0; i < slots.length; i++) {
+                out.append(literals[i]);
+                String value = values[slots[i]];
+                if (escapeHtml) {
+                    appendEscaped(out, value);
+                } else {
+                    out.append(value);
+                }
+            }
+            return out.append(literals[slots.length]).toString();
+        }
+    }
+
+    private final String subject;
+    private final Body text;
+    private final Body html;
+
+    public PrecompiledEmail(String subject, String renderedText, String renderedHtml) {
+        this.subject = subject;
+        this.text = new Body(renderedText, false);
+        this.html = new Body(renderedHtml, true);
+    }
+
+    /**
+     * Template attributes that render as placeholders. Pass them to the template engine in place of the real values
+     * and hand its output to the constructor.
+     */
+    public static Map<String, Object> slotAttributes() {
+        Map<String, Object> attributes = new HashMap<>();
+        for (int i = 0; i < SLOTS.length; i++) {
+            attributes.put(SLOTS[i], MARKER + i + "E");
+        }
+        return attributes;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String renderText(String code, String ttl, String realmName) {
+        return text.render(new String[] {code, ttl, realmName});
+    }
+
+    public String renderHtml(String code, String ttl, String realmName) {
+        return html.render(new String[] {code, ttl, realmName});
+    }
+
+    private static void appendEscaped(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '"':
+                    out.append("&quot;");
+                    break;
+                case '\'':
+                    out.append("&#39;");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package com.fastkeycloak.otp.email;
+
+import jakarta.mail.Address;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import org.jboss.logging.Logger;
+import org.keycloak.common.enums.HostnameVerificationPolicy;
+import org.keycloak.email.DefaultEmailAuthenticator;
+import org.keycloak.email.EmailAuthenticator;
+import org.keycloak.email.EmailException;
+import org.keycloak.email.PasswordAuthEmailAuthenticator;
+import org.keycloak.email.TokenAuthEmailAuthenticator;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.truststore.JSSETruststoreConfigurator;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived SMTP connections for OTP emails, one pool per realm, built from the realm's SMTP settings the way
+ * {@code DefaultEmailSenderProvider} builds its connection. Keycloak connects, authenticates and negotiates TLS for
+ * every message; here a connection carries up to {@code maxMessagesPerConnection} messages before it is replaced.
+ * Idle connections are handed out most recently used first, so the ones a quieter period no longer needs stay unused
+ * and are closed by the sweep once they were idle for {@code idleTimeoutMillis}. When every pooled connection of the
+ * realm is busy, a send does not queue for one but connects for its message alone, as Keycloak would.
+ */
+public class SmtpTransportPool {
+    private static final Logger logger = Logger.getLogger(SmtpTransportPool.class);
+    // Same as the timeouts Keycloak sets on its own SMTP connections
+    private static final String TIMEOUT_MILLIS = "10000";
+    // How long a send waits for a pooled connection before it opens one of its own
+    private static final long WAIT_MILLIS = 200L;
+    // A connection idle for longer is checked with NOOP before it is used again
+    private static final long CHECK_AFTER_IDLE_MILLIS = 2000L;
+    private static final String SSL_PROTOCOLS = "TLSv1.3 TLSv1.2";
+
+    private final int maxConnections;
+    private final int maxMessagesPerConnection;
+    private final long idleTimeoutMillis;
+    private final Map<String, Pool> pools = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper;
+
+    public SmtpTransportPool(int maxConnections, int maxMessagesPerConnection, long idleTimeoutMillis) {
+        this.maxConnections = Math.max(1, maxConnections);
+        this.maxMessagesPerConnection = Math.max(1, maxMessagesPerConnection);
+        this.idleTimeoutMillis = Math.max(1000L, idleTimeoutMillis);
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "otp-smtp-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(500L, this.idleTimeoutMillis / 2);
+        sweeper.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends a message over a pooled connection of the realm. Changed SMTP settings replace the realm's pool; its
+     * connections are closed as they come back.
+     */
+    public void send(KeycloakSession session, RealmModel realm, String address, String subject, String textBody,
+                     String htmlBody) throws EmailException {
+        if (address == null || address.isBlank()) {
+            throw new EmailException("No email address configured for the user");
+        }
+        pool(session, realm).send(session, address, subject, textBody, htmlBody);
+    }
+
+    // Opens a connection for the realm unless one is idle already, e.g. so the first email after startup finds one
+    public void preconnect(KeycloakSession session, RealmModel realm) throws EmailException {
+        pool(session, realm).preconnect(session);
+    }
+
+    private Pool pool(KeycloakSession session, RealmModel realm) {
+        Map<String, String> smtpConfig = realm.getSmtpConfig();
+        Pool[] replaced = new Pool[1];
+        Pool pool = pools.compute(realm.getId(), (id, current) -> {
+            if (current != null && current.config.equals(smtpConfig)) {
+                return current;
+            }
+            replaced[0] = current;
+            return new Pool(session, new HashMap<>(smtpConfig));
+        });
+        // Closing sends QUIT to the server, which must not happen while the map entry is locked
+        if (replaced[0] != null) {
+            replaced[0].close();
+        }
+        return pool;
+    }
+
+    public void evictRealm(String realmId) {
+        Pool pool = pools.remove(realmId);
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    public void close() {
+        sweeper.shutdownNow();
+        pools.values().forEach(Pool::close);
+        pools.clear();
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        pools.values().forEach(pool -> pool.evictIdle(now));
+    }
+
+    private final class Pool {
+        private final Map<String, String> config;
+        private final Session mailSession;
+        private final EmailAuthenticator authenticator;
+        private final Semaphore leases = new Semaphore(maxConnections);
+        private final Deque<Connection> idle = new ConcurrentLinkedDeque<>();
+        private volatile boolean closed;
+
+        Pool(KeycloakSession session, Map<String, String> config) {
+            this.config = config;
+            this.mailSession = Session.getInstance(properties(session, config));
+            this.authenticator = authenticator(config);
+        }
+
+        void send(KeycloakSession session, String address, String subject, String textBody, String htmlBody)
+            throws EmailException {
+            Message message = message(address, subject, textBody, htmlBody);
+            boolean leased;
+            try {
+                leased = leases.tryAcquire(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new EmailException("Interrupted while waiting for an SMTP connection", e);
+            }
+            if (!leased) {
+                sendUnpooled(session, message);
+                return;
+            }
+            try {
+                for (boolean fresh = false; ; fresh = true) {
+                    Connection connection = fresh ? open(session) : borrow(session);
+                    try {
+                        connection.transport.sendMessage(message, message.getAllRecipients());
+                    } catch (MessagingException | IllegalStateException e) {
+                        connection.close();
+                        // A reused connection the server dropped since its last message is retried once on a new one,
+                        // whether Jakarta Mail reports that as a MessagingException or as "Not connected";
+                        // rejections of the message itself are not
+                        if (fresh || !connection.reused || e instanceof SendFailedException) {
+                            throw new EmailException("Error when attempting to send the email to the server", e);
+                        }
+                        logger.debugf("Pooled SMTP connection failed after %d messages, reconnecting: %s",
+                            connection.messages, e.getMessage());
+                        continue;
+                    }
+                    connection.messages++;
+                    release(connection);
+                    return;
+                }
+            } finally {
+                leases.release();
+            }
+        }
+
+        private void sendUnpooled(KeycloakSession session, Message message) throws EmailException {
+            logger.debugf("All %d pooled SMTP connections are busy, sending over a new connection", maxConnections);
+            Connection connection = open(session);
+            try {
+                connection.transport.sendMessage(message, message.getAllRecipients());
+            } catch (MessagingException | IllegalStateException e) {
+                throw new EmailException("Error when attempting to send the email to the server", e);
+            } finally {
+                connection.close();
+            }
+        }
+
+        void preconnect(KeycloakSession session) throws EmailException {
+            if (!idle.isEmpty() || !leases.tryAcquire()) {
+                return;
+            }
+            try {
+                release(open(session));
+            } finally {
+                leases.release();
+            }
+        }
+
+        private Connection borrow(KeycloakSession session) throws EmailException {
+            long now = System.currentTimeMillis();
+            Connection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                if (now - connection.lastUsed < CHECK_AFTER_IDLE_MILLIS || connection.transport.isConnected()) {
+                    connection.reused = true;
+                    return connection;
+                }
+                connection.close();
+            }
+            return open(session);
+        }
+
+        private Connection open(KeycloakSession session) throws EmailException {
+            try {
+                Transport transport = mailSession.getTransport("smtp");
+                authenticator.connect(session, config, transport);
+                logger.debugf("Opened pooled SMTP connection to %s:%s", config.get("host"), config.get("port"));
+                return new Connection(transport);
+            } catch (MessagingException e) {
+                throw new EmailException("Could not open an SMTP connection", e);
+            }
+        }
+
+        private void release(Connection connection) {
+            if (closed || connection.messages >= maxMessagesPerConnection) {
+                connection.close();
+                return;
+            }
+            connection.lastUsed = System.currentTimeMillis();
+            idle.offerFirst(connection);
+            // The pool may have been closed while the connection was out
+            if (closed && idle.removeFirstOccurrence(connection)) {
+                connection.close();
+            }
+        }
+
+        void evictIdle(long now) {
+            Iterator<Connection> oldestFirst = idle.descendingIterator();
+            while (oldestFirst.hasNext()) {
+                Connection connection = oldestFirst.next();
+                if (now - connection.lastUsed >= idleTimeoutMillis && idle.removeFirstOccurrence(connection)) {
+                    connection.close();
+                }
+            }
+        }
+
+        void close() {
+            closed = true;
+            Connection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                connection.close();
+            }
+        }
+
+        private Message message(String address, String subject, String textBody, String htmlBody)
+            throws EmailException {
+            try {
+                MimeMessage message = new MimeMessage(mailSession);
+                message.setFrom(internetAddress(config.get("from"), config.get("fromDisplayName")));
+                String replyTo = config.get("replyTo");
+                if (replyTo != null && !replyTo.isBlank()) {
+                    message.setReplyTo(new Address[] {internetAddress(replyTo, config.get("replyToDisplayName"))});
+                }
+                message.setRecipient(Message.RecipientType.TO, new InternetAddress(address));
+                message.setSubject(subject, StandardCharsets.UTF_8.name());
+
+                MimeMultipart multipart = new MimeMultipart("alternative");
+                if (textBody != null) {
+                    MimeBodyPart text = new MimeBodyPart();
+                    text.setText(textBody, StandardCharsets.UTF_8.name());
+                    multipart.addBodyPart(text);
+                }
+                if (htmlBody != null) {
+                    MimeBodyPart html = new MimeBodyPart();
+                    html.setContent(htmlBody, "text/html; charset=UTF-8");
+                    multipart.addBodyPart(html);
+                }
+                message.setContent(multipart);
+                message.setSentDate(new Date());
+                message.saveChanges();
+                return message;
+            } catch (MessagingException | UnsupportedEncodingException e) {
+                throw new EmailException("Could not build the email", e);
+            }
+        }
+    }
+
+    private static final class Connection {
+        final Transport transport;
+        int messages;
+        // Taken from the idle connections rather than opened for the send at hand
+        boolean reused;
+        volatile long lastUsed;
+
+        Connection(Transport transport) {
+            this.transport = transport;
+        }
+
+        void close() {
+            try {
+                transport.close();
+            } catch (MessagingException e) {
+                logger.debugf("Closing pooled SMTP connection failed: %s", e.getMessage());
+            }
+        }
+    }
+
+    private static InternetAddress internetAddress(String email, String displayName)
+        throws UnsupportedEncodingException, MessagingException {
+        if (email == null || email.isBlank()) {
+            throw new MessagingException("No sender address configured for the realm");
+        }
+        return displayName == null || displayName.isBlank() ? new InternetAddress(email)
+            : new InternetAddress(email, displayName, StandardCharsets.UTF_8.name());
+    }
+
+    private static boolean enabled(Map<String, String> config, String key) {
+        return "true".equals(config.get(key));
+    }
+
+    private static EmailAuthenticator authenticator(Map<String, String> config) {
+        if (!enabled(config, "auth")) {
+            return new DefaultEmailAuthenticator();
+        }
+        return "token".equalsIgnoreCase(config.getOrDefault("authType", "basic"))
+            ? new TokenAuthEmailAuthenticator() : new PasswordAuthEmailAuthenticator();
+    }
+
+    // The properties DefaultEmailSenderProvider sets, so a pooled connection behaves like Keycloak's own
+    private static Properties properties(KeycloakSession session, Map<String, String> config) {
+        Properties props = new Properties();
+        if (config.get("host") != null) {
+            props.setProperty("mail.smtp.host", config.get("host"));
+        }
+        if (config.get("port") != null) {
+            props.setProperty("mail.smtp.port", config.get("port"));
+        }
+        boolean auth = enabled(config, "auth");
+        boolean ssl = enabled(config, "ssl");
+        boolean starttls = enabled(config, "starttls");
+        if (auth) {
+            props.setProperty("mail.smtp.auth", "true");
+            if ("token".equalsIgnoreCase(config.get("authType"))) {
+                props.setProperty("mail.smtp.auth.mechanisms", "XOAUTH2");
+            }
+        }
+        if (enabled(config, "debug")) {
+            props.setProperty("mail.debug", "true");
+        }
+        if (ssl) {
+            props.setProperty("mail.smtp.ssl.enable", "true");
+        }
+        if (starttls) {
+            props.setProperty("mail.smtp.starttls.enable", "true");
+        }
+        if (ssl || starttls || auth) {
+            props.setProperty("mail.smtp.ssl.protocols", SSL_PROTOCOLS);
+            JSSETruststoreConfigurator truststore = new JSSETruststoreConfigurator(session);
+            SSLSocketFactory socketFactory = truststore.getSSLSocketFactory();
+            if (socketFactory != null) {
+                props.put("mail.smtp.ssl.socketFactory", socketFactory);
+                boolean anyHost = truststore.getProvider().getPolicy() == HostnameVerificationPolicy.ANY;
+                if (anyHost) {
+                    props.setProperty("mail.smtp.ssl.trust", "*");
+                }
+                props.setProperty("mail.smtp.ssl.checkserveridentity", Boolean.toString(!anyHost));
+            }
+        }
+        props.setProperty("mail.smtp.timeout", TIMEOUT_MILLIS);
+        props.setProperty("mail.smtp.connectiontimeout", TIMEOUT_MILLIS);
+        props.setProperty("mail.smtp.writetimeout", TIMEOUT_MILLIS);
+        String envelopeFrom = config.get("envelopeFrom");
+        if (envelopeFrom != null && !envelopeFrom.isBlank()) {
+            props.setProperty("mail.smtp.from", envelopeFrom);
+        }
+        if (enabled(config, "allowutf8")) {
+            props.setProperty("mail.mime.allowutf8", "true");
+        }
+        if (config.get("from") != null) {
+            props.setProperty("mail.from", config.get("from"));
+        }
+        return props;
+    }
+}
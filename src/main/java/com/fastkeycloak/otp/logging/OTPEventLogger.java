@@ -0,0 +1,50 @@
+package com.fastkeycloak.otp.logging;
+
+import com.fastkeycloak.otp.tracing.OTPTracing;
+import org.jboss.logging.Logger;
+
+/**
+ * Emits one structured INFO line per OTP flow step on the {@code com.fastkeycloak.otp.events} category and routes
+ * step-by-step tracing to DEBUG, or to INFO for realms configured with the {@code trace} verbosity. Steps are also
+ * recorded on the current trace span, whatever the verbosity.
+ */
+public final class OTPEventLogger {
+    private static final Logger eventLogger = Logger.getLogger("com.fastkeycloak.otp.events");
+
+    public enum Verbosity {
+        OFF, EVENTS, TRACE
+    }
+
+    private OTPEventLogger() {
+    }
+
+    public static void event(Verbosity verbosity, String step, String realm, String userId, String channel,
+                             String outcome, long durationMillis) {
+        OTPTracing.step(step, channel, outcome);
+        if (verbosity == Verbosity.OFF || !eventLogger.isInfoEnabled()) {
+            return;
+        }
+        eventLogger.infof("otp_event step=%s realm=%s user=%s channel=%s outcome=%s duration_ms=%d",
+            step, realm, userId, channel, outcome, durationMillis);
+    }
+
+    public static void trace(Logger logger, Verbosity verbosity, String message) {
+        logger.log(levelFor(verbosity), message);
+    }
+
+    public static void trace(Logger logger, Verbosity verbosity, String format, Object param1) {
+        logger.logf(levelFor(verbosity), format, param1);
+    }
+
+    public static void trace(Logger logger, Verbosity verbosity, String format, Object param1, Object param2) {
+        logger.logf(levelFor(verbosity), format, param1, param2);
+    }
+
+    public static void trace(Logger logger, Verbosity verbosity, String format, Object param1, Object param2, Object param3) {
+        logger.logf(levelFor(verbosity), format, param1, param2, param3);
+    }
+
+    private static Logger.Level levelFor(Verbosity verbosity) {
+        return verbosity == Verbosity.TRACE ? Logger.Level.INFO : Logger.Level.DEBUG;
+    }
+}
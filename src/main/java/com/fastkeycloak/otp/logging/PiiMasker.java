@@ -0,0 +1,35 @@
+package com.fastkeycloak.otp.logging;
+
+public final class PiiMasker {
+
+    private PiiMasker() {
+    }
+
+    // +4917612345678 -> +49*********78
+    public static String maskPhone(String phoneNumber) {
+        if (phoneNumber == null) {
+            return null;
+        }
+        int length = phoneNumber.length();
+        if (length <= 5) {
+            return "*****";
+        }
+        char[] masked = phoneNumber.toCharArray();
+        for (int i = 3; i < length - 2; i++) {
+            masked[i] = '*';
+        }
+        return new String(masked);
+    }
+
+    // jane.doe@example.com -> j***@example.com
+    public static String maskEmail(String email) {
+        if (email == null) {
+            return null;
+        }
+        int at = email.indexOf('@');
+        if (at <= 0) {
+            return "***";
+        }
+        return email.charAt(0) + "***" + email.substring(at);
+    }
+}
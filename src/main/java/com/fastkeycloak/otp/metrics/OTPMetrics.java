@@ -0,0 +1,53 @@
+package com.fastkeycloak.otp.metrics;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Entry point for the authenticator's Micrometer meters. Meters are registered on Micrometer's global registry, which
+ * Keycloak exposes on its metrics endpoint when {@code metrics-enabled} is set. All meters for a realm are created on
+ * first use and then looked up by realm name only, so recording never builds tags on the hot path.
+ */
+public class OTPMetrics {
+    private final MeterRegistry registry;
+    private final Map<String, RealmMetrics> realms = new ConcurrentHashMap<>();
+    private final AtomicInteger warmUpReady = new AtomicInteger();
+
+    public OTPMetrics() {
+        this(Metrics.globalRegistry);
+    }
+
+    public OTPMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    public RealmMetrics realm(String realmName) {
+        RealmMetrics metrics = realms.get(realmName);
+        if (metrics == null) {
+            metrics = realms.computeIfAbsent(realmName, name -> new RealmMetrics(registry, name));
+        }
+        return metrics;
+    }
+
+    // The readiness gauge is 0 while the startup warm-up runs and 1 once it finished
+    public void warmUpStarted() {
+        Gauge.builder("otp.warmup.ready", warmUpReady, AtomicInteger::get)
+            .description("Whether the startup warm-up of the OTP providers has finished")
+            .register(registry);
+    }
+
+    public void warmUpFinished(long durationNanos) {
+        Timer.builder("otp.warmup.duration")
+            .description("Time the startup warm-up of the OTP providers took")
+            .register(registry)
+            .record(durationNanos, TimeUnit.NANOSECONDS);
+        warmUpReady.set(1);
+    }
+}
@@ -0,0 +1,103 @@
+package com.fastkeycloak.otp.metrics;
+
+import com.fastkeycloak.otp.enums.OTPChannel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+
+public class ProviderMetrics {
+
+    public enum SendOutcome {
+        SENT, QUEUED, SIMULATED, FAILED, RETRIES_EXHAUSTED, QUEUE_FULL, RATE_LIMITED, CIRCUIT_OPEN, REUSED, COOLDOWN, DEDUPLICATED;
+
+        private final String tag = name().toLowerCase();
+
+        public String getTag() {
+            return tag;
+        }
+    }
+
+    // Final delivery states reported back by the vendor
+    public enum DeliveryStatus {
+        DELIVERED, FAILED, UNDELIVERED;
+
+        private final String tag = name().toLowerCase();
+
+        public String getTag() {
+            return tag;
+        }
+    }
+
+    private static final String[] STATUS_CLASSES = {"1xx", "2xx", "3xx", "4xx", "5xx", "io_error"};
+    private static final int IO_ERROR = STATUS_CLASSES.length - 1;
+
+    private final Counter[] sends;
+    private final Counter[] httpResponses;
+    private final Timer sendDuration;
+    private final Counter[] deliveryStatuses;
+    private final Timer timeToHandset;
+
+    ProviderMetrics(MeterRegistry registry, String realm, String providerId, OTPChannel channel) {
+        SendOutcome[] outcomes = SendOutcome.values();
+        sends = new Counter[outcomes.length];
+        for (SendOutcome outcome : outcomes) {
+            sends[outcome.ordinal()] = Counter.builder("otp.sends")
+                .description("OTP sends by channel, provider and outcome")
+                .tags("realm", realm, "channel", channel.getValue(), "provider", providerId,
+                    "outcome", outcome.getTag())
+                .register(registry);
+        }
+        httpResponses = new Counter[STATUS_CLASSES.length];
+        for (int i = 0; i < STATUS_CLASSES.length; i++) {
+            httpResponses[i] = Counter.builder("otp.provider.responses")
+                .description("Provider HTTP responses by status class")
+                .tags("realm", realm, "provider", providerId, "status", STATUS_CLASSES[i])
+                .register(registry);
+        }
+        sendDuration = Timer.builder("otp.send.duration")
+            .description("Duration of a single provider send attempt")
+            .tags("realm", realm, "channel", channel.getValue(), "provider", providerId)
+            .publishPercentileHistogram()
+            .register(registry);
+        DeliveryStatus[] statuses = DeliveryStatus.values();
+        deliveryStatuses = new Counter[statuses.length];
+        for (DeliveryStatus status : statuses) {
+            deliveryStatuses[status.ordinal()] = Counter.builder("otp.delivery.status")
+                .description("Delivery reports by final status")
+                .tags("realm", realm, "channel", channel.getValue(), "provider", providerId, "status", status.getTag())
+                .register(registry);
+        }
+        timeToHandset = Timer.builder("otp.time.to.handset")
+            .description("Time from the provider accepting a message to its delivery report")
+            .tags("realm", realm, "channel", channel.getValue(), "provider", providerId)
+            .publishPercentileHistogram()
+            .register(registry);
+    }
+
+    public void send(SendOutcome outcome) {
+        sends[outcome.ordinal()].increment();
+    }
+
+    public void sendDuration(long nanos) {
+        sendDuration.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void httpStatus(int statusCode) {
+        int statusClass = statusCode / 100;
+        httpResponses[statusClass >= 1 && statusClass <= 5 ? statusClass - 1 : IO_ERROR].increment();
+    }
+
+    public void deliveryStatus(DeliveryStatus status) {
+        deliveryStatuses[status.ordinal()].increment();
+    }
+
+    public void timeToHandset(long millis) {
+        timeToHandset.record(millis, TimeUnit.MILLISECONDS);
+    }
+
+    public void ioError() {
+        httpResponses[IO_ERROR].increment();
+    }
+}
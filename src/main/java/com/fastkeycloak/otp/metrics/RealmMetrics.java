@@ -0,0 +1,106 @@
+package com.fastkeycloak.otp.metrics;
+
+import com.fastkeycloak.otp.enums.OTPChannel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+public class RealmMetrics {
+
+    public enum SelectionReason {
+        USER_CHOICE, REMEMBERED, FORCED, AUTO, FAILOVER;
+
+        private final String tag = name().toLowerCase();
+
+        public String getTag() {
+            return tag;
+        }
+    }
+
+    public enum VerifyOutcome {
+        SUCCESS, INVALID, EXPIRED, ATTEMPTS_EXHAUSTED, NOT_DELIVERED, RATE_LIMITED;
+
+        private final String tag = name().toLowerCase();
+
+        public String getTag() {
+            return tag;
+        }
+    }
+
+    private static final OTPChannel[] CHANNELS = OTPChannel.values();
+
+    private final MeterRegistry registry;
+    private final String realm;
+    private final Counter codesGenerated;
+    private final Counter[][] channelSelections;
+    private final Counter[][] verifications;
+    private final Timer[] timeToVerify;
+    // Per channel, as a provider id such as "none" can serve more than one and its meters are tagged with the channel
+    private final Map<OTPChannel, Map<String, ProviderMetrics>> providers = new EnumMap<>(OTPChannel.class);
+
+    RealmMetrics(MeterRegistry registry, String realm) {
+        this.registry = registry;
+        this.realm = realm;
+        this.codesGenerated = Counter.builder("otp.codes.generated")
+            .description("OTP codes generated")
+            .tag("realm", realm)
+            .register(registry);
+
+        SelectionReason[] reasons = SelectionReason.values();
+        VerifyOutcome[] outcomes = VerifyOutcome.values();
+        channelSelections = new Counter[CHANNELS.length][reasons.length];
+        verifications = new Counter[CHANNELS.length][outcomes.length];
+        timeToVerify = new Timer[CHANNELS.length];
+        for (OTPChannel channel : CHANNELS) {
+            providers.put(channel, new ConcurrentHashMap<>());
+            for (SelectionReason reason : reasons) {
+                channelSelections[channel.ordinal()][reason.ordinal()] = Counter.builder("otp.channel.selections")
+                    .description("Delivery channels chosen for OTP codes")
+                    .tags("realm", realm, "channel", channel.getValue(), "reason", reason.getTag())
+                    .register(registry);
+            }
+            for (VerifyOutcome outcome : outcomes) {
+                verifications[channel.ordinal()][outcome.ordinal()] = Counter.builder("otp.verifications")
+                    .description("OTP code submissions by outcome")
+                    .tags("realm", realm, "channel", channel.getValue(), "outcome", outcome.getTag())
+                    .register(registry);
+            }
+            timeToVerify[channel.ordinal()] = Timer.builder("otp.time.to.verify")
+                .description("Time from issuing an OTP code to its successful verification")
+                .tags("realm", realm, "channel", channel.getValue())
+                .publishPercentileHistogram()
+                .register(registry);
+        }
+    }
+
+    public void codeGenerated() {
+        codesGenerated.increment();
+    }
+
+    public void channelSelected(OTPChannel channel, SelectionReason reason) {
+        channelSelections[channel.ordinal()][reason.ordinal()].increment();
+    }
+
+    public void verified(OTPChannel channel, VerifyOutcome outcome) {
+        verifications[channel.ordinal()][outcome.ordinal()].increment();
+    }
+
+    public void timeToVerify(OTPChannel channel, long millis) {
+        timeToVerify[channel.ordinal()].record(millis, TimeUnit.MILLISECONDS);
+    }
+
+    public ProviderMetrics provider(String providerId, OTPChannel channel) {
+        Map<String, ProviderMetrics> channelProviders = providers.get(channel);
+        ProviderMetrics metrics = channelProviders.get(providerId);
+        if (metrics == null) {
+            metrics = channelProviders.computeIfAbsent(providerId,
+                id -> new ProviderMetrics(registry, realm, id, channel));
+        }
+        return metrics;
+    }
+}
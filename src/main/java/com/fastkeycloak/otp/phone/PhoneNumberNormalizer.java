@@ -0,0 +1,133 @@
+package com.fastkeycloak.otp.phone;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.UserModel;
+import org.keycloak.storage.ReadOnlyException;
+
+/**
+ * Single-pass E.164 normalizer. Spaces, dashes, dots and parentheses are skipped, a leading {@code 00} is treated
+ * as the international prefix and a national number starting with {@code 0} gets the default country code. Anything
+ * that does not end up as {@code +} followed by 7 to 15 digits is rejected.
+ */
+public final class PhoneNumberNormalizer {
+    private static final Logger logger = Logger.getLogger(PhoneNumberNormalizer.class);
+
+    public static final String PHONE_ATTRIBUTE = "phoneNumber";
+    public static final String E164_ATTRIBUTE = "phoneNumberE164";
+    // countryCode|phoneNumber the cached E.164 value was derived from
+    public static final String E164_SOURCE_ATTRIBUTE = "phoneNumberE164Source";
+
+    private static final int MIN_DIGITS = 7;
+    private static final int MAX_DIGITS = 15;
+    private static final char SOURCE_SEPARATOR = '|';
+
+    private PhoneNumberNormalizer() {
+    }
+
+    // Returns the user's number in E.164 form, or null when the user has no valid number. Never writes to the user.
+    public static String resolve(UserModel user, String countryCode) {
+        return resolve(user, countryCode, false);
+    }
+
+    /**
+     * Like {@link #resolve(UserModel, String)}, but stores a freshly normalized number on the user for later logins.
+     * Only for the send path of a login request, whose transaction the write belongs to. Users that cannot be
+     * written to, e.g. from a read-only federation provider, are normalized every time instead.
+     */
+    public static String resolveAndCache(UserModel user, String countryCode) {
+        return resolve(user, countryCode, true);
+    }
+
+    private static String resolve(UserModel user, String countryCode, boolean cache) {
+        String raw = user.getFirstAttribute(PHONE_ATTRIBUTE);
+        if (raw == null) {
+            return null;
+        }
+        String code = countryCode == null ? "" : countryCode;
+        String cached = user.getFirstAttribute(E164_ATTRIBUTE);
+        if (cached != null && isSource(user.getFirstAttribute(E164_SOURCE_ATTRIBUTE), code, raw)) {
+            return cached;
+        }
+        String normalized = normalize(raw, code);
+        if (normalized != null && cache) {
+            try {
+                user.setSingleAttribute(E164_ATTRIBUTE, normalized);
+                user.setSingleAttribute(E164_SOURCE_ATTRIBUTE, code + SOURCE_SEPARATOR + raw);
+            } catch (ReadOnlyException | ModelException e) {
+                logger.debugf("Not caching the normalized phone number of read-only user %s: %s", user.getId(),
+                    e.getMessage());
+            }
+        }
+        return normalized;
+    }
+
+    public static String normalize(String phoneNumber, String countryCode) {
+        if (phoneNumber == null) {
+            return null;
+        }
+        char[] out = new char[MAX_DIGITS + 1];
+        out[0] = '+';
+        int digits = 0;
+        int length = phoneNumber.length();
+        int i = skipSeparators(phoneNumber, 0, length);
+
+        if (i < length && phoneNumber.charAt(i) == '+') {
+            i++;
+        } else if (i + 1 < length && phoneNumber.charAt(i) == '0' && phoneNumber.charAt(i + 1) == '0') {
+            i += 2;
+        } else if (i < length && phoneNumber.charAt(i) == '0') {
+            // National format: drop the trunk prefix and prepend the default country code
+            int ccStart = countryCode != null && countryCode.startsWith("+") ? 1 : 0;
+            int ccLength = countryCode == null ? 0 : countryCode.length();
+            if (ccLength - ccStart == 0) {
+                return null;
+            }
+            for (int c = ccStart; c < ccLength; c++) {
+                char ch = countryCode.charAt(c);
+                if (ch < '0' || ch > '9' || digits == MAX_DIGITS) {
+                    return null;
+                }
+                out[++digits] = ch;
+            }
+            i++;
+        }
+
+        for (; i < length; i++) {
+            char ch = phoneNumber.charAt(i);
+            if (ch >= '0' && ch <= '9') {
+                if (digits == MAX_DIGITS) {
+                    return null;
+                }
+                out[++digits] = ch;
+            } else if (!isSeparator(ch)) {
+                return null;
+            }
+        }
+
+        if (digits < MIN_DIGITS || out[1] == '0') {
+            return null;
+        }
+        return new String(out, 0, digits + 1);
+    }
+
+    private static boolean isSource(String source, String countryCode, String raw) {
+        return source != null
+            && source.length() == countryCode.length() + 1 + raw.length()
+            && source.startsWith(countryCode)
+            && source.charAt(countryCode.length()) == SOURCE_SEPARATOR
+            && source.endsWith(raw);
+    }
+
+    private static int skipSeparators(String value, int from, int length) {
+        int i = from;
+        while (i < length && isSeparator(value.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isSeparator(char ch) {
+        return ch == ' ' || ch == '-' || ch == '(' || ch == ')' || ch == '.' || ch == '\t';
+    }
+}
@@ -1,39 +1,58 @@
 package com.fastkeycloak.otp.providers;
 
 import com.fastkeycloak.otp.OTPDeliveryProvider;
+import com.fastkeycloak.otp.OTPDeliveryRequest;
+import com.fastkeycloak.otp.config.OTPSettings;
+import com.fastkeycloak.otp.email.EmailTemplateCache;
+import com.fastkeycloak.otp.email.PrecompiledEmail;
 import com.fastkeycloak.otp.enums.OTPChannel;
+import com.fastkeycloak.otp.logging.OTPEventLogger;
+import com.fastkeycloak.otp.logging.OTPEventLogger.Verbosity;
+import com.fastkeycloak.otp.logging.PiiMasker;
+import com.fastkeycloak.otp.metrics.ProviderMetrics;
+import com.fastkeycloak.otp.tracing.OTPTracing;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Scope;
 import org.jboss.logging.Logger;
+import org.keycloak.email.EmailSenderProvider;
 import org.keycloak.email.EmailTemplateProvider;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
-import org.keycloak.sessions.AuthenticationSessionModel;
 
 import java.util.HashMap;
 import java.util.Map;
 
 public class EmailOTPProvider implements OTPDeliveryProvider {
     private static final Logger logger = Logger.getLogger(EmailOTPProvider.class);
+
+    public static final String ID = "email";
+    private static final String TEMPLATE = "otp-email.ftl";
     
-    private final KeycloakSession session;
-    private final RealmModel realm;
-    private final AuthenticationSessionModel authSession;
+    private final EmailOTPProviderFactory factory;
 
-    public EmailOTPProvider(KeycloakSession session, RealmModel realm, AuthenticationSessionModel authSession) {
-        this.session = session;
-        this.realm = realm;
-        this.authSession = authSession;
+    public EmailOTPProvider(EmailOTPProviderFactory factory) {
+        this.factory = factory;
     }
 
     @Override
-    public void sendOTP(String code, UserModel user, Map<String, String> config) throws Exception {
-        logger.infof("=== EmailOTPProvider.sendOTP started for user: %s ===", user.getUsername());
-        
-        String emailSubject = config.getOrDefault("emailSubject", "Your Authentication Code");
-        int ttl = Integer.parseInt(config.getOrDefault("ttl", "300"));
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public void sendOTP(OTPDeliveryRequest delivery) throws Exception {
+        KeycloakSession session = delivery.getSession();
+        RealmModel realm = delivery.getRealm();
+        UserModel user = delivery.getUser();
+        OTPSettings settings = delivery.getSettings();
+        String code = delivery.getCode();
+        ProviderMetrics metrics = delivery.getMetrics();
+        Verbosity verbosity = settings.getLogVerbosity();
         
-        logger.infof("Email config - Subject: %s, TTL: %d seconds, User email: %s", 
-            emailSubject, ttl, user.getEmail());
+        String emailSubject = settings.getEmailSubject();
+        int ttl = settings.getTtlSeconds();
         
         String realmName = realm.getDisplayName() != null ? realm.getDisplayName() : realm.getName();
         Map<String, Object> attributes = new HashMap<>();
@@ -41,19 +60,71 @@ public class EmailOTPProvider implements OTPDeliveryProvider {
         attributes.put("ttl", Math.floorDiv(ttl, 60));
         attributes.put("realmName", realmName);
         
-        logger.infof("Email template attributes - Realm: %s, TTL minutes: %d", realmName, Math.floorDiv(ttl, 60));
+        OTPEventLogger.trace(logger, verbosity, "Sending OTP email - Realm: %s, TTL: %d seconds, To: %s",
+            realmName, ttl, PiiMasker.maskEmail(user.getEmail()));
+        Span span = Span.current();
+        if (span.isRecording()) {
+            span.setAttribute(OTPTracing.RECIPIENT, PiiMasker.maskEmail(user.getEmail()));
+        }
         
+        long start = System.nanoTime();
         try {
-            session.getProvider(EmailTemplateProvider.class)
-                .setAuthenticationSession(authSession)
-                .setRealm(realm)
-                .setUser(user)
-                .send(emailSubject, "otp-email.ftl", attributes);
-            
-            logger.infof("Email sent successfully to %s", user.getEmail());
+            boolean pooled = settings.isPooledSmtp();
+            EmailTemplateCache templates = settings.isPrecompileEmailTemplates() || pooled ? factory.getTemplates() : null;
+            PrecompiledEmail email = templates == null ? null : templates.get(session, realm, user, emailSubject, TEMPLATE);
+            String textBody = null;
+            String htmlBody = null;
+            if (email != null) {
+                String ttlMinutes = Integer.toString(Math.floorDiv(ttl, 60));
+                textBody = email.renderText(code, ttlMinutes, realmName);
+                htmlBody = email.renderHtml(code, ttlMinutes, realmName);
+            }
+            // Precompiled messages are rendered by now, so their span is the SMTP exchange alone. Templates that
+            // cannot be precompiled are rendered and sent by Keycloak, without the pool
+            String spanName = email == null ? "EmailTemplateProvider.send"
+                : pooled ? "SmtpTransportPool.send" : "EmailSenderProvider.send";
+            Span smtpSpan = OTPTracing.tracer(session)
+                .spanBuilder(spanName)
+                .setSpanKind(SpanKind.CLIENT)
+                .startSpan();
+            Scope scope = smtpSpan.makeCurrent();
+            try {
+                if (email != null && pooled) {
+                    factory.getSmtpPool().send(session, realm, user.getEmail(), email.getSubject(), textBody, htmlBody);
+                } else if (email != null) {
+                    session.getProvider(EmailSenderProvider.class).send(realm.getSmtpConfig(), user, email.getSubject(),
+                        textBody, htmlBody);
+                } else {
+                    session.getProvider(EmailTemplateProvider.class)
+                        .setAuthenticationSession(delivery.getAuthSession())
+                        .setRealm(realm)
+                        .setUser(user)
+                        .send(emailSubject, TEMPLATE, attributes);
+                }
+            } catch (Exception e) {
+                OTPTracing.failed(smtpSpan, e);
+                throw e;
+            } finally {
+                scope.close();
+                smtpSpan.end();
+            }
         } catch (Exception e) {
-            logger.errorf(e, "Failed to send email to %s: %s", user.getEmail(), e.getMessage());
+            logger.debugf(e, "Failed to send email to %s: %s", PiiMasker.maskEmail(user.getEmail()), e.getMessage());
             throw e;
+        } finally {
+            metrics.sendDuration(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Compiles the realm's OTP email for its default locale, which also leaves the parsed templates in FreeMarker's
+     * cache for messages rendered per send, and opens a pooled SMTP connection when the realm uses them.
+     */
+    @Override
+    public void warmUp(KeycloakSession session, RealmModel realm, OTPSettings settings) throws Exception {
+        factory.getTemplates().get(session, realm, null, settings.getEmailSubject(), TEMPLATE);
+        if (settings.isPooledSmtp()) {
+            factory.getSmtpPool().preconnect(session, realm);
         }
     }
 
@@ -63,7 +134,7 @@ public class EmailOTPProvider implements OTPDeliveryProvider {
     }
 
     @Override
-    public boolean isConfigured(Map<String, String> config) {
+    public boolean isConfigured(OTPSettings settings) {
         return true; // Email is always available via Keycloak
     }
 }
\ No newline at end of file
@@ -0,0 +1,87 @@
+package com.fastkeycloak.otp.providers;
+
+import com.fastkeycloak.otp.OTPDeliveryProvider;
+import com.fastkeycloak.otp.OTPDeliveryProviderFactory;
+import com.fastkeycloak.otp.email.EmailTemplateCache;
+import com.fastkeycloak.otp.email.SmtpTransportPool;
+import com.fastkeycloak.otp.enums.OTPChannel;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+
+import java.util.concurrent.TimeUnit;
+
+public class EmailOTPProviderFactory implements OTPDeliveryProviderFactory {
+    private EmailTemplateCache templates;
+    private SmtpTransportPool smtpPool;
+    private int smtpPoolSize;
+    private int smtpMaxMessagesPerConnection;
+    private long smtpIdleTimeoutMillis;
+    private EmailOTPProvider provider;
+
+    @Override
+    public String getId() {
+        return EmailOTPProvider.ID;
+    }
+
+    @Override
+    public OTPChannel getChannel() {
+        return OTPChannel.EMAIL;
+    }
+
+    @Override
+    public OTPDeliveryProvider create(KeycloakSession session) {
+        return provider;
+    }
+
+    @Override
+    public OTPDeliveryProvider getProvider() {
+        return provider;
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        templates = new EmailTemplateCache(config.getInt("templateCacheSize", 256),
+            TimeUnit.SECONDS.toMillis(config.getLong("templateCacheTtl", 600L)));
+        smtpPoolSize = config.getInt("smtpPoolSize", 8);
+        smtpMaxMessagesPerConnection = config.getInt("smtpMaxMessagesPerConnection", 100);
+        smtpIdleTimeoutMillis = TimeUnit.SECONDS.toMillis(config.getLong("smtpIdleTimeout", 30L));
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        if (factory != null) {
+            factory.register(event -> {
+                if (event instanceof RealmModel.RealmRemovedEvent) {
+                    String realmId = ((RealmModel.RealmRemovedEvent) event).getRealm().getId();
+                    templates.evictRealm(realmId);
+                    smtpPool.evictRealm(realmId);
+                }
+            });
+        }
+        smtpPool = new SmtpTransportPool(smtpPoolSize, smtpMaxMessagesPerConnection, smtpIdleTimeoutMillis);
+        provider = new EmailOTPProvider(this);
+    }
+
+    @Override
+    public void close() {
+        provider = null;
+        if (templates != null) {
+            templates.clear();
+        }
+        if (smtpPool != null) {
+            smtpPool.close();
+            smtpPool = null;
+        }
+    }
+
+    EmailTemplateCache getTemplates() {
+        return templates;
+    }
+
+    // Only used by realms with pooled SMTP connections enabled
+    SmtpTransportPool getSmtpPool() {
+        return smtpPool;
+    }
+}
@@ -1,145 +1,125 @@
 package com.fastkeycloak.otp.providers;
 
 import com.fastkeycloak.otp.OTPDeliveryProvider;
+import com.fastkeycloak.otp.OTPDeliveryRequest;
+import com.fastkeycloak.otp.config.OTPSettings;
+import com.fastkeycloak.otp.delivery.OTPDeliveryException;
 import com.fastkeycloak.otp.enums.OTPChannel;
+import com.fastkeycloak.otp.logging.OTPEventLogger;
+import com.fastkeycloak.otp.logging.OTPEventLogger.Verbosity;
+import com.fastkeycloak.otp.logging.PiiMasker;
+import com.fastkeycloak.otp.phone.PhoneNumberNormalizer;
+import com.fastkeycloak.otp.sms.SmsRouter;
+import com.fastkeycloak.otp.sms.SmsRouting;
+import com.fastkeycloak.otp.sms.SmsSender;
+import com.fastkeycloak.otp.sms.TwilioSender;
+import com.fastkeycloak.otp.status.TrackedMessage;
+import com.fastkeycloak.otp.tracing.OTPTracing;
+import io.opentelemetry.api.trace.Span;
 import org.jboss.logging.Logger;
-import org.keycloak.models.UserModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
 
-import java.net.URI;
-import java.net.URLEncoder;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.nio.charset.StandardCharsets;
-import java.util.Base64;
-import java.util.Map;
+import java.io.IOException;
+import java.time.Duration;
 
+/**
+ * Sends SMS through the senders configured for the realm: one or more Twilio numbers or accounts and generic HTTP
+ * gateways, chosen per message by the {@link SmsRouter}.
+ */
 public class TwilioSMSProvider implements OTPDeliveryProvider {
     private static final Logger logger = Logger.getLogger(TwilioSMSProvider.class);
 
+    public static final String ID = "twilio";
+
+    private final TwilioSMSProviderFactory factory;
+    private final SmsRouter router = new SmsRouter();
+
+    public TwilioSMSProvider(TwilioSMSProviderFactory factory) {
+        this.factory = factory;
+    }
+
     @Override
-    public void sendOTP(String code, UserModel user, Map<String, String> config) throws Exception {
-        logger.infof("=== TwilioSMSProvider.sendOTP started for user: %s ===", user.getUsername());
-        
-        String accountSid = getConfigValue(config, "twilioAccountSid", "TWILIO_ACCOUNT_SID");
-        String authToken = getConfigValue(config, "twilioAuthToken", "TWILIO_AUTH_TOKEN");
-        String fromNumber = getConfigValue(config, "twilioFromNumber", "TWILIO_FROM_NUMBER");
-        String phoneNumber = user.getFirstAttribute("phoneNumber");
-        
-        logger.infof("Twilio config - AccountSID: %s, FromNumber: %s, User phone: %s", 
-            accountSid != null ? "[PRESENT]" : "[MISSING]", fromNumber, phoneNumber);
-        
-        if (phoneNumber == null || phoneNumber.trim().isEmpty()) {
-            logger.error("User has no phone number configured");
-            throw new RuntimeException("User has no phone number configured");
-        }
-        
-        String originalPhone = phoneNumber;
-        phoneNumber = normalizePhoneNumber(phoneNumber, config.getOrDefault("countryCode", "+1"));
-        logger.infof("Phone number normalized: %s -> %s", originalPhone, phoneNumber);
+    public String getId() {
+        return ID;
+    }
 
-        String messageTemplate = config.getOrDefault("smsTemplate", "Your verification code is: %s");
-        String message = String.format(messageTemplate, code);
-        
-        logger.infof("SMS message template: %s, Final message: %s", messageTemplate, message);
-        
-        String body = String.format("To=%s&From=%s&Body=%s", 
-            URLEncoder.encode(phoneNumber, StandardCharsets.UTF_8),
-            URLEncoder.encode(fromNumber, StandardCharsets.UTF_8),
-            URLEncoder.encode(message, StandardCharsets.UTF_8));
+    @Override
+    public void sendOTP(OTPDeliveryRequest delivery) throws Exception {
+        OTPSettings settings = delivery.getSettings();
+        Verbosity verbosity = settings.getLogVerbosity();
+        SmsRouting routing = settings.getSmsRouting();
 
-        String auth = Base64.getEncoder().encodeToString((accountSid + ":" + authToken).getBytes(StandardCharsets.UTF_8));
-        String apiUrl = String.format("https://api.twilio.com/2010-04-01/Accounts/%s/Messages.json", accountSid);
-        
-        logger.infof("Twilio API URL: %s", apiUrl);
-        logger.infof("Request body length: %d characters", body.length());
-        
-        HttpRequest request = HttpRequest.newBuilder()
-            .uri(URI.create(apiUrl))
-            .header("Authorization", "Basic " + auth)
-            .header("Content-Type", "application/x-www-form-urlencoded")
-            .POST(HttpRequest.BodyPublishers.ofString(body))
-            .build();
+        String phoneNumber = PhoneNumberNormalizer.resolve(delivery.getUser(), settings.getCountryCode());
+        if (phoneNumber == null) {
+            throw new OTPDeliveryException("User has no valid phone number configured", false, 0L, true);
+        }
+        Span span = Span.current();
+        if (span.isRecording()) {
+            span.setAttribute(OTPTracing.RECIPIENT, PiiMasker.maskPhone(phoneNumber));
+        }
+        OTPEventLogger.trace(logger, verbosity, "Sending SMS - Senders: %d, To: %s",
+            routing.getSenders().size(), PiiMasker.maskPhone(phoneNumber));
 
-        logger.info("Sending HTTP request to Twilio API");
-        
+        String statusCallback = delivery.getStatusCallbackUrl() == null ? null
+            : delivery.getStatusCallbackUrl() + "/" + ID;
         try {
-            HttpClient client = HttpClient.newHttpClient();
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-            
-            int statusCode = response.statusCode();
-            logger.infof("Twilio API response - Status: %d, Body length: %d", statusCode, response.body().length());
-            
-            if (statusCode >= 200 && statusCode < 300) {
-                logger.infof("SMS sent successfully to %s via Twilio", phoneNumber);
-            } else {
-                logger.errorf("Twilio API error - Status: %d, Response: %s", statusCode, response.body());
-                throw new RuntimeException(String.format("Failed to send SMS (HTTP %d): %s", statusCode, response.body()));
+            SmsRouter.Result result = router.send(routing,
+                factory.getHttpClient(settings.getTwilioConnectTimeoutMillis()), phoneNumber,
+                String.format(settings.getSmsTemplate(), delivery.getCode()), statusCallback,
+                Duration.ofMillis(settings.getTwilioRequestTimeoutMillis()), delivery.getMetrics(),
+                OTPTracing.tracer(delivery.getSession()));
+            OTPEventLogger.trace(logger, verbosity, "SMS accepted by sender %s", result.getSender().getId());
+            // Only Twilio senders were given the callback
+            if (statusCallback != null && result.getMessageId() != null && result.getSender() instanceof TwilioSender) {
+                track(delivery, (TwilioSender) result.getSender(), result.getMessageId(), statusCallback);
             }
         } catch (Exception e) {
-            logger.errorf(e, "Exception during Twilio API call: %s", e.getMessage());
+            logger.debugf(e, "Exception during SMS send: %s", e.getMessage());
             throw e;
         }
     }
 
+    // The SMS is already on its way, so a failure here must not fail the send and cause a retry
+    private static void track(OTPDeliveryRequest delivery, TwilioSender sender, String messageId, String statusCallback) {
+        try {
+            TrackedMessage.accepted(delivery, ID, sender.getAccountSid(), statusCallback)
+                .store(delivery.getSession(), messageId);
+        } catch (RuntimeException e) {
+            logger.warnf(e, "Could not track SMS %s for delivery reports", messageId);
+        }
+    }
+
+    // Connects to every sender of the realm; senders that cannot be reached do not keep the others from warming up
+    @Override
+    public void warmUp(KeycloakSession session, RealmModel realm, OTPSettings settings) throws Exception {
+        IOException failure = null;
+        for (SmsSender sender : settings.getSmsRouting().getSenders()) {
+            try {
+                factory.preconnect(settings.getTwilioConnectTimeoutMillis(), sender.getEndpoint(),
+                    Duration.ofMillis(settings.getTwilioRequestTimeoutMillis()));
+            } catch (IOException e) {
+                IOException senderFailure = new IOException("SMS sender " + sender.getId() + " is not reachable: "
+                    + e.getMessage(), e);
+                if (failure == null) {
+                    failure = senderFailure;
+                } else {
+                    failure.addSuppressed(senderFailure);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
     @Override
     public OTPChannel getChannel() {
         return OTPChannel.SMS;
     }
 
     @Override
-    public boolean isConfigured(Map<String, String> config) {
-        return getConfigValue(config, "twilioAccountSid", "TWILIO_ACCOUNT_SID") != null && 
-               getConfigValue(config, "twilioAuthToken", "TWILIO_AUTH_TOKEN") != null && 
-               getConfigValue(config, "twilioFromNumber", "TWILIO_FROM_NUMBER") != null;
-    }
-    
-    private String getConfigValue(Map<String, String> config, String configKey, String envKey) {
-        String value = config.get(configKey);
-        if (value == null || value.trim().isEmpty()) {
-            value = System.getenv(envKey);
-        }
-        return value;
-    }
-    
-    private String normalizePhoneNumber(String phoneNumber, String countryCode) {
-        logger.infof("Normalizing phone number: %s with country code: %s", phoneNumber, countryCode);
-        
-        if (countryCode == null || countryCode.isEmpty()) {
-            logger.warn("No country code provided, returning original phone number");
-            return phoneNumber;
-        }
-        
-        String cleanCountryCode = countryCode.startsWith("+") ? countryCode.substring(1) : countryCode;
-        logger.infof("Clean country code: %s", cleanCountryCode);
-        
-        // Remove spaces, dashes, parentheses
-        String originalPhone = phoneNumber;
-        phoneNumber = phoneNumber.replaceAll("[\\s\\-\\(\\)]", "");
-        logger.infof("After cleaning special chars: %s -> %s", originalPhone, phoneNumber);
-        
-        // Convert 0049 to +49
-        if (phoneNumber.startsWith("00" + cleanCountryCode)) {
-            phoneNumber = phoneNumber.replaceFirst("00" + cleanCountryCode, "+" + cleanCountryCode);
-            logger.infof("Applied 00XX to +XX rule: %s", phoneNumber);
-        }
-        // Convert 49 to +49 (if doesn't start with +)
-        else if (phoneNumber.startsWith(cleanCountryCode) && !phoneNumber.startsWith("+")) {
-            phoneNumber = "+" + phoneNumber;
-            logger.infof("Applied XX to +XX rule: %s", phoneNumber);
-        }
-        // Convert 0176 to +49176 (national format)
-        else if (phoneNumber.startsWith("0") && !phoneNumber.startsWith("+")) {
-            phoneNumber = "+" + cleanCountryCode + phoneNumber.substring(1);
-            logger.infof("Applied national 0XXX to +CCXXX rule: %s", phoneNumber);
-        }
-        // Ensure + prefix
-        else if (!phoneNumber.startsWith("+")) {
-            phoneNumber = "+" + phoneNumber;
-            logger.infof("Added + prefix: %s", phoneNumber);
-        }
-        
-        logger.infof("Final normalized phone number: %s", phoneNumber);
-        return phoneNumber;
+    public boolean isConfigured(OTPSettings settings) {
+        return settings.isSmsConfigured();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,127 @@
+package com.fastkeycloak.otp.providers;
+
+import com.fastkeycloak.otp.OTPDeliveryProvider;
+import com.fastkeycloak.otp.OTPDeliveryProviderFactory;
+import com.fastkeycloak.otp.enums.OTPChannel;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TwilioSMSProviderFactory implements OTPDeliveryProviderFactory {
+    private static final Logger logger = Logger.getLogger(TwilioSMSProviderFactory.class);
+    static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000L;
+
+    // One HTTP/2 client per distinct connect timeout (normally exactly one), shared by all sends
+    private final Map<Long, HttpClient> httpClients = new ConcurrentHashMap<>();
+    // Origins the warm-up connected to, per connect timeout
+    private final Set<String> preconnected = ConcurrentHashMap.newKeySet();
+    private ExecutorService httpExecutor;
+    private long defaultConnectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private TwilioSMSProvider provider;
+
+    @Override
+    public String getId() {
+        return TwilioSMSProvider.ID;
+    }
+
+    @Override
+    public OTPChannel getChannel() {
+        return OTPChannel.SMS;
+    }
+
+    @Override
+    public OTPDeliveryProvider create(KeycloakSession session) {
+        return provider;
+    }
+
+    @Override
+    public OTPDeliveryProvider getProvider() {
+        return provider;
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        defaultConnectTimeoutMillis = config.getLong("connectTimeout", DEFAULT_CONNECT_TIMEOUT_MILLIS);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        AtomicInteger threadCount = new AtomicInteger();
+        httpExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "otp-http-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        getHttpClient(defaultConnectTimeoutMillis);
+        provider = new TwilioSMSProvider(this);
+    }
+
+    @Override
+    public void close() {
+        provider = null;
+        httpClients.clear();
+        preconnected.clear();
+        if (httpExecutor != null) {
+            httpExecutor.shutdown();
+            try {
+                if (!httpExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+                    httpExecutor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                httpExecutor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            httpExecutor = null;
+        }
+    }
+
+    /**
+     * Resolves the host of a sender endpoint and opens a connection to it with the shared client, by a HEAD request
+     * to the origin, so DNS, the TLS handshake and the HTTP stack are set up before the first SMS. Every origin is
+     * connected once; any response will do.
+     */
+    void preconnect(long connectTimeoutMillis, URI endpoint, Duration timeout) throws IOException, InterruptedException {
+        URI origin = URI.create(endpoint.getScheme() + "://" + endpoint.getRawAuthority() + "/");
+        String key = connectTimeoutMillis + " " + origin;
+        if (preconnected.contains(key)) {
+            return;
+        }
+        InetAddress.getAllByName(origin.getHost());
+        HttpResponse<Void> response = getHttpClient(connectTimeoutMillis).send(HttpRequest.newBuilder(origin)
+            .timeout(timeout)
+            .method("HEAD", HttpRequest.BodyPublishers.noBody())
+            .build(), HttpResponse.BodyHandlers.discarding());
+        preconnected.add(key);
+        logger.debugf("Connected to %s ahead of the first SMS (HTTP %d)", origin, response.statusCode());
+    }
+
+    HttpClient getHttpClient(long connectTimeoutMillis) {
+        return httpClients.computeIfAbsent(connectTimeoutMillis, timeout -> {
+            logger.debugf("Creating shared HTTP client with connect timeout %d ms", timeout);
+            HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .connectTimeout(Duration.ofMillis(timeout));
+            if (httpExecutor != null) {
+                builder.executor(httpExecutor);
+            }
+            return builder.build();
+        });
+    }
+}
@@ -0,0 +1,68 @@
+package com.fastkeycloak.otp.ratelimit;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.SingleUseObjectProvider;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cluster-wide limiter on top of Keycloak's single-use object store, which is replicated through Infinispan. Each
+ * window has {@code limit} numbered slots and a request claims the first free one with an atomic putIfAbsent, so
+ * all nodes see the same count. This is a fixed window rather than a token bucket.
+ *
+ * <p>Slots are never freed within a window, so each node remembers per key the first slot it has not seen taken and
+ * starts from there. A request then costs one remote write plus one for each slot another node claimed meanwhile, and
+ * a full window is refused without any remote call. The hints only skip slots known to be taken, so losing them
+ * costs round trips, never correctness.
+ */
+public class ClusterRateLimiter implements RateLimiter {
+    private static final String KEY_PREFIX = "otp-rl:";
+    private static final int MAX_HINTS = 65536;
+
+    private static final class Hint {
+        final long windowIndex;
+        final AtomicInteger nextSlot = new AtomicInteger();
+
+        Hint(long windowIndex) {
+            this.windowIndex = windowIndex;
+        }
+    }
+
+    private final Map<String, Hint> hints = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean tryAcquire(KeycloakSession session, String key, int limit, long windowMillis) {
+        if (limit <= 0) {
+            return true;
+        }
+        long window = Math.max(1000L, windowMillis);
+        long windowIndex = System.currentTimeMillis() / window;
+        long lifespanSeconds = Math.max(1L, window / 1000L);
+        SingleUseObjectProvider store = session.singleUseObjects();
+        String windowKey = KEY_PREFIX + key + ":" + windowIndex + ":";
+        Hint hint = hint(key, windowIndex);
+        for (int slot = hint.nextSlot.get(); slot < limit; slot++) {
+            if (store.putIfAbsent(windowKey + slot, lifespanSeconds)) {
+                hint.nextSlot.accumulateAndGet(slot + 1, Math::max);
+                return true;
+            }
+        }
+        hint.nextSlot.accumulateAndGet(limit, Math::max);
+        return false;
+    }
+
+    private Hint hint(String key, long windowIndex) {
+        Hint hint = hints.get(key);
+        if (hint != null && hint.windowIndex == windowIndex) {
+            return hint;
+        }
+        // Hints of past windows are useless, dropping them all at once keeps the map bounded without a sweeper
+        if (hints.size() >= MAX_HINTS) {
+            hints.clear();
+        }
+        return hints.compute(key, (k, current) ->
+            current != null && current.windowIndex == windowIndex ? current : new Hint(windowIndex));
+    }
+}
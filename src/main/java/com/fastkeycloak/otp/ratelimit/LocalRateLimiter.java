@@ -0,0 +1,128 @@
+package com.fastkeycloak.otp.ratelimit;
+
+import org.keycloak.models.KeycloakSession;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-node token buckets. Keys are spread over a fixed set of stripes, each guarded by its own lock, so concurrent
+ * logins only contend when their keys hash to the same stripe. A bucket holds {@code limit} tokens and refills
+ * completely over {@code windowMillis}.
+ *
+ * <p>A full stripe drops the buckets that have refilled completely, as those carry no state. A partly used bucket is
+ * never dropped, so cycling through many keys cannot reset anyone's limit. When a stripe is still at its hard cap, new
+ * keys are not tracked one by one but share an overflow bucket per kind of key, such as {@code send:ip}, until buckets
+ * refill and make room again.
+ */
+public class LocalRateLimiter implements RateLimiter {
+    private static final int STRIPES = 64;
+    private static final int MAX_BUCKETS_PER_STRIPE = 4096;
+    private static final int HARD_MAX_BUCKETS_PER_STRIPE = 2 * MAX_BUCKETS_PER_STRIPE;
+    // How often a stripe at its hard cap looks for refilled buckets again
+    private static final long FULL_SCAN_INTERVAL_MILLIS = 1000L;
+    // Tokens are kept in fixed point so refills need no floating point math
+    private static final long TOKEN = 1_000_000L;
+
+    private static final class Bucket {
+        long tokens;
+        long updatedAt;
+        long capacity;
+        long windowMillis;
+    }
+
+    private static final class Stripe {
+        // Access ordered, least recently used first
+        final Map<String, Bucket> buckets = new LinkedHashMap<>(16, 0.75f, true);
+        // Raised while partly used buckets keep the stripe over its cap, so a scan is not repeated for every new key
+        int evictAt = MAX_BUCKETS_PER_STRIPE;
+        long scanAfter;
+        // Keyed by kind of key and limit, so there are only a handful
+        final Map<String, Bucket> overflow = new HashMap<>();
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    public LocalRateLimiter() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    @Override
+    public boolean tryAcquire(KeycloakSession session, String key, int limit, long windowMillis) {
+        if (limit <= 0) {
+            return true;
+        }
+        long capacity = limit * TOKEN;
+        long now = System.currentTimeMillis();
+        Stripe stripe = stripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+        synchronized (stripe) {
+            Bucket bucket = stripe.buckets.get(key);
+            if (bucket == null) {
+                if (stripe.buckets.size() >= stripe.evictAt && now >= stripe.scanAfter) {
+                    evict(stripe, now);
+                }
+                if (stripe.buckets.size() >= HARD_MAX_BUCKETS_PER_STRIPE) {
+                    bucket = stripe.overflow.computeIfAbsent(kind(key) + "|" + limit, k -> newBucket(capacity, now));
+                    refill(bucket, now, capacity, windowMillis);
+                } else {
+                    bucket = newBucket(capacity, now);
+                    stripe.buckets.put(key, bucket);
+                }
+            } else {
+                refill(bucket, now, capacity, windowMillis);
+            }
+            bucket.capacity = capacity;
+            bucket.windowMillis = windowMillis;
+            if (bucket.tokens < TOKEN) {
+                return false;
+            }
+            bucket.tokens -= TOKEN;
+            return true;
+        }
+    }
+
+    private static Bucket newBucket(long capacity, long now) {
+        Bucket bucket = new Bucket();
+        bucket.tokens = capacity;
+        bucket.updatedAt = now;
+        return bucket;
+    }
+
+    // The key up to its second colon, e.g. send:user
+    private static String kind(String key) {
+        int first = key.indexOf(':');
+        int second = first < 0 ? -1 : key.indexOf(':', first + 1);
+        return second < 0 ? key : key.substring(0, second);
+    }
+
+    private static void refill(Bucket bucket, long now, long capacity, long windowMillis) {
+        long elapsed = now - bucket.updatedAt;
+        if (elapsed <= 0) {
+            return;
+        }
+        long added = windowMillis <= 0 ? capacity : capacity * Math.min(elapsed, windowMillis) / windowMillis;
+        bucket.tokens = Math.min(capacity, bucket.tokens + added);
+        bucket.updatedAt = now;
+    }
+
+    // Only buckets that have refilled completely are dropped, as they carry no state worth keeping
+    private static void evict(Stripe stripe, long now) {
+        Iterator<Bucket> iterator = stripe.buckets.values().iterator();
+        while (iterator.hasNext()) {
+            Bucket bucket = iterator.next();
+            refill(bucket, now, bucket.capacity, bucket.windowMillis);
+            if (bucket.tokens >= bucket.capacity) {
+                iterator.remove();
+            }
+        }
+        int size = stripe.buckets.size();
+        stripe.evictAt = Math.min(HARD_MAX_BUCKETS_PER_STRIPE,
+            Math.max(MAX_BUCKETS_PER_STRIPE, size + MAX_BUCKETS_PER_STRIPE / 4));
+        // Still full: new keys go to the overflow buckets, and scanning again for each of them would find nothing
+        stripe.scanAfter = size >= HARD_MAX_BUCKETS_PER_STRIPE ? now + FULL_SCAN_INTERVAL_MILLIS : 0L;
+    }
+}
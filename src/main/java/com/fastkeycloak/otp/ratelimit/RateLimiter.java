@@ -0,0 +1,7 @@
+package com.fastkeycloak.otp.ratelimit;
+
+import org.keycloak.models.KeycloakSession;
+
+public interface RateLimiter {
+    boolean tryAcquire(KeycloakSession session, String key, int limit, long windowMillis);
+}
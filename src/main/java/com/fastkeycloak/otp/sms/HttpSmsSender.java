@@ -0,0 +1,140 @@
+package com.fastkeycloak.otp.sms;
+
+import com.fastkeycloak.otp.metrics.ProviderMetrics;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A generic HTTP SMS gateway described entirely by configuration: the request body is a template with
+ * {@code ${to}}, {@code ${from}} and {@code ${message}} placeholders, encoded to match the content type. Any 2xx
+ * response counts as accepted.
+ */
+public class HttpSmsSender extends SmsSender {
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\$\\{(to|from|message)}");
+
+    private final URI uri;
+    private final String method;
+    private final String contentType;
+    private final Map<String, String> headers;
+    private final String fromNumber;
+    // Alternating literal text and placeholder names, starting with text
+    private final String[] bodySegments;
+    private final Pattern messageId;
+
+    public HttpSmsSender(String id, int weight, double messagesPerSecond, URI uri, String method, String contentType,
+                         Map<String, String> headers, String bodyTemplate, String fromNumber, String messageIdField) {
+        super(id, weight, messagesPerSecond);
+        this.uri = uri;
+        this.method = method;
+        this.contentType = contentType;
+        this.headers = Map.copyOf(headers);
+        this.fromNumber = fromNumber == null ? "" : fromNumber;
+        this.bodySegments = split(bodyTemplate);
+        this.messageId = messageIdField == null ? null
+            : Pattern.compile("\"" + Pattern.quote(messageIdField) + "\"\\s*:\\s*\"?([^\",}]+)");
+    }
+
+    @Override
+    String getKey() {
+        return "http|" + method + " " + uri + "|" + fromNumber;
+    }
+
+    @Override
+    public URI getEndpoint() {
+        return uri;
+    }
+
+    @Override
+    String send(HttpClient httpClient, String to, String message, String statusCallback, Duration timeout,
+                ProviderMetrics metrics) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder()
+            .uri(uri)
+            .timeout(timeout)
+            .header("Content-Type", contentType)
+            .method(method, HttpRequest.BodyPublishers.ofString(buildBody(to, message)));
+        headers.forEach(request::header);
+        String body = execute(httpClient, request.build(), metrics).body();
+        if (messageId == null) {
+            return null;
+        }
+        Matcher id = messageId.matcher(body);
+        return id.find() ? id.group(1).trim() : null;
+    }
+
+    String buildBody(String to, String message) {
+        StringBuilder body = new StringBuilder(128);
+        for (int i = 0; i < bodySegments.length; i++) {
+            if (i % 2 == 0) {
+                body.append(bodySegments[i]);
+                continue;
+            }
+            String value = "to".equals(bodySegments[i]) ? to : "from".equals(bodySegments[i]) ? fromNumber : message;
+            body.append(encode(value));
+        }
+        return body.toString();
+    }
+
+    private String encode(String value) {
+        if (contentType.contains("json")) {
+            return escapeJson(value);
+        }
+        if (contentType.contains("x-www-form-urlencoded")) {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    private static String[] split(String template) {
+        List<String> segments = new ArrayList<>();
+        Matcher matcher = PLACEHOLDER.matcher(template);
+        int start = 0;
+        while (matcher.find()) {
+            segments.add(template.substring(start, matcher.start()));
+            segments.add(matcher.group(1));
+            start = matcher.end();
+        }
+        segments.add(template.substring(start));
+        return segments.toArray(new String[0]);
+    }
+
+    private static String escapeJson(String value) {
+        StringBuilder escaped = new StringBuilder(value.length() + 8);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    escaped.append("\\\"");
+                    break;
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\r':
+                    escaped.append("\\r");
+                    break;
+                case '\t':
+                    escaped.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        escaped.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        escaped.append(c);
+                    }
+            }
+        }
+        return escaped.toString();
+    }
+}
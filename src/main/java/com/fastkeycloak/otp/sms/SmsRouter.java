@@ -0,0 +1,207 @@
+package com.fastkeycloak.otp.sms;
+
+import com.fastkeycloak.otp.delivery.OTPDeliveryException;
+import com.fastkeycloak.otp.delivery.OTPOutbox;
+import com.fastkeycloak.otp.logging.PiiMasker;
+import com.fastkeycloak.otp.metrics.ProviderMetrics;
+import com.fastkeycloak.otp.tracing.OTPTracing;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Scope;
+import org.jboss.logging.Logger;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks the sender for each SMS among the candidates of its route. Candidates are drawn at random in proportion to
+ * their configured weight, scaled down by their recent latency relative to the fastest candidate and by their recent
+ * error rate, and senders at their rate cap are skipped. A transient failure fails over to the next candidate within
+ * the same attempt. Health and rate caps are tracked per node.
+ */
+public class SmsRouter {
+    private static final Logger logger = Logger.getLogger(SmsRouter.class);
+    // Keeps a sender that is currently failing in rotation at a trickle so it can recover
+    private static final double MIN_SHARE = 0.01;
+
+    private final Map<String, SenderHealth> health = new ConcurrentHashMap<>();
+
+    /**
+     * Sends the message through the best available sender and returns that sender with the vendor's message id. Every
+     * call to a sender gets its own client span.
+     */
+    public Result send(SmsRouting routing, HttpClient httpClient, String to, String message, String statusCallback,
+                       Duration timeout, ProviderMetrics metrics, Tracer tracer) throws Exception {
+        List<SmsSender> candidates = routing.candidates(to);
+        if (candidates.isEmpty()) {
+            throw new OTPDeliveryException("No SMS sender is routed for " + PiiMasker.maskPhone(to), false, 0L, true);
+        }
+        boolean[] excluded = new boolean[candidates.size()];
+        Exception failure = null;
+        long capacityWait = Long.MAX_VALUE;
+        for (int remaining = candidates.size(); remaining > 0; remaining--) {
+            int index = choose(candidates, excluded);
+            excluded[index] = true;
+            SmsSender sender = candidates.get(index);
+            SenderHealth senderHealth = health(sender);
+            long now = System.nanoTime();
+            if (!senderHealth.tryAcquire(sender.getMessagesPerSecond(), now)) {
+                capacityWait = Math.min(capacityWait, senderHealth.millisUntilAvailable(sender.getMessagesPerSecond(), now));
+                continue;
+            }
+            Span span = tracer.spanBuilder("SmsSender.send")
+                .setSpanKind(SpanKind.CLIENT)
+                .setAttribute(OTPTracing.SMS_SENDER, sender.getId())
+                .startSpan();
+            Scope scope = span.makeCurrent();
+            try {
+                String messageId = sender.send(httpClient, to, message, statusCallback, timeout, metrics);
+                senderHealth.record(System.nanoTime() - now, true);
+                return new Result(sender, messageId);
+            } catch (Exception e) {
+                senderHealth.record(System.nanoTime() - now, false);
+                OTPTracing.failed(span, e);
+                if (!OTPOutbox.isRetryable(e)) {
+                    throw e;
+                }
+                logger.debugf("SMS sender %s failed, trying the next candidate: %s", sender.getId(), e.getMessage());
+                failure = e;
+            } finally {
+                scope.close();
+                span.end();
+                metrics.sendDuration(System.nanoTime() - now);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        throw new OTPDeliveryException("All SMS senders for " + PiiMasker.maskPhone(to) + " are at their rate cap",
+            true, capacityWait);
+    }
+
+    private int choose(List<SmsSender> candidates, boolean[] excluded) {
+        double fastest = Double.MAX_VALUE;
+        for (int i = 0; i < candidates.size(); i++) {
+            if (!excluded[i]) {
+                double latency = health(candidates.get(i)).latencyMillis();
+                if (!Double.isNaN(latency)) {
+                    fastest = Math.min(fastest, Math.max(latency, 1.0));
+                }
+            }
+        }
+        double[] shares = new double[candidates.size()];
+        double total = 0;
+        int last = -1;
+        for (int i = 0; i < candidates.size(); i++) {
+            if (excluded[i]) {
+                continue;
+            }
+            SmsSender sender = candidates.get(i);
+            SenderHealth senderHealth = health(sender);
+            double latency = senderHealth.latencyMillis();
+            // Senders without samples yet are treated like the fastest one so they get measured
+            double speed = Double.isNaN(latency) || fastest == Double.MAX_VALUE ? 1.0 : fastest / Math.max(latency, 1.0);
+            double success = 1.0 - senderHealth.errorRate();
+            shares[i] = sender.getWeight() * Math.max(speed * success * success, MIN_SHARE);
+            total += shares[i];
+            last = i;
+        }
+        double pick = ThreadLocalRandom.current().nextDouble(total);
+        for (int i = 0; i < candidates.size(); i++) {
+            if (!excluded[i]) {
+                pick -= shares[i];
+                if (pick < 0) {
+                    return i;
+                }
+            }
+        }
+        return last;
+    }
+
+    private SenderHealth health(SmsSender sender) {
+        return health.computeIfAbsent(sender.getKey(), key -> new SenderHealth());
+    }
+
+    // Latency and error rate of a sender as last observed, e.g. for diagnostics
+    public double[] snapshot(SmsSender sender) {
+        SenderHealth senderHealth = health(sender);
+        return new double[] {senderHealth.latencyMillis(), senderHealth.errorRate()};
+    }
+
+    public static final class Result {
+        private final SmsSender sender;
+        private final String messageId;
+
+        Result(SmsSender sender, String messageId) {
+            this.sender = sender;
+            this.messageId = messageId;
+        }
+
+        public SmsSender getSender() {
+            return sender;
+        }
+
+        public String getMessageId() {
+            return messageId;
+        }
+    }
+
+    /**
+     * Exponentially weighted latency and error rate, plus a token bucket holding up to one second of the rate cap.
+     */
+    private static final class SenderHealth {
+        private static final double LATENCY_ALPHA = 0.2;
+        private static final double ERROR_ALPHA = 0.1;
+
+        private double latencyMillis = Double.NaN;
+        private double errorRate;
+        private double tokens = Double.NaN;
+        private long refilledAt;
+
+        synchronized void record(long elapsedNanos, boolean succeeded) {
+            double millis = elapsedNanos / 1_000_000.0;
+            latencyMillis = Double.isNaN(latencyMillis) ? millis : latencyMillis + LATENCY_ALPHA * (millis - latencyMillis);
+            errorRate += ERROR_ALPHA * ((succeeded ? 0.0 : 1.0) - errorRate);
+        }
+
+        synchronized double latencyMillis() {
+            return latencyMillis;
+        }
+
+        synchronized double errorRate() {
+            return errorRate;
+        }
+
+        synchronized boolean tryAcquire(double perSecond, long now) {
+            if (perSecond <= 0) {
+                return true;
+            }
+            refill(perSecond, now);
+            if (tokens < 1.0) {
+                return false;
+            }
+            tokens -= 1.0;
+            return true;
+        }
+
+        synchronized long millisUntilAvailable(double perSecond, long now) {
+            refill(perSecond, now);
+            return tokens >= 1.0 ? 0L : (long) Math.ceil((1.0 - tokens) * 1000.0 / perSecond);
+        }
+
+        private void refill(double perSecond, long now) {
+            double burst = Math.max(1.0, perSecond);
+            if (Double.isNaN(tokens)) {
+                tokens = burst;
+            } else {
+                tokens = Math.min(burst, tokens + (now - refilledAt) * perSecond / 1_000_000_000.0);
+            }
+            refilledAt = now;
+        }
+    }
+}
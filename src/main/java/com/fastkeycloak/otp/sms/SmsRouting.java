@@ -0,0 +1,206 @@
+package com.fastkeycloak.otp.sms;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.keycloak.util.JsonSerialization;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The SMS senders of one authenticator configuration and the country-prefix rules that choose among them. Numbers
+ * matching no rule may use every sender, unless a {@code *} rule says otherwise.
+ */
+public final class SmsRouting {
+    private static final SmsRouting EMPTY = new SmsRouting(List.of(), List.of(), List.of());
+
+    private static final class Rule {
+        final String prefix;
+        final List<SmsSender> senders;
+
+        Rule(String prefix, List<SmsSender> senders) {
+            this.prefix = prefix;
+            this.senders = senders;
+        }
+    }
+
+    private final List<SmsSender> senders;
+    // Longest prefix first so the most specific rule wins
+    private final List<Rule> rules;
+    private final List<SmsSender> fallback;
+
+    private SmsRouting(List<SmsSender> senders, List<Rule> rules, List<SmsSender> fallback) {
+        this.senders = senders;
+        this.rules = rules;
+        this.fallback = fallback;
+    }
+
+    public static SmsRouting empty() {
+        return EMPTY;
+    }
+
+    /**
+     * The classic single-account setup: one Twilio sender per comma-separated number in {@code fromNumbers}.
+     */
+    public static SmsRouting twilio(String baseUrl, String accountSid, String authToken, String fromNumbers,
+                                    double messagesPerSecond) {
+        if (accountSid == null || authToken == null || fromNumbers == null || fromNumbers.isBlank()) {
+            return EMPTY;
+        }
+        String[] numbers = fromNumbers.split(",");
+        List<SmsSender> senders = new ArrayList<>();
+        for (int i = 0; i < numbers.length; i++) {
+            String number = numbers[i].trim();
+            if (!number.isEmpty()) {
+                String id = numbers.length == 1 ? "twilio" : "twilio-" + (i + 1);
+                senders.add(new TwilioSender(id, 1, messagesPerSecond, baseUrl, accountSid, authToken, number));
+            }
+        }
+        return new SmsRouting(List.copyOf(senders), List.of(), List.copyOf(senders));
+    }
+
+    /**
+     * Parses a JSON array of sender definitions and optional routing rules ({@code +49=eu-1,eu-2}, one per line or
+     * separated by {@code ;}). Twilio senders without credentials or base URL use the given defaults.
+     *
+     * @throws IllegalArgumentException describing the first invalid entry
+     */
+    public static SmsRouting parse(String sendersJson, String routes, String defaultBaseUrl, String defaultAccountSid,
+                                   String defaultAuthToken, double defaultMessagesPerSecond) {
+        JsonNode definitions;
+        try {
+            definitions = JsonSerialization.mapper.readTree(sendersJson);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("not valid JSON: " + e.getOriginalMessage(), e);
+        }
+        if (definitions == null || !definitions.isArray() || definitions.isEmpty()) {
+            throw new IllegalArgumentException("expected a non-empty JSON array of senders");
+        }
+        Map<String, SmsSender> byId = new LinkedHashMap<>();
+        for (JsonNode definition : definitions) {
+            SmsSender sender = sender(definition, defaultBaseUrl, defaultAccountSid, defaultAuthToken,
+                defaultMessagesPerSecond);
+            if (byId.putIfAbsent(sender.getId(), sender) != null) {
+                throw new IllegalArgumentException("duplicate sender id " + sender.getId());
+            }
+        }
+        List<SmsSender> senders = List.copyOf(byId.values());
+
+        List<Rule> rules = new ArrayList<>();
+        List<SmsSender> fallback = senders;
+        if (routes != null) {
+            for (String line : routes.split("[;\\n]")) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                int separator = line.indexOf('=');
+                if (separator < 1) {
+                    throw new IllegalArgumentException("expected <prefix>=<sender ids> but got " + line.trim());
+                }
+                String prefix = line.substring(0, separator).trim();
+                List<SmsSender> targets = new ArrayList<>();
+                for (String id : line.substring(separator + 1).split(",")) {
+                    SmsSender target = byId.get(id.trim());
+                    if (target == null) {
+                        throw new IllegalArgumentException("route " + prefix + " refers to unknown sender " + id.trim());
+                    }
+                    targets.add(target);
+                }
+                if ("*".equals(prefix)) {
+                    fallback = List.copyOf(targets);
+                } else if (!prefix.matches("\\+[0-9]+")) {
+                    throw new IllegalArgumentException("route prefix must look like +49 but got " + prefix);
+                } else {
+                    rules.add(new Rule(prefix, List.copyOf(targets)));
+                }
+            }
+        }
+        rules.sort(Comparator.comparingInt((Rule rule) -> rule.prefix.length()).reversed());
+        return new SmsRouting(senders, List.copyOf(rules), fallback);
+    }
+
+    private static SmsSender sender(JsonNode definition, String defaultBaseUrl, String defaultAccountSid,
+                                    String defaultAuthToken, double defaultMessagesPerSecond) {
+        String id = text(definition, "id", null);
+        if (id == null || id.isBlank()) {
+            throw new IllegalArgumentException("every sender needs an id");
+        }
+        int weight = definition.path("weight").asInt(1);
+        double messagesPerSecond = definition.path("messagesPerSecond").asDouble(defaultMessagesPerSecond);
+        if (weight < 1 || messagesPerSecond < 0) {
+            throw new IllegalArgumentException("sender " + id + " needs a weight of at least 1 and a non-negative rate");
+        }
+        String from = text(definition, "from", null);
+        String type = text(definition, "type", "twilio");
+        switch (type) {
+            case "twilio": {
+                String accountSid = text(definition, "accountSid", defaultAccountSid);
+                String authToken = text(definition, "authToken", defaultAuthToken);
+                if (accountSid == null || authToken == null || from == null) {
+                    throw new IllegalArgumentException("Twilio sender " + id + " needs accountSid, authToken and from");
+                }
+                String baseUrl = httpUrl(id, text(definition, "baseUrl", defaultBaseUrl)).toString();
+                return new TwilioSender(id, weight, messagesPerSecond, baseUrl.replaceAll("/+$", ""), accountSid,
+                    authToken, from);
+            }
+            case "http": {
+                URI uri = httpUrl(id, text(definition, "url", null));
+                String body = text(definition, "body", null);
+                if (body == null) {
+                    throw new IllegalArgumentException("HTTP sender " + id + " needs a body template");
+                }
+                Map<String, String> headers = new LinkedHashMap<>();
+                Iterator<Map.Entry<String, JsonNode>> fields = definition.path("headers").fields();
+                while (fields.hasNext()) {
+                    Map.Entry<String, JsonNode> header = fields.next();
+                    headers.put(header.getKey(), header.getValue().asText());
+                }
+                return new HttpSmsSender(id, weight, messagesPerSecond, uri, text(definition, "method", "POST"),
+                    text(definition, "contentType", "application/x-www-form-urlencoded"), headers, body, from,
+                    text(definition, "messageIdField", null));
+            }
+            default:
+                throw new IllegalArgumentException("sender " + id + " has unknown type " + type);
+        }
+    }
+
+    private static String text(JsonNode definition, String field, String defaultValue) {
+        JsonNode value = definition.get(field);
+        return value == null || value.isNull() ? defaultValue : value.asText();
+    }
+
+    private static URI httpUrl(String id, String url) {
+        try {
+            URI uri = url == null ? null : URI.create(url.trim());
+            if (uri != null && ("http".equals(uri.getScheme()) || "https".equals(uri.getScheme())) && uri.getHost() != null) {
+                return uri;
+            }
+        } catch (IllegalArgumentException ignored) {
+            // reported below
+        }
+        throw new IllegalArgumentException("sender " + id + " needs an http(s) URL but got " + url);
+    }
+
+    public boolean isEmpty() {
+        return senders.isEmpty();
+    }
+
+    public List<SmsSender> getSenders() {
+        return senders;
+    }
+
+    // The senders allowed for an E.164 number
+    public List<SmsSender> candidates(String phoneNumber) {
+        for (Rule rule : rules) {
+            if (phoneNumber.startsWith(rule.prefix)) {
+                return rule.senders;
+            }
+        }
+        return fallback;
+    }
+}
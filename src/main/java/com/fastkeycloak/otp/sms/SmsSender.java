@@ -0,0 +1,110 @@
+package com.fastkeycloak.otp.sms;
+
+import com.fastkeycloak.otp.delivery.OTPDeliveryException;
+import com.fastkeycloak.otp.metrics.ProviderMetrics;
+import com.fastkeycloak.otp.tracing.OTPTracing;
+import io.opentelemetry.api.trace.Span;
+import org.jboss.logging.Logger;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * One account or number an SMS can be sent from. Senders are immutable and belong to an {@link SmsRouting};
+ * their live health is kept by the {@link SmsRouter} under {@link #getKey()}.
+ */
+public abstract class SmsSender {
+    private static final Logger logger = Logger.getLogger(SmsSender.class);
+
+    private final String id;
+    private final int weight;
+    private final double messagesPerSecond;
+
+    SmsSender(String id, int weight, double messagesPerSecond) {
+        this.id = id;
+        this.weight = weight;
+        this.messagesPerSecond = messagesPerSecond;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    // 0 means no cap
+    public double getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    // Identifies the sender across configuration reloads so its latency and error history is kept
+    abstract String getKey();
+
+    // The URL messages are sent to
+    public abstract URI getEndpoint();
+
+    /**
+     * Sends one message and returns the vendor's message id, or null if the vendor does not report one. Senders that
+     * support delivery reports post them to {@code statusCallback} when it is set.
+     */
+    abstract String send(HttpClient httpClient, String to, String message, String statusCallback, Duration timeout,
+                         ProviderMetrics metrics) throws Exception;
+
+    // Runs in the client span the router started for this sender
+    HttpResponse<String> execute(HttpClient httpClient, HttpRequest request, ProviderMetrics metrics) throws Exception {
+        Span span = Span.current();
+        if (span.isRecording()) {
+            span.setAttribute(OTPTracing.HTTP_METHOD, request.method());
+            span.setAttribute(OTPTracing.SERVER_ADDRESS, request.uri().getHost());
+        }
+        HttpResponse<String> response;
+        try {
+            response = httpClient.send(OTPTracing.propagate(request), HttpResponse.BodyHandlers.ofString());
+        } catch (Exception e) {
+            metrics.ioError();
+            throw e;
+        }
+        int statusCode = response.statusCode();
+        metrics.httpStatus(statusCode);
+        span.setAttribute(OTPTracing.HTTP_STATUS, (long) statusCode);
+        if (statusCode < 200 || statusCode >= 300) {
+            logger.warnf("SMS sender %s error - Status: %d", id, statusCode);
+            // The body can echo the recipient and account details, so it stays out of the exception message
+            logger.debugf("SMS sender %s error response: %s", id, response.body());
+            boolean retryable = statusCode == 429 || statusCode >= 500;
+            long retryAfter = parseRetryAfter(response.headers().firstValue("Retry-After").orElse(null));
+            throw new OTPDeliveryException(String.format("SMS sender %s failed (HTTP %d)", id, statusCode), retryable,
+                retryAfter, isRecipientError(statusCode, response.body()));
+        }
+        return response;
+    }
+
+    // Whether a failed response blames the recipient rather than the sender's account or configuration
+    boolean isRecipientError(int statusCode, String body) {
+        return false;
+    }
+
+    static long parseRetryAfter(String retryAfter) {
+        if (retryAfter == null || retryAfter.isBlank()) {
+            return 0L;
+        }
+        try {
+            return Math.max(0L, Long.parseLong(retryAfter.trim()) * 1000L);
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime retryAt = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0L, retryAt.toInstant().toEpochMilli() - System.currentTimeMillis());
+            } catch (DateTimeParseException ignored) {
+                return 0L;
+            }
+        }
+    }
+}
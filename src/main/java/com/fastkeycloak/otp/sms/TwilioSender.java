@@ -0,0 +1,122 @@
+package com.fastkeycloak.otp.sms;
+
+import com.fastkeycloak.otp.metrics.ProviderMetrics;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A sender number of a Twilio account, using the Messages API.
+ */
+public class TwilioSender extends SmsSender {
+    private static final Pattern SID = Pattern.compile("\"sid\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern ERROR_CODE = Pattern.compile("\"code\"\\s*:\\s*(\\d+)");
+    // Invalid, unreachable, unsubscribed or non-mobile To numbers; every other error is the account's or the sender's
+    private static final Set<String> RECIPIENT_ERRORS = Set.of("21211", "21214", "21217", "21407", "21610", "21612",
+        "21614");
+
+    private final String accountSid;
+    private final String authToken;
+    private final String fromNumber;
+    private final URI messagesUri;
+    private final String authorization;
+
+    public TwilioSender(String id, int weight, double messagesPerSecond, String baseUrl, String accountSid,
+                        String authToken, String fromNumber) {
+        super(id, weight, messagesPerSecond);
+        this.accountSid = accountSid;
+        this.authToken = authToken;
+        this.fromNumber = fromNumber;
+        this.messagesUri = URI.create(baseUrl + "/2010-04-01/Accounts/"
+            + URLEncoder.encode(accountSid, StandardCharsets.UTF_8) + "/Messages.json");
+        this.authorization = "Basic " + Base64.getEncoder()
+            .encodeToString((accountSid + ":" + authToken).getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String getAccountSid() {
+        return accountSid;
+    }
+
+    public String getFromNumber() {
+        return fromNumber;
+    }
+
+    @Override
+    String getKey() {
+        return "twilio|" + messagesUri + "|" + fromNumber;
+    }
+
+    @Override
+    public URI getEndpoint() {
+        return messagesUri;
+    }
+
+    @Override
+    String send(HttpClient httpClient, String to, String message, String statusCallback, Duration timeout,
+                ProviderMetrics metrics) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder()
+            .uri(messagesUri)
+            .timeout(timeout)
+            .header("Authorization", authorization)
+            .header("Content-Type", "application/x-www-form-urlencoded")
+            .POST(HttpRequest.BodyPublishers.ofString(buildRequestBody(to, fromNumber, message, statusCallback)))
+            .build();
+        Matcher sid = SID.matcher(execute(httpClient, request, metrics).body());
+        return sid.find() ? sid.group(1) : null;
+    }
+
+    @Override
+    boolean isRecipientError(int statusCode, String body) {
+        if (statusCode != 400 || body == null) {
+            return false;
+        }
+        Matcher code = ERROR_CODE.matcher(body);
+        return code.find() && RECIPIENT_ERRORS.contains(code.group(1));
+    }
+
+    /**
+     * Checks the {@code X-Twilio-Signature} of a request Twilio made to {@code url}: the base64 HMAC-SHA1, keyed
+     * with this account's auth token, of the URL followed by every POST parameter name and value in name order.
+     */
+    public boolean isValidSignature(String url, Map<String, String> parameters, String signature) {
+        if (signature == null) {
+            return false;
+        }
+        StringBuilder signed = new StringBuilder(url);
+        new TreeMap<>(parameters).forEach((name, value) -> signed.append(name).append(value));
+        try {
+            Mac mac = Mac.getInstance("HmacSHA1");
+            mac.init(new SecretKeySpec(authToken.getBytes(StandardCharsets.UTF_8), "HmacSHA1"));
+            byte[] expected = mac.doFinal(signed.toString().getBytes(StandardCharsets.UTF_8));
+            return MessageDigest.isEqual(Base64.getEncoder().encode(expected), signature.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA1 is not available", e);
+        }
+    }
+
+    static String buildRequestBody(String to, String from, String message) {
+        return buildRequestBody(to, from, message, null);
+    }
+
+    static String buildRequestBody(String to, String from, String message, String statusCallback) {
+        String body = "To=" + URLEncoder.encode(to, StandardCharsets.UTF_8)
+            + "&From=" + URLEncoder.encode(from, StandardCharsets.UTF_8)
+            + "&Body=" + URLEncoder.encode(message, StandardCharsets.UTF_8);
+        return statusCallback == null ? body
+            : body + "&StatusCallback=" + URLEncoder.encode(statusCallback, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,85 @@
+package com.fastkeycloak.otp.state;
+
+import com.fastkeycloak.otp.enums.OTPChannel;
+import org.jboss.logging.Logger;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.UserModel;
+import org.keycloak.storage.ReadOnlyException;
+
+/**
+ * The channel a user last verified a code on, with the number of consecutive logins it worked for, kept in a user
+ * attribute as {@code <channel>:<successes>}. Later logins send straight to it instead of asking for a channel.
+ * The count stops at {@link #MAX_SUCCESSES}, so a user who sticks to one channel causes no further writes.
+ */
+public final class ChannelPreference {
+    private static final Logger logger = Logger.getLogger(ChannelPreference.class);
+    public static final String ATTRIBUTE = "otpPreferredChannel";
+    static final int MAX_SUCCESSES = 3;
+    private static final char SEPARATOR = ':';
+
+    private final String channel;
+    private final int successes;
+
+    private ChannelPreference(String channel, int successes) {
+        this.channel = channel;
+        this.successes = successes;
+    }
+
+    // Null when the user has none or the attribute was edited into something unreadable
+    public static ChannelPreference read(UserModel user) {
+        String value = user.getFirstAttribute(ATTRIBUTE);
+        int separator = value == null ? -1 : value.indexOf(SEPARATOR);
+        if (separator <= 0) {
+            return null;
+        }
+        String channel = value.substring(0, separator);
+        if (!OTPChannel.fromValue(channel).getValue().equals(channel)) {
+            return null;
+        }
+        try {
+            return new ChannelPreference(channel, Math.max(0, Integer.parseInt(value.substring(separator + 1))));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // After a successful verification on the channel
+    public static void succeeded(UserModel user, String channel) {
+        ChannelPreference current = read(user);
+        int successes = current != null && current.channel.equals(channel)
+            ? Math.min(current.successes + 1, MAX_SUCCESSES) : 1;
+        write(user, current, channel, successes);
+    }
+
+    // After the code could not be delivered on the channel, so the next login asks again
+    public static void failed(UserModel user, String channel) {
+        ChannelPreference current = read(user);
+        if (current != null && current.channel.equals(channel)) {
+            write(user, current, channel, 0);
+        }
+    }
+
+    // Best effort: the preference only saves a page, so a user that cannot be written to just keeps being asked
+    private static void write(UserModel user, ChannelPreference current, String channel, int successes) {
+        if (current == null || !current.channel.equals(channel) || current.successes != successes) {
+            try {
+                user.setSingleAttribute(ATTRIBUTE, channel + SEPARATOR + successes);
+            } catch (ReadOnlyException | ModelException e) {
+                logger.debugf("Not remembering the OTP channel of read-only user %s: %s", user.getId(), e.getMessage());
+            }
+        }
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public int getSuccesses() {
+        return successes;
+    }
+
+    // Only a channel that worked last time is used without asking
+    public boolean isUsable() {
+        return successes > 0;
+    }
+}
@@ -0,0 +1,161 @@
+package com.fastkeycloak.otp.state;
+
+import org.jboss.logging.Logger;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.DefaultKeyProviders;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Encrypts an issued code with the realm's active AES key so that a resend can deliver the same code again without
+ * the plaintext ever entering the session. Realm keys are shared by all cluster nodes; after a key rotation sealed
+ * codes simply cannot be recovered and a new code is issued instead.
+ *
+ * <p>The same keys also yield the keys the code hash is computed with, derived per purpose so that no key is used by
+ * two algorithms. A realm without an enabled AES key is given a generated one, as Keycloak creates for new realms.
+ */
+final class CodeSealer {
+    private static final Logger logger = Logger.getLogger(CodeSealer.class);
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int IV_BYTES = 12;
+    private static final int TAG_BITS = 128;
+    static final String HASH_ALGORITHM = "HmacSHA256";
+    private static final byte[] HASH_KEY_LABEL = "otp-code-hash".getBytes(StandardCharsets.US_ASCII);
+    // Derived once per realm key; realms rarely hold more than a couple, clearing keeps rotated ones from piling up
+    private static final int MAX_HASH_KEYS = 256;
+    private static final Map<SecretKey, SecretKey> HASH_KEYS = new ConcurrentHashMap<>();
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private CodeSealer() {
+    }
+
+    // Returns an empty string when the realm has no usable key
+    static String seal(KeycloakSession session, RealmModel realm, String code, String salt) {
+        SecretKey key = activeKey(session, realm);
+        if (key == null) {
+            return "";
+        }
+        try {
+            byte[] iv = new byte[IV_BYTES];
+            RANDOM.nextBytes(iv);
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+            cipher.updateAAD(salt.getBytes(StandardCharsets.US_ASCII));
+            byte[] sealed = cipher.doFinal(code.getBytes(StandardCharsets.UTF_8));
+            byte[] out = new byte[IV_BYTES + sealed.length];
+            System.arraycopy(iv, 0, out, 0, IV_BYTES);
+            System.arraycopy(sealed, 0, out, IV_BYTES, sealed.length);
+            return ENCODER.encodeToString(out);
+        } catch (GeneralSecurityException e) {
+            logger.debugf(e, "Could not seal OTP code for realm %s", realm.getName());
+            return "";
+        }
+    }
+
+    static String unseal(KeycloakSession session, RealmModel realm, String sealed, String salt) {
+        SecretKey key = sealed.isEmpty() ? null : activeKey(session, realm);
+        if (key == null) {
+            return null;
+        }
+        try {
+            byte[] in = DECODER.decode(sealed);
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, in, 0, IV_BYTES));
+            cipher.updateAAD(salt.getBytes(StandardCharsets.US_ASCII));
+            return new String(cipher.doFinal(in, IV_BYTES, in.length - IV_BYTES), StandardCharsets.UTF_8);
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            logger.debugf("Could not recover sealed OTP code for realm %s: %s", realm.getName(), e.getMessage());
+            return null;
+        }
+    }
+
+    // Null only when the realm has no usable key and none could be generated
+    static SecretKey hashKey(KeycloakSession session, RealmModel realm) {
+        SecretKey key = activeKey(session, realm);
+        if (key == null && session != null && realm != null) {
+            key = generateKey(session, realm);
+        }
+        return key == null ? null : deriveHashKey(key, realm);
+    }
+
+    // Every enabled key, so that a code issued before a key rotation still verifies
+    static List<SecretKey> hashKeys(KeycloakSession session, RealmModel realm) {
+        if (session == null || realm == null) {
+            return List.of();
+        }
+        try {
+            return session.keys().getKeysStream(realm, KeyUse.ENC, Algorithm.AES)
+                .map(KeyWrapper::getSecretKey)
+                .filter(Objects::nonNull)
+                .map(key -> deriveHashKey(key, realm))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        } catch (RuntimeException e) {
+            logger.debugf("No AES keys in realm %s: %s", realm.getName(), e.getMessage());
+            return List.of();
+        }
+    }
+
+    private static SecretKey deriveHashKey(SecretKey key, RealmModel realm) {
+        SecretKey derived = HASH_KEYS.get(key);
+        if (derived != null) {
+            return derived;
+        }
+        if (HASH_KEYS.size() >= MAX_HASH_KEYS) {
+            HASH_KEYS.clear();
+        }
+        try {
+            Mac mac = Mac.getInstance(HASH_ALGORITHM);
+            mac.init(new SecretKeySpec(key.getEncoded(), HASH_ALGORITHM));
+            derived = new SecretKeySpec(mac.doFinal(HASH_KEY_LABEL), HASH_ALGORITHM);
+            HASH_KEYS.put(key, derived);
+            return derived;
+        } catch (GeneralSecurityException e) {
+            logger.debugf("Could not derive the OTP hash key for realm %s: %s", realm.getName(), e.getMessage());
+            return null;
+        }
+    }
+
+    private static SecretKey generateKey(KeycloakSession session, RealmModel realm) {
+        logger.warnf("Realm %s has no active AES key, generating one to protect OTP codes", realm.getName());
+        try {
+            DefaultKeyProviders.createAesProvider(realm);
+        } catch (RuntimeException e) {
+            logger.errorf(e, "Could not generate an AES key for realm %s", realm.getName());
+            return null;
+        }
+        return activeKey(session, realm);
+    }
+
+    private static SecretKey activeKey(KeycloakSession session, RealmModel realm) {
+        if (session == null || realm == null) {
+            return null;
+        }
+        try {
+            KeyWrapper key = session.keys().getActiveKey(realm, KeyUse.ENC, Algorithm.AES);
+            return key == null ? null : key.getSecretKey();
+        } catch (RuntimeException e) {
+            logger.debugf("No active AES key in realm %s: %s", realm.getName(), e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.fastkeycloak.otp.state;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * The OTP state of an authentication session, kept in a single auth note so that issuing a code and every failed
+ * attempt replicate one small write. Codes are verified against a salted HMAC-SHA256 keyed with a key derived from
+ * the realm's AES key, so reading the session cache is not enough to brute-force the few possible codes; the code
+ * itself is only kept encrypted with the realm key so it can be resent.
+ *
+ * <p>Encoded as {@code 3.<channel>.<issuedAt>.<expiresAt>.<remainingAttempts>.<sentAt>.<salt>.<hash>.<sealedCode>}
+ * with base-36 numbers and unpadded base64url binary fields; the binary fields are empty while only the channel has
+ * been chosen.
+ */
+public final class OTPState {
+    public static final String AUTH_NOTE = "otp";
+
+    private static final String VERSION = "3";
+    private static final char SEPARATOR = '.';
+    private static final int SALT_BYTES = 16;
+    // A truncated hash is plenty to tell codes apart and keeps the note short
+    private static final int HASH_BYTES = 16;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ThreadLocal<Mac> HMAC = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(CodeSealer.HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(CodeSealer.HASH_ALGORITHM + " is not available", e);
+        }
+    });
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final String channel;
+    private final long issuedAt;
+    private final long expiresAt;
+    private final int remainingAttempts;
+    private final long sentAt;
+    private final String salt;
+    private final String hash;
+    private final String sealedCode;
+
+    private OTPState(String channel, long issuedAt, long expiresAt, int remainingAttempts, long sentAt, String salt,
+                     String hash, String sealedCode) {
+        this.channel = channel;
+        this.issuedAt = issuedAt;
+        this.expiresAt = expiresAt;
+        this.remainingAttempts = remainingAttempts;
+        this.sentAt = sentAt;
+        this.salt = salt;
+        this.hash = hash;
+        this.sealedCode = sealedCode;
+    }
+
+    public static OTPState channelOnly(String channel) {
+        return new OTPState(channel, 0L, 0L, 0, 0L, "", "", "");
+    }
+
+    /**
+     * State for a newly generated code. A realm without an AES key is given a generated one first; when none can be
+     * had, no code is issued rather than one whose hash could be brute-forced.
+     */
+    public static OTPState issue(KeycloakSession session, RealmModel realm, String channel, String code, long issuedAt,
+                                 long expiresAt, int remainingAttempts) {
+        SecretKey hashKey = CodeSealer.hashKey(session, realm);
+        if (hashKey == null) {
+            throw new IllegalStateException("Realm " + (realm == null ? null : realm.getName())
+                + " has no AES key to protect the OTP with");
+        }
+        byte[] saltBytes = new byte[SALT_BYTES];
+        RANDOM.nextBytes(saltBytes);
+        String salt = ENCODER.encodeToString(saltBytes);
+        return new OTPState(channel, issuedAt, expiresAt, remainingAttempts, issuedAt, salt,
+            ENCODER.encodeToString(mac(hashKey, saltBytes, code)), CodeSealer.seal(session, realm, code, salt));
+    }
+
+    public static OTPState read(AuthenticationSessionModel authSession) {
+        return parse(authSession.getAuthNote(AUTH_NOTE));
+    }
+
+    // Returns null for a missing note or one written in an unknown format
+    public static OTPState parse(String encoded) {
+        if (encoded == null || encoded.length() < 2 || !encoded.startsWith(VERSION)
+            || encoded.charAt(VERSION.length()) != SEPARATOR) {
+            return null;
+        }
+        try {
+            int start = 2;
+            int end = encoded.indexOf(SEPARATOR, start);
+            String channel = encoded.substring(start, end);
+            start = end + 1;
+            end = encoded.indexOf(SEPARATOR, start);
+            long issuedAt = Long.parseLong(encoded, start, end, 36);
+            start = end + 1;
+            end = encoded.indexOf(SEPARATOR, start);
+            long expiresAt = Long.parseLong(encoded, start, end, 36);
+            start = end + 1;
+            end = encoded.indexOf(SEPARATOR, start);
+            int remainingAttempts = Integer.parseInt(encoded, start, end, 36);
+            start = end + 1;
+            end = encoded.indexOf(SEPARATOR, start);
+            long sentAt = Long.parseLong(encoded, start, end, 36);
+            start = end + 1;
+            end = encoded.indexOf(SEPARATOR, start);
+            String salt = encoded.substring(start, end);
+            start = end + 1;
+            end = encoded.indexOf(SEPARATOR, start);
+            String hash = encoded.substring(start, end);
+            return new OTPState(channel, issuedAt, expiresAt, remainingAttempts, sentAt, salt, hash,
+                encoded.substring(end + 1));
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public String encode() {
+        return new StringBuilder(channel.length() + salt.length() + hash.length() + sealedCode.length() + 48)
+            .append(VERSION).append(SEPARATOR)
+            .append(channel).append(SEPARATOR)
+            .append(Long.toString(issuedAt, 36)).append(SEPARATOR)
+            .append(Long.toString(expiresAt, 36)).append(SEPARATOR)
+            .append(Integer.toString(remainingAttempts, 36)).append(SEPARATOR)
+            .append(Long.toString(sentAt, 36)).append(SEPARATOR)
+            .append(salt).append(SEPARATOR)
+            .append(hash).append(SEPARATOR)
+            .append(sealedCode)
+            .toString();
+    }
+
+    public void write(AuthenticationSessionModel authSession) {
+        authSession.setAuthNote(AUTH_NOTE, encode());
+    }
+
+    public OTPState withRemainingAttempts(int remaining) {
+        return new OTPState(channel, issuedAt, expiresAt, remaining, sentAt, salt, hash, sealedCode);
+    }
+
+    public OTPState withSentAt(long time) {
+        return new OTPState(channel, issuedAt, expiresAt, remainingAttempts, time, salt, hash, sealedCode);
+    }
+
+    // The issued code for a resend, or null when it was not sealed or the realm key has rotated since
+    public String recoverCode(KeycloakSession session, RealmModel realm) {
+        return hasCode() ? CodeSealer.unseal(session, realm, sealedCode, salt) : null;
+    }
+
+    public boolean isLive(long now) {
+        return hasCode() && expiresAt > now;
+    }
+
+    /**
+     * Compares the entered code with the issued one in constant time, under each of the realm's keys. A missing code
+     * never matches.
+     */
+    public boolean matches(KeycloakSession session, RealmModel realm, String enteredCode) {
+        if (enteredCode == null || !hasCode()) {
+            return false;
+        }
+        try {
+            byte[] expected = DECODER.decode(hash);
+            byte[] saltBytes = DECODER.decode(salt);
+            String code = enteredCode.trim();
+            for (SecretKey key : CodeSealer.hashKeys(session, realm)) {
+                if (MessageDigest.isEqual(expected, mac(key, saltBytes, code))) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    public boolean hasCode() {
+        return !hash.isEmpty();
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public long getIssuedAt() {
+        return issuedAt;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public int getRemainingAttempts() {
+        return remainingAttempts;
+    }
+
+    public long getSentAt() {
+        return sentAt;
+    }
+
+    private static byte[] mac(SecretKey key, byte[] salt, String code) {
+        Mac hmac = HMAC.get();
+        try {
+            hmac.init(key);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not initialise " + CodeSealer.HASH_ALGORITHM, e);
+        }
+        hmac.update(salt);
+        byte[] hashed = hmac.doFinal(code.getBytes(StandardCharsets.UTF_8));
+        byte[] truncated = new byte[HASH_BYTES];
+        System.arraycopy(hashed, 0, truncated, 0, HASH_BYTES);
+        return truncated;
+    }
+
+}
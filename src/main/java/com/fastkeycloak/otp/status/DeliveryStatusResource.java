@@ -0,0 +1,168 @@
+package com.fastkeycloak.otp.status;
+
+import com.fastkeycloak.otp.config.OTPSettings;
+import com.fastkeycloak.otp.enums.OTPChannel;
+import com.fastkeycloak.otp.metrics.ProviderMetrics;
+import com.fastkeycloak.otp.metrics.ProviderMetrics.DeliveryStatus;
+import com.fastkeycloak.otp.providers.TwilioSMSProvider;
+import com.fastkeycloak.otp.sms.SmsSender;
+import com.fastkeycloak.otp.sms.TwilioSender;
+import com.fastkeycloak.otp.state.OTPState;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
+import jakarta.ws.rs.NotAuthorizedException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.core.Response;
+import org.jboss.logging.Logger;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resources.admin.AdminAuth;
+import org.keycloak.services.resources.admin.fgap.AdminPermissions;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.sessions.RootAuthenticationSessionModel;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Receives delivery reports at {@code /realms/{realm}/otp-delivery-status/{provider}} and lists the recent ones to
+ * realm administrators allowed to view events.
+ */
+public class DeliveryStatusResource implements RealmResourceProvider {
+    private static final Logger logger = Logger.getLogger(DeliveryStatusResource.class);
+
+    private final KeycloakSession session;
+    private final DeliveryStatusResourceProviderFactory factory;
+
+    public DeliveryStatusResource(KeycloakSession session, DeliveryStatusResourceProviderFactory factory) {
+        this.session = session;
+        this.factory = factory;
+    }
+
+    @Override
+    public Object getResource() {
+        return this;
+    }
+
+    /**
+     * Twilio's status callback. Reports are only accepted for messages this realm sent and tracked, and only with a
+     * valid signature of the account that sent them.
+     */
+    @POST
+    @Path(TwilioSMSProvider.ID)
+    @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+    public Response twilio(MultivaluedMap<String, String> form, @HeaderParam("X-Twilio-Signature") String signature) {
+        RealmModel realm = session.getContext().getRealm();
+        String messageId = form.getFirst("MessageSid");
+        String status = form.getFirst("MessageStatus");
+        if (messageId == null || status == null) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        TrackedMessage message = TrackedMessage.find(session, messageId);
+        if (message == null || !realm.getId().equals(message.getRealmId())
+                || !TwilioSMSProvider.ID.equals(message.getProviderId())) {
+            logger.debugf("Delivery report for unknown message %s", messageId);
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        Map<String, String> parameters = new HashMap<>();
+        form.forEach((name, values) -> parameters.put(name, values.isEmpty() ? "" : values.get(0)));
+        TwilioSender sender = findTwilioSender(realm, message, form.getFirst("AccountSid"));
+        if (sender == null || !sender.isValidSignature(message.getCallbackUrl(), parameters, signature)) {
+            logger.warnf("Rejected delivery report for message %s: invalid signature", messageId);
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+
+        DeliveryStatus finalStatus = finalStatus(status);
+        long now = System.currentTimeMillis();
+        Long latencyMillis = null;
+        if (finalStatus != null) {
+            // Twilio may report a status more than once; only the first final report counts
+            if (TrackedMessage.take(session, messageId) == null) {
+                return Response.noContent().build();
+            }
+            ProviderMetrics metrics = factory.getMetrics().realm(realm.getName())
+                .provider(message.getProviderId(), OTPChannel.SMS);
+            metrics.deliveryStatus(finalStatus);
+            if (finalStatus == DeliveryStatus.DELIVERED) {
+                latencyMillis = Math.max(0L, now - message.getAcceptedAt());
+                metrics.timeToHandset(latencyMillis);
+            } else {
+                markUndelivered(realm, message, status);
+            }
+        }
+        factory.getEvents().add(new RecentDeliveryEvents.Event(now, realm.getName(), message.getProviderId(),
+            messageId, status, form.getFirst("ErrorCode"), latencyMillis));
+        return Response.noContent().build();
+    }
+
+    @GET
+    @Path("events")
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<RecentDeliveryEvents.Event> events() {
+        RealmModel realm = session.getContext().getRealm();
+        AuthenticationManager.AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+        if (auth == null) {
+            throw new NotAuthorizedException("Bearer");
+        }
+        AdminAuth adminAuth = new AdminAuth(realm, auth.getToken(), auth.getUser(), auth.getClient());
+        AdminPermissions.evaluator(session, realm, adminAuth).realm().requireViewEvents();
+        return factory.getEvents().list(realm.getName());
+    }
+
+    private TwilioSender findTwilioSender(RealmModel realm, TrackedMessage message, String accountSid) {
+        if (!message.getAccount().equals(accountSid)) {
+            return null;
+        }
+        OTPSettings settings = factory.getSettings(realm, message.getConfigId() == null ? null
+            : realm.getAuthenticatorConfigById(message.getConfigId()));
+        for (SmsSender sender : settings.getSmsRouting().getSenders()) {
+            if (sender instanceof TwilioSender && accountSid.equals(((TwilioSender) sender).getAccountSid())) {
+                return (TwilioSender) sender;
+            }
+        }
+        return null;
+    }
+
+    // Lets the OTP form offer another channel, unless a newer code was sent since
+    private void markUndelivered(RealmModel realm, TrackedMessage message, String status) {
+        RootAuthenticationSessionModel rootSession = session.authenticationSessions()
+            .getRootAuthenticationSession(realm, message.getRootSessionId());
+        ClientModel client = realm.getClientById(message.getClientId());
+        if (rootSession == null || client == null) {
+            return;
+        }
+        AuthenticationSessionModel authSession = rootSession.getAuthenticationSession(client, message.getTabId());
+        OTPState state = authSession == null ? null : OTPState.read(authSession);
+        if (state != null && OTPChannel.SMS.getValue().equals(state.getChannel())
+                && state.getSentAt() <= message.getAcceptedAt()) {
+            authSession.setAuthNote(TrackedMessage.AUTH_NOTE_UNDELIVERED, status);
+        }
+    }
+
+    private static DeliveryStatus finalStatus(String status) {
+        switch (status) {
+            case "delivered":
+                return DeliveryStatus.DELIVERED;
+            case "undelivered":
+                return DeliveryStatus.UNDELIVERED;
+            case "failed":
+                return DeliveryStatus.FAILED;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,60 @@
+package com.fastkeycloak.otp.status;
+
+import com.fastkeycloak.otp.MultiChannelOTPAuthenticatorFactory;
+import com.fastkeycloak.otp.config.OTPSettings;
+import com.fastkeycloak.otp.metrics.OTPMetrics;
+import org.keycloak.Config;
+import org.keycloak.authentication.Authenticator;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+public class DeliveryStatusResourceProviderFactory implements RealmResourceProviderFactory {
+    public static final String ID = "otp-delivery-status";
+    static final int DEFAULT_RECENT_EVENTS = 256;
+
+    private MultiChannelOTPAuthenticatorFactory authenticatorFactory;
+    private RecentDeliveryEvents events = new RecentDeliveryEvents(DEFAULT_RECENT_EVENTS);
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public RealmResourceProvider create(KeycloakSession session) {
+        return new DeliveryStatusResource(session, this);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        events = new RecentDeliveryEvents(config.getInt("recentEvents", DEFAULT_RECENT_EVENTS));
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        // Reports are matched against the authenticator's own parsed settings and recorded to its meters
+        authenticatorFactory = (MultiChannelOTPAuthenticatorFactory) factory.getProviderFactory(Authenticator.class,
+            MultiChannelOTPAuthenticatorFactory.ID);
+    }
+
+    @Override
+    public void close() {
+        authenticatorFactory = null;
+    }
+
+    OTPSettings getSettings(RealmModel realm, AuthenticatorConfigModel config) {
+        return authenticatorFactory.getSettings(realm, config);
+    }
+
+    OTPMetrics getMetrics() {
+        return authenticatorFactory.getMetrics();
+    }
+
+    RecentDeliveryEvents getEvents() {
+        return events;
+    }
+}
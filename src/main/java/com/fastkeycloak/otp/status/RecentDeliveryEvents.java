@@ -0,0 +1,87 @@
+package com.fastkeycloak.otp.status;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The last delivery reports this node received, in a fixed-size ring so memory stays bounded however many reports
+ * arrive. Reports come at the rate of sent messages, so a single lock is enough.
+ */
+public class RecentDeliveryEvents {
+
+    public static final class Event {
+        private final long time;
+        private final String realm;
+        private final String provider;
+        private final String messageId;
+        private final String status;
+        private final String errorCode;
+        private final Long latencyMillis;
+
+        public Event(long time, String realm, String provider, String messageId, String status, String errorCode,
+                     Long latencyMillis) {
+            this.time = time;
+            this.realm = realm;
+            this.provider = provider;
+            this.messageId = messageId;
+            this.status = status;
+            this.errorCode = errorCode;
+            this.latencyMillis = latencyMillis;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public String getRealm() {
+            return realm;
+        }
+
+        public String getProvider() {
+            return provider;
+        }
+
+        public String getMessageId() {
+            return messageId;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public String getErrorCode() {
+            return errorCode;
+        }
+
+        // Time from the provider accepting the message to its delivery, only set for delivered messages
+        public Long getLatencyMillis() {
+            return latencyMillis;
+        }
+    }
+
+    private final Event[] events;
+    private int next;
+    private int size;
+
+    public RecentDeliveryEvents(int capacity) {
+        events = new Event[Math.max(1, capacity)];
+    }
+
+    public synchronized void add(Event event) {
+        events[next] = event;
+        next = (next + 1) % events.length;
+        size = Math.min(size + 1, events.length);
+    }
+
+    // Newest first
+    public synchronized List<Event> list(String realm) {
+        List<Event> recent = new ArrayList<>(size);
+        for (int i = 1; i <= size; i++) {
+            Event event = events[(next - i + events.length) % events.length];
+            if (event.getRealm().equals(realm)) {
+                recent.add(event);
+            }
+        }
+        return recent;
+    }
+}
@@ -0,0 +1,127 @@
+package com.fastkeycloak.otp.status;
+
+import com.fastkeycloak.otp.OTPDeliveryRequest;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A message a provider accepted and expects a delivery report for. It is kept in Keycloak's single-use object store
+ * under the vendor's message id, so a report reaching any node can be matched to its realm, authenticator
+ * configuration and authentication session.
+ */
+public final class TrackedMessage {
+    // Set on the authentication session when the current code could not be delivered; holds the vendor's status
+    public static final String AUTH_NOTE_UNDELIVERED = "otpUndelivered";
+
+    private static final String KEY_PREFIX = "otp-msg:";
+    // Carriers report the final status of nearly every message within the hour
+    private static final long LIFESPAN_SECONDS = 3600L;
+
+    private final String realmId;
+    private final String configId;
+    private final String providerId;
+    private final String account;
+    private final String callbackUrl;
+    private final String rootSessionId;
+    private final String clientId;
+    private final String tabId;
+    private final long acceptedAt;
+
+    private TrackedMessage(String realmId, String configId, String providerId, String account, String callbackUrl,
+                           String rootSessionId, String clientId, String tabId, long acceptedAt) {
+        this.realmId = realmId;
+        this.configId = configId;
+        this.providerId = providerId;
+        this.account = account;
+        this.callbackUrl = callbackUrl;
+        this.rootSessionId = rootSessionId;
+        this.clientId = clientId;
+        this.tabId = tabId;
+        this.acceptedAt = acceptedAt;
+    }
+
+    /**
+     * A message of {@code delivery} that the vendor accepted just now for {@code account}, which reports its status
+     * to {@code callbackUrl}.
+     */
+    public static TrackedMessage accepted(OTPDeliveryRequest delivery, String providerId, String account,
+                                          String callbackUrl) {
+        AuthenticationSessionModel authSession = delivery.getAuthSession();
+        return new TrackedMessage(delivery.getRealm().getId(), delivery.getConfigId(), providerId, account,
+            callbackUrl, authSession.getParentSession().getId(), authSession.getClient().getId(),
+            authSession.getTabId(), System.currentTimeMillis());
+    }
+
+    public void store(KeycloakSession session, String messageId) {
+        Map<String, String> notes = new HashMap<>();
+        notes.put("realm", realmId);
+        if (configId != null) {
+            notes.put("config", configId);
+        }
+        notes.put("provider", providerId);
+        notes.put("account", account);
+        notes.put("callback", callbackUrl);
+        notes.put("root", rootSessionId);
+        notes.put("client", clientId);
+        notes.put("tab", tabId);
+        notes.put("accepted", Long.toString(acceptedAt));
+        session.singleUseObjects().put(KEY_PREFIX + messageId, LIFESPAN_SECONDS, notes);
+    }
+
+    public static TrackedMessage find(KeycloakSession session, String messageId) {
+        return fromNotes(session.singleUseObjects().get(KEY_PREFIX + messageId));
+    }
+
+    // Stops tracking once the final status arrived; null if another report, possibly on another node, got there first
+    public static TrackedMessage take(KeycloakSession session, String messageId) {
+        return fromNotes(session.singleUseObjects().remove(KEY_PREFIX + messageId));
+    }
+
+    private static TrackedMessage fromNotes(Map<String, String> notes) {
+        if (notes == null || notes.get("accepted") == null) {
+            return null;
+        }
+        return new TrackedMessage(notes.get("realm"), notes.get("config"), notes.get("provider"), notes.get("account"),
+            notes.get("callback"), notes.get("root"), notes.get("client"), notes.get("tab"),
+            Long.parseLong(notes.get("accepted")));
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public String getConfigId() {
+        return configId;
+    }
+
+    public String getProviderId() {
+        return providerId;
+    }
+
+    public String getAccount() {
+        return account;
+    }
+
+    public String getCallbackUrl() {
+        return callbackUrl;
+    }
+
+    public String getRootSessionId() {
+        return rootSessionId;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public String getTabId() {
+        return tabId;
+    }
+
+    public long getAcceptedAt() {
+        return acceptedAt;
+    }
+}
@@ -0,0 +1,77 @@
+package com.fastkeycloak.otp.tracing;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.Context;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.tracing.TracingProvider;
+
+import java.net.http.HttpRequest;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Spans of the OTP flow. They are started from Keycloak's tracer, so they become children of the span of the request
+ * running the authenticator and are exported wherever Keycloak exports its own. Without a server (benchmarks, load
+ * tests) the globally registered OpenTelemetry is used, which does nothing unless one was registered.
+ */
+public final class OTPTracing {
+    public static final String SCOPE = "com.fastkeycloak.otp";
+
+    public static final AttributeKey<String> CHANNEL = AttributeKey.stringKey("otp.channel");
+    public static final AttributeKey<String> OUTCOME = AttributeKey.stringKey("otp.outcome");
+    public static final AttributeKey<String> PROVIDER = AttributeKey.stringKey("otp.provider");
+    public static final AttributeKey<String> SMS_SENDER = AttributeKey.stringKey("otp.sms.sender");
+    // Masked the same way as in the logs
+    public static final AttributeKey<String> RECIPIENT = AttributeKey.stringKey("otp.recipient");
+    public static final AttributeKey<String> HTTP_METHOD = AttributeKey.stringKey("http.request.method");
+    public static final AttributeKey<Long> HTTP_STATUS = AttributeKey.longKey("http.response.status_code");
+    public static final AttributeKey<String> SERVER_ADDRESS = AttributeKey.stringKey("server.address");
+
+    private OTPTracing() {
+    }
+
+    public static Tracer tracer(KeycloakSession session) {
+        TracingProvider provider = session == null ? null : session.getProvider(TracingProvider.class);
+        return provider != null ? provider.getTracer(SCOPE) : GlobalOpenTelemetry.getTracer(SCOPE);
+    }
+
+    /**
+     * Records a flow step on the current span. The last step sets the channel and outcome of the span, so the span
+     * of every request tells how it ended.
+     */
+    public static void step(String step, String channel, String outcome) {
+        Span span = Span.current();
+        if (!span.isRecording()) {
+            return;
+        }
+        if (channel != null) {
+            span.setAttribute(CHANNEL, channel);
+        }
+        span.setAttribute(OUTCOME, outcome);
+        span.addEvent(step, channel == null ? Attributes.of(OUTCOME, outcome)
+            : Attributes.of(CHANNEL, channel, OUTCOME, outcome));
+    }
+
+    public static void failed(Span span, Throwable failure) {
+        span.recordException(failure);
+        span.setStatus(StatusCode.ERROR, failure.getMessage());
+    }
+
+    // Adds the W3C traceparent of the current span, so the vendor's side of the call can be joined to the trace
+    public static HttpRequest propagate(HttpRequest request) {
+        Map<String, String> headers = new HashMap<>();
+        W3CTraceContextPropagator.getInstance().inject(Context.current(), headers, Map::put);
+        if (headers.isEmpty()) {
+            return request;
+        }
+        HttpRequest.Builder builder = HttpRequest.newBuilder(request, (name, value) -> true);
+        headers.forEach(builder::setHeader);
+        return builder.build();
+    }
+}
@@ -20,7 +20,30 @@
                     <div id="kc-form-buttons" class="${properties.kcFormGroupClass!}">
                         <input class="${properties.kcButtonClass!} ${properties.kcButtonPrimaryClass!} ${properties.kcButtonBlockClass!} ${properties.kcButtonLargeClass!}" 
                                type="submit" value="${msg("doSubmit")}"/>
+                        <#if (deliveryFailed?? && deliveryFailed) || !(resendCooldown??) || resendCooldown <= 0>
+                            <input class="${properties.kcButtonClass!} ${properties.kcButtonDefaultClass!} ${properties.kcButtonBlockClass!} ${properties.kcButtonLargeClass!}"
+                                   type="submit" name="resend" value="${msg("resendCode")}" formnovalidate/>
+                        <#else>
+                            <input class="${properties.kcButtonClass!} ${properties.kcButtonDefaultClass!} ${properties.kcButtonBlockClass!} ${properties.kcButtonLargeClass!}"
+                                   type="submit" name="resend" value="${msg("resendCode")}" formnovalidate disabled/>
+                            <div id="kc-resend-cooldown" class="${properties.kcFormHelperTextClass!}">
+                                ${msg("resendCodeIn", resendCooldown?c)}
+                            </div>
+                        </#if>
                     </div>
+                    <#if offerEmail?? && offerEmail>
+                        <div id="kc-sms-undelivered" class="${properties.kcFormGroupClass!}">
+                            <div class="${properties.kcFormHelperTextClass!}">${msg("smsUndelivered")}</div>
+                            <input class="${properties.kcButtonClass!} ${properties.kcButtonDefaultClass!} ${properties.kcButtonBlockClass!} ${properties.kcButtonLargeClass!}"
+                                   type="submit" name="useEmail" value="${msg("useEmailInstead")}" formnovalidate/>
+                        </div>
+                    </#if>
+                    <#if otherChannel?? && !(offerEmail?? && offerEmail)>
+                        <div id="kc-other-channel" class="${properties.kcFormGroupClass!}">
+                            <button class="${properties.kcButtonClass!} ${properties.kcButtonDefaultClass!} ${properties.kcButtonBlockClass!} ${properties.kcButtonLargeClass!}"
+                                    type="submit" name="useChannel" value="${otherChannel}" formnovalidate>${msg("useOtherChannel", msg(otherChannel))}</button>
+                        </div>
+                    </#if>
                 </form>
             </div>
         </div>